@@ -19,6 +19,7 @@ package elf.app;
 
 import java.io.IOException;
 import java.util.LinkedList;
+import java.util.concurrent.Executor;
 
 import elf.data.Version;
 import elf.ui.GenericDialog;
@@ -38,7 +39,11 @@ import elf.ui.meta.Action;
 public abstract class Application extends AbstractEntity {
 	private String name;
 	private Version version;
+	private static final long FLUSH_TIMEOUT = 5000;
 	LinkedList<Configuration> configs = new LinkedList<Configuration>();
+	AutoSaver saver;
+	ConfigWatcher watcher;
+	private Executor loader;
 	
 	/**
 	 * Build an application.
@@ -66,6 +71,69 @@ public abstract class Application extends AbstractEntity {
 		return version;
 	}
 	
+	/**
+	 * Enable the automatic save of the configurations: each modification
+	 * is saved in background, the modifications occurring during the given
+	 * delay being saved together.
+	 * @param delay		Delay (in ms) before saving a modification.
+	 */
+	public void enableAutoSave(long delay) {
+		if(saver == null)
+			saver = new AutoSaver(delay);
+	}
+	
+	/**
+	 * Get the auto-saver, if any.
+	 * @return	Auto-saver or null.
+	 */
+	public AutoSaver getAutoSaver() {
+		return saver;
+	}
+	
+	/**
+	 * Enable the reload of the configurations modified by another program:
+	 * the configuration files are watched and a configuration is loaded back
+	 * once its file is not modified during the given delay.
+	 * @param delay		Delay (in ms) before loading back a modified configuration.
+	 */
+	public void enableHotReload(long delay) {
+		if(watcher == null)
+			try {
+				watcher = new ConfigWatcher(delay);
+				for(Configuration config: configs)
+					watcher.watch(config);
+			} catch (IOException e) {
+				System.err.println("ERROR: cannot watch configurations: " + e.getLocalizedMessage());
+			}
+	}
+	
+	/**
+	 * Get the configuration watcher, if any.
+	 * @return	Configuration watcher or null.
+	 */
+	public ConfigWatcher getConfigWatcher() {
+		return watcher;
+	}
+	
+	/**
+	 * Set the executor used to load the configurations concurrently at start-up,
+	 * for example a bounded thread pool or, when available, an executor of virtual threads.
+	 * Without executor, the configurations are loaded one after the other and the start
+	 * stops at the first failed load.
+	 * @param loader	Executor to use or null for sequential loads.
+	 */
+	public void setLoadExecutor(Executor loader) {
+		this.loader = loader;
+	}
+	
+	/**
+	 * Get the executor used to load the configurations.
+	 * @return	Load executor or null.
+	 */
+	public Executor getLoadExecutor() {
+		return loader;
+	}
+	
 	/**
 	 * Called to start the application.
 	 */
@@ -77,15 +145,37 @@ public abstract class Application extends AbstractEntity {
 	 */
 	public void run(String[] argv) {
 		
-		// perform initialize
+		// perform initialize (the stores are looked up here as the OS is not thread-safe)
 		for(Configuration config: configs)
-			try {
-				config.load();
-			} catch (IOException e) {
-				System.out.println("ERROR: " + e.getLocalizedMessage());
-				e.printStackTrace();
-				return;
+			config.getStore();
+		Executor executor = loader;
+		if(executor == null)
+			executor = new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					command.run();
+				}
+			};
+		for(Configuration config: configs)
+			if(!config.isDeferred()) {
+				config.startLoad(executor, false);
+				if(loader == null && !awaitLoad(config))
+					return;
 			}
+		for(Configuration config: configs)
+			if(config.isDeferred())
+				config.startLoad(loader != null ? loader : new Executor() {
+					@Override
+					public void execute(Runnable command) {
+						Thread thread = new Thread(command, "elf-config-load");
+						thread.setDaemon(true);
+						thread.start();
+					}
+				}, true);
+		if(loader != null)
+			for(Configuration config: configs)
+				if(!config.isDeferred() && !awaitLoad(config))
+					return;
 		
 		// prepare exit hook
 		Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -96,11 +186,37 @@ public abstract class Application extends AbstractEntity {
 		proceed();
 	}
 	
+	/**
+	 * Wait for the load of a configuration at startup. In case of error,
+	 * the other loads are cancelled and the error is displayed.
+	 * @param config	Configuration to wait for.
+	 * @return			True if the load succeeded, false else.
+	 */
+	private boolean awaitLoad(Configuration config) {
+		try {
+			config.awaitLoad();
+			return true;
+		} catch (IOException e) {
+			for(Configuration other: configs)
+				other.cancelLoad();
+			System.out.println("ERROR: " + e.getLocalizedMessage());
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
 	/**
 	 * Perform the cleanup action (done before exiting).
 	 * May be overload but the super method must be called !
 	 */
 	protected void cleanup() {
+		if(watcher != null)
+			watcher.stop();
+		if(saver != null) {
+			if(!saver.flush(FLUSH_TIMEOUT))
+				System.out.println("ERROR: automatic save timed out");
+			saver.stop();
+		}
 		for(Configuration config: configs)
 			try {
 				config.save();
@@ -17,12 +17,17 @@
  */
 package elf.app;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
 /**
  * Automatic configuration supporting the automatic-registration to configuration.
  * @author casse
  */
 public class AutoConfiguration {
 	private Configuration conf;
+	private HashMap<String, ArrayList<Listener>> listeners;
 	
 	/**
 	 * Build a configuration registering itself to the given application.
@@ -42,4 +47,85 @@ public class AutoConfiguration {
 	public void modify() {
 		conf.modify();
 	}
+	
+	/**
+	 * Record the modification of a field.
+	 * @param name	Name of the modified field.
+	 */
+	public void modify(String name) {
+		conf.modify(name);
+	}
+	
+	/**
+	 * Get the configuration managing this object.
+	 * @return	Configuration.
+	 */
+	public Configuration getConfiguration() {
+		return conf;
+	}
+	
+	/**
+	 * Add a listener called when the given field is loaded back with a new value.
+	 * @param field		Listened field.
+	 * @param listener	Listener to add.
+	 */
+	public synchronized void addListener(String field, Listener listener) {
+		if(listeners == null)
+			listeners = new HashMap<String, ArrayList<Listener>>();
+		ArrayList<Listener> list = listeners.get(field);
+		if(list == null) {
+			list = new ArrayList<Listener>();
+			listeners.put(field, list);
+		}
+		list.add(listener);
+	}
+	
+	/**
+	 * Remove a listener of a field.
+	 * @param field		Listened field.
+	 * @param listener	Listener to remove.
+	 */
+	public synchronized void removeListener(String field, Listener listener) {
+		if(listeners != null) {
+			ArrayList<Listener> list = listeners.get(field);
+			if(list != null)
+				list.remove(listener);
+		}
+	}
+	
+	/**
+	 * Inform the listeners of the given fields that they have been loaded back.
+	 * @param fields	Changed fields.
+	 */
+	void fireReload(Collection<String> fields) {
+		ArrayList<Listener> called = new ArrayList<Listener>();
+		ArrayList<String> names = new ArrayList<String>();
+		synchronized(this) {
+			if(listeners == null)
+				return;
+			for(String field: fields) {
+				ArrayList<Listener> list = listeners.get(field);
+				if(list != null)
+					for(Listener listener: list) {
+						called.add(listener);
+						names.add(field);
+					}
+			}
+		}
+		for(int i = 0; i < called.size(); i++)
+			called.get(i).onReload(names.get(i));
+	}
+	
+	/**
+	 * Listener of the fields loaded back from the configuration store.
+	 */
+	public interface Listener {
+		
+		/**
+		 * Called when a field is loaded back with a new value.
+		 * @param field		Changed field.
+		 */
+		void onReload(String field);
+	
+	}
 }
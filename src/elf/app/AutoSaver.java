@@ -0,0 +1,178 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.app;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Background service saving the modified configurations.
+ * 
+ * Each modification takes a snapshot of the configuration in the thread
+ * performing the modification, that is, consistently with the other changes
+ * of the configuration object. The snapshots are written by a dedicated
+ * low-priority thread: the modifications done during a delay after the first
+ * one are coalesced, each snapshot replacing the pending one, and produce only one write.
+ * @author casse
+ */
+public class AutoSaver implements Runnable {
+	private final long delay;
+	private final Thread thread;
+	private final LinkedHashMap<Configuration, Pending> pending = new LinkedHashMap<Configuration, Pending>();
+	private boolean writing = false;
+	private boolean stopped = false;
+	private int flushing = 0;
+	
+	/**
+	 * Build and start an auto-saver.
+	 * @param delay		Delay (in ms) between a first modification and the write.
+	 */
+	public AutoSaver(long delay) {
+		this.delay = delay;
+		thread = new Thread(this, "elf-autosave");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+	
+	/**
+	 * Schedule the save of a configuration. The snapshot is taken in the calling
+	 * thread but the write is performed in the saver thread.
+	 * @param config	Modified configuration.
+	 */
+	public void schedule(Configuration config) {
+		Configuration.Snapshot snap;
+		try {
+			snap = config.snapshot();
+		} catch (IOException e) {
+			System.err.println("ERROR: cannot snapshot configuration " + config.name + ": " + e.getLocalizedMessage());
+			return;
+		}
+		if(snap == null)
+			return;
+		synchronized(this) {
+			Pending p = pending.get(config);
+			if(p != null)
+				p.snapshot = snap;
+			else {
+				pending.put(config, new Pending(snap, System.currentTimeMillis() + delay));
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Write immediately the pending snapshots and wait for the end of the writes.
+	 * @param timeout	Maximum time to wait (in ms).
+	 * @return			True if all is written, false if the timeout is reached.
+	 */
+	public synchronized boolean flush(long timeout) {
+		long end = System.currentTimeMillis() + timeout;
+		flushing++;
+		notifyAll();
+		try {
+			while(!pending.isEmpty() || writing) {
+				long remain = end - System.currentTimeMillis();
+				if(remain <= 0)
+					return false;
+				wait(remain);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			flushing--;
+		}
+	}
+	
+	/**
+	 * Stop the saver thread (after writing the pending snapshots).
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+	
+	@Override
+	public void run() {
+		while(true) {
+			
+			// wait for a snapshot to write
+			Configuration config;
+			Pending p;
+			synchronized(this) {
+				while(true) {
+					Iterator<Configuration> iter = pending.keySet().iterator();
+					if(!iter.hasNext()) {
+						if(stopped)
+							return;
+						waitFor(0);
+						continue;
+					}
+					config = iter.next();
+					p = pending.get(config);
+					long remain = p.deadline - System.currentTimeMillis();
+					if(remain <= 0 || flushing > 0 || stopped) {
+						iter.remove();
+						writing = true;
+						break;
+					}
+					waitFor(remain);
+				}
+			}
+			
+			// perform the write
+			try {
+				config.write(p.snapshot);
+			} catch (IOException e) {
+				System.err.println("ERROR: cannot save configuration " + config.name + ": " + e.getLocalizedMessage());
+			}
+			synchronized(this) {
+				writing = false;
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Wait for a notification.
+	 * @param time	Maximum time to wait (0 for no limit).
+	 */
+	private void waitFor(long time) {
+		try {
+			wait(time);
+		} catch (InterruptedException e) {
+			stopped = true;
+		}
+	}
+	
+	/**
+	 * A pending snapshot.
+	 */
+	private static class Pending {
+		Configuration.Snapshot snapshot;
+		long deadline;
+		
+		Pending(Configuration.Snapshot snapshot, long deadline) {
+			this.snapshot = snapshot;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import elf.os.Path;
+
+/**
+ * Background service loading back the configurations whose file is modified
+ * by another program (an external tool or another instance of the application).
+ * 
+ * The directories of the configuration files are watched and the events of a
+ * file are debounced: the configuration is loaded back (see {@link Configuration#reload()})
+ * only once no event has been received during a delay. The load is performed in
+ * the watcher thread and only the changed fields are set in the configuration object.
+ * @author casse
+ */
+public class ConfigWatcher implements Runnable {
+	private final long delay;
+	private final WatchService service;
+	private final Thread thread;
+	private final HashMap<java.nio.file.Path, ArrayList<Configuration>> dirs = new HashMap<java.nio.file.Path, ArrayList<Configuration>>();
+	private final LinkedHashMap<Configuration, Long> pending = new LinkedHashMap<Configuration, Long>();
+	
+	/**
+	 * Build and start a configuration watcher.
+	 * @param delay			Delay (in ms) without modification before loading back a configuration.
+	 * @throws IOException	If the file system cannot be watched.
+	 */
+	public ConfigWatcher(long delay) throws IOException {
+		this.delay = delay;
+		service = FileSystems.getDefault().newWatchService();
+		thread = new Thread(this, "elf-config-watch");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+	
+	/**
+	 * Watch the file of a configuration.
+	 * @param config		Watched configuration.
+	 * @throws IOException	If the directory of the configuration cannot be watched.
+	 */
+	public void watch(Configuration config) throws IOException {
+		Path file = config.getFile();
+		if(file == null)
+			return;
+		java.nio.file.Path dir = new File(file.toString()).getAbsoluteFile().toPath().getParent();
+		Files.createDirectories(dir);
+		synchronized(this) {
+			ArrayList<Configuration> configs = dirs.get(dir);
+			if(configs == null) {
+				dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				configs = new ArrayList<Configuration>();
+				dirs.put(dir, configs);
+			}
+			if(!configs.contains(config))
+				configs.add(config);
+		}
+	}
+	
+	/**
+	 * Stop the watcher thread.
+	 */
+	public void stop() {
+		try {
+			service.close();
+		} catch (IOException e) {
+			System.err.println("ERROR: cannot stop the configuration watcher: " + e.getLocalizedMessage());
+		}
+	}
+	
+	/**
+	 * Test if a file name designates one of the files of a configuration: the file itself
+	 * or the files named after it (like logs of journals or shards).
+	 * @param config	Configuration to test.
+	 * @param name		File name.
+	 * @return			True if the file belongs to the configuration, false else.
+	 */
+	private static boolean concerns(Configuration config, String name) {
+		Path file = config.getFile();
+		if(file == null)
+			return false;
+		String base = new File(file.toString()).getName();
+		return name.equals(base) || name.startsWith(base + ".");
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				
+				// wait for an event or a deadline
+				long remain = 0;
+				synchronized(this) {
+					if(!pending.isEmpty())
+						remain = Math.max(1, pending.values().iterator().next() - System.currentTimeMillis());
+				}
+				WatchKey key = remain == 0 ? service.take() : service.poll(remain, java.util.concurrent.TimeUnit.MILLISECONDS);
+				
+				// record the modified configurations
+				if(key != null) {
+					java.nio.file.Path dir = (java.nio.file.Path)key.watchable();
+					synchronized(this) {
+						ArrayList<Configuration> configs = dirs.get(dir);
+						for(WatchEvent<?> event: key.pollEvents())
+							if(configs != null)
+								for(Configuration config: configs)
+									if(event.kind() == StandardWatchEventKinds.OVERFLOW
+									|| concerns(config, event.context().toString())) {
+										pending.remove(config);
+										pending.put(config, System.currentTimeMillis() + delay);
+									}
+					}
+					key.reset();
+				}
+				
+				// load back the configurations whose delay is elapsed
+				ArrayList<Configuration> ready = new ArrayList<Configuration>();
+				synchronized(this) {
+					long now = System.currentTimeMillis();
+					for(Iterator<Map.Entry<Configuration, Long>> iter = pending.entrySet().iterator(); iter.hasNext(); ) {
+						Map.Entry<Configuration, Long> entry = iter.next();
+						if(entry.getValue() > now)
+							break;
+						ready.add(entry.getKey());
+						iter.remove();
+					}
+				}
+				for(Configuration config: ready)
+					try {
+						config.reload();
+					} catch (IOException e) {
+						System.err.println("ERROR: cannot reload configuration " + config.name + ": " + e.getLocalizedMessage());
+					}
+			}
+		} catch (ClosedWatchServiceException e) {
+		} catch (InterruptedException e) {
+		}
+	}
+
+}
@@ -17,16 +17,42 @@
  */
 package elf.app;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
+import elf.data.Property;
 import elf.os.OS;
+import elf.os.Path;
 import elf.store.AutoStructuredSerializer;
+import elf.store.FileStorage;
+import elf.store.SaveRecord;
+import elf.store.Storage;
 import elf.store.StructuredStore;
+import elf.ui.UI;
 
 /**
  * A configuration manages a configuration object and is responsible
  * for loading and saving it. The configuration adds itself to the list of
  * configurations of an application.
+ * 
+ * The modifications may be recorded per field: if the store is patchable,
+ * only the modified fields are then saved. If the application has an auto-saver,
+ * each modification schedules a background save. If the application has a configuration
+ * watcher, the modifications of the file by another program are loaded back (see {@link #reload()}).
+ * 
+ * A configuration not needed to build the user interface may be marked as deferred
+ * (see {@link #setDeferred(boolean)}): it is then loaded in background while the
+ * application starts and {@link #awaitLoad()} must be called before using it.
  * @author casse
  */
 public class Configuration {
@@ -34,6 +60,15 @@ public class Configuration {
 	String name;
 	Object object;
 	boolean modified;
+	HashSet<String> dirty = new HashSet<String>();
+	int generation;
+	StructuredStore store;
+	boolean stored;
+	boolean deferred;
+	boolean loadRunning, savePending;
+	private final Object lock = new Object();
+	private volatile FutureTask<Void> loading;
+	private volatile Object stamp;
 	
 	/**
 	 * Build a configuration for the given object.
@@ -47,13 +82,68 @@ public class Configuration {
 		this.name = name;
 		this.object = object;
 		modified = false;
+		if(app.watcher != null)
+			try {
+				app.watcher.watch(this);
+			} catch (IOException e) {
+				System.err.println("ERROR: cannot watch configuration " + name + ": " + e.getLocalizedMessage());
+			}
 	}
 	
 	/**
 	 * Inform the configuration it is modified.
 	 */
-	public void modify() {
+	public synchronized void modify() {
 		modified = true;
+		changed();
+	}
+	
+	/**
+	 * Inform the configuration that the given field is modified.
+	 * @param field		Name of the modified field.
+	 */
+	public synchronized void modify(String field) {
+		dirty.add(field);
+		changed();
+	}
+	
+	/**
+	 * Called each time a modification is recorded.
+	 */
+	private void changed() {
+		generation++;
+		if(loadRunning)
+			savePending = true;
+		else if(app.saver != null)
+			app.saver.schedule(this);
+	}
+	
+	/**
+	 * Test if the configuration needs to be saved.
+	 * @return	True if it is modified, false else.
+	 */
+	public synchronized boolean isModified() {
+		return modified || !dirty.isEmpty();
+	}
+	
+	/**
+	 * Get the store of the configuration.
+	 * @return	Configuration store.
+	 */
+	StructuredStore getStore() {
+		if(store == null)
+			store = OS.os.getConfig(app.getName(), name);
+		return store;
+	}
+	
+	/**
+	 * Set the store of the configuration, replacing the one provided by the OS
+	 * (for example, a {@link elf.store.JournalStructuredStore} for configurations
+	 * modified often). Must be called before the load.
+	 * @param store		Configuration store.
+	 */
+	public synchronized void setStore(StructuredStore store) {
+		this.store = store;
 	}
 	
 	/**
@@ -62,24 +152,328 @@ public class Configuration {
 	 */
 	public void load() throws IOException {
 		assert app != null;
-		StructuredStore store = OS.os.getConfig(app.getName(), name);
-		if(store.exists()) {
+		StructuredStore store = getStore();
+		stored = store.exists();
+		if(stored) {
 			AutoStructuredSerializer serial = new AutoStructuredSerializer(store, object);
 			serial.load();
 		}
 		else
-			modified = true;
+			synchronized(this) {
+				modified = true;
+			}
 	}
 	
 	/**
-	 * Save the current configuration if required.
+	 * Mark the configuration as deferred, that is, not needed before the first display
+	 * of the application: its load is then performed in background, concurrently with
+	 * the start of the application. Must be called before the application is run.
+	 * @param deferred	True to defer the load, false else.
 	 */
-	public void save() throws IOException {
-		if(!modified)
+	public void setDeferred(boolean deferred) {
+		this.deferred = deferred;
+	}
+	
+	/**
+	 * Test if the configuration is deferred.
+	 * @return	True if the configuration is deferred, false else.
+	 */
+	public boolean isDeferred() {
+		return deferred;
+	}
+	
+	/**
+	 * Start the load of the configuration with the given executor.
+	 * @param executor	Executor to use.
+	 * @param report	True to report the errors (the deferred loads having no waiter).
+	 */
+	void startLoad(Executor executor, final boolean report) {
+		synchronized(this) {
+			loadRunning = true;
+		}
+		loading = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				try {
+					load();
+				} catch (IOException e) {
+					if(report)
+						System.out.println("ERROR: " + e.getLocalizedMessage());
+					throw e;
+				}
+				loaded();
+				return null;
+			}
+		});
+		executor.execute(loading);
+	}
+	
+	/**
+	 * Called at the end of a successful load started by the application:
+	 * schedules the save of the modifications recorded during the load
+	 * (the snapshot being taken in the thread of the user interface, if any).
+	 */
+	private void loaded() {
+		synchronized(this) {
+			loadRunning = false;
+			if(!savePending || app.saver == null)
+				return;
+			savePending = false;
+		}
+		UI ui = OS.os.getUI();
+		if(ui == null)
+			app.saver.schedule(this);
+		else
+			ui.start(new UI.Task(0) {
+				@Override
+				public void run() {
+					app.saver.schedule(Configuration.this);
+				}
+			});
+	}
+	
+	/**
+	 * Stop the load of the configuration if it is not yet started.
+	 */
+	void cancelLoad() {
+		FutureTask<Void> task = loading;
+		if(task != null && task.cancel(false))
+			synchronized(this) {
+				loadRunning = false;
+			}
+	}
+	
+	/**
+	 * Wait for the end of the load of the configuration started by the application.
+	 * Returns immediately if the configuration is already loaded.
+	 * @throws IOException	If the load has failed.
+	 */
+	public void awaitLoad() throws IOException {
+		FutureTask<Void> task = loading;
+		if(task == null)
 			return;
-		StructuredStore store = OS.os.getConfig(app.getName(), name);
-		AutoStructuredSerializer serial = new AutoStructuredSerializer(store, object);
-		serial.save();
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while loading configuration " + name);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			else if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			else if(cause instanceof Error)
+				throw (Error)cause;
+			else
+				throw new IOException(cause);
+		}
+	}
+	
+	/**
+	 * Get the file of the configuration in the OS configuration directory.
+	 * @return	Configuration file or null if the configuration is not stored in a file.
+	 */
+	public Path getFile() {
+		Storage storage = OS.os.getConfigStore(app.getName(), name);
+		if(storage instanceof FileStorage)
+			return ((FileStorage)storage).getPath();
+		else
+			return null;
+	}
+	
+	/**
+	 * Get the stamp of the files of the configuration: the configuration file and
+	 * the files named after it (like logs of journals), with their modification
+	 * time, size and file key.
+	 * @return	Files stamp or null if the configuration is not stored in a file.
+	 */
+	private Object stampFiles() {
+		Path path = getFile();
+		if(path == null)
+			return null;
+		File file = new File(path.toString()).getAbsoluteFile();
+		String base = file.getName();
+		TreeMap<String, Object> stamp = new TreeMap<String, Object>();
+		String[] names = file.getParentFile().list();
+		if(names != null)
+			for(String name: names)
+				if(name.equals(base) || name.startsWith(base + "."))
+					try {
+						BasicFileAttributes attrs = path.getParent().append(name).attributes();
+						stamp.put(name, Arrays.asList(attrs.lastModifiedTime(), attrs.size(), attrs.fileKey()));
+					} catch (IOException e) {
+					}
+		return stamp;
+	}
+	
+	/**
+	 * Load back the configuration after its store has been modified by another program.
+	 * Only the fields whose stored value differs from the current one are set, the fields
+	 * modified and not yet saved keeping their value; if the whole configuration is
+	 * modified (see {@link #modify()}), nothing is loaded back. The modifications of the
+	 * store by the writes of this configuration are ignored.
+	 * 
+	 * The store is parsed in the calling thread but, if there is a user interface,
+	 * the values are compared and set in its thread.
+	 * @throws IOException	In case of error.
+	 */
+	public void reload() throws IOException {
+		StructuredStore store = getStore();
+		if(!store.exists())
+			return;
+		Object current = stampFiles();
+		if(current != null && current.equals(stamp))
+			return;
+		HashSet<String> keep;
+		synchronized(this) {
+			if(modified || loadRunning)
+				return;
+			keep = new HashSet<String>(dirty);
+		}
+		final Map<String, Object> values = new AutoStructuredSerializer(store, object).loadValues(keep);
+		if(values.isEmpty())
+			return;
+		UI ui = OS.os.getUI();
+		if(ui == null)
+			apply(values);
+		else
+			ui.start(new UI.Task(0) {
+				@Override
+				public void run() {
+					apply(values);
+				}
+			});
+	}
+	
+	/**
+	 * Set the changed fields of the configuration object and inform the listeners of the
+	 * automatic configurations.
+	 * @param values	Stored fields with their value.
+	 */
+	void apply(Map<String, Object> values) {
+		synchronized(this) {
+			if(modified)
+				return;
+			values.keySet().removeAll(dirty);
+			try {
+				new AutoStructuredSerializer(getStore(), object).retainChanged(values);
+			} catch (IOException e) {
+				System.err.println("ERROR: cannot reload configuration " + name + ": " + e.getLocalizedMessage());
+				return;
+			}
+			for(Map.Entry<String, Object> change: values.entrySet()) {
+				Property prop = Property.field(object.getClass(), change.getKey());
+				if(prop != null && prop.isWritable())
+					prop.set(object, change.getValue());
+			}
+			stored = true;
+		}
+		if(!values.isEmpty() && object instanceof AutoConfiguration)
+			((AutoConfiguration)object).fireReload(values.keySet());
+	}
+	
+	/**
+	 * Save the current configuration if required. The configuration is
+	 * serialized directly to its store. If the configuration is being loaded,
+	 * wait for the end of the load to not overwrite its store (this
+	 * must not be called while holding the configuration monitor).
+	 */
+	public void save() throws IOException {
+		awaitLoad();
+		synchronized(lock) {
+			int gen;
+			HashSet<String> fields = null;
+			StructuredStore store = getStore();
+			synchronized(this) {
+				if(!isModified())
+					return;
+				gen = generation;
+				if(!modified && stored && store instanceof StructuredStore.Patchable)
+					fields = new HashSet<String>(dirty);
+			}
+			AutoStructuredSerializer serial = new AutoStructuredSerializer(store, object);
+			if(fields != null)
+				serial.save(fields);
+			else
+				serial.save();
+			stored = true;
+			stamp = stampFiles();
+			written(gen);
+		}
+	}
+	
+	/**
+	 * Take a snapshot of the configuration to save. It is taken by the auto-saver
+	 * in the modifying thread, consistently with the changes of the object; nothing
+	 * is taken while the configuration is loaded (the save being scheduled at the end of the load).
+	 * @return		Snapshot or null if there is nothing to save.
+	 * @throws IOException	In case of error.
+	 */
+	Snapshot snapshot() throws IOException {
+		synchronized(this) {
+			if(loadRunning || !isModified())
+				return null;
+			StructuredStore store = getStore();
+			AutoStructuredSerializer serial = new AutoStructuredSerializer(store, object);
+			Snapshot snap = new Snapshot();
+			snap.generation = generation;
+			if(!modified && stored && store instanceof StructuredStore.Patchable) {
+				snap.fields = new HashSet<String>(dirty);
+				snap.record = serial.record(snap.fields);
+			}
+			else
+				snap.record = serial.record();
+			return snap;
+		}
+	}
+	
+	/**
+	 * Write a snapshot to the store. If no modification has been done since
+	 * the snapshot, the configuration is no more considered as modified.
+	 * @param snap			Snapshot to write.
+	 * @throws IOException	In case of error.
+	 */
+	void write(Snapshot snap) throws IOException {
+		synchronized(lock) {
+			StructuredStore store = getStore();
+			StructuredStore.Save save = snap.fields != null
+				? ((StructuredStore.Patchable)store).patch()
+				: store.save();
+			boolean done = false;
+			try {
+				snap.record.replay(save);
+				done = true;
+			}
+			finally {
+				if(!done)
+					save.abort();
+			}
+			stored = true;
+			stamp = stampFiles();
+		}
+		written(snap.generation);
+	}
+	
+	/**
+	 * Called after a write: if no modification has been done since the given
+	 * generation, the configuration is no more considered as modified.
+	 * @param gen	Generation of the written state.
+	 */
+	private synchronized void written(int gen) {
+		if(generation == gen) {
+			modified = false;
+			dirty.clear();
+		}
+	}
+	
+	/**
+	 * Snapshot of a configuration.
+	 */
+	static class Snapshot {
+		SaveRecord record;
+		HashSet<String> fields;
+		int generation;
 	}
 }
 
@@ -0,0 +1,143 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.data;
+
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Template of the field accessors. This class is never used as is: {@link Property}
+ * defines a hidden copy of it for each field, whose class data is the list of the
+ * exact-typed handles (get, set, primitive get and primitive set, null if not available).
+ * As they are static and final, the handles are constants for the JIT compiler that
+ * reduces each accessor to the field access.
+ * @author casse
+ */
+final class FieldAccess implements Function<Object, Object>, BiConsumer<Object, Object>,
+ToIntFunction<Object>, ObjIntConsumer<Object>, ToLongFunction<Object>, ObjLongConsumer<Object>,
+ToDoubleFunction<Object>, ObjDoubleConsumer<Object> {
+	private static final MethodHandle GET, SET, PGET, PSET;
+	
+	static {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			GET = MethodHandles.classDataAt(lookup, ConstantDescs.DEFAULT_NAME, MethodHandle.class, 0);
+			SET = MethodHandles.classDataAt(lookup, ConstantDescs.DEFAULT_NAME, MethodHandle.class, 1);
+			PGET = MethodHandles.classDataAt(lookup, ConstantDescs.DEFAULT_NAME, MethodHandle.class, 2);
+			PSET = MethodHandles.classDataAt(lookup, ConstantDescs.DEFAULT_NAME, MethodHandle.class, 3);
+		} catch(IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	@Override
+	public Object apply(Object object) {
+		try {
+			return (Object)GET.invokeExact(object);
+		} catch(Throwable e) {
+			throw rethrow(e);
+		}
+	}
+	
+	@Override
+	public void accept(Object object, Object value) {
+		try {
+			SET.invokeExact(object, value);
+		} catch(Throwable e) {
+			throw rethrow(e);
+		}
+	}
+	
+	@Override
+	public int applyAsInt(Object object) {
+		try {
+			return (int)PGET.invokeExact(object);
+		} catch(Throwable e) {
+			throw rethrow(e);
+		}
+	}
+	
+	@Override
+	public void accept(Object object, int value) {
+		try {
+			PSET.invokeExact(object, value);
+		} catch(Throwable e) {
+			throw rethrow(e);
+		}
+	}
+	
+	@Override
+	public long applyAsLong(Object object) {
+		try {
+			return (long)PGET.invokeExact(object);
+		} catch(Throwable e) {
+			throw rethrow(e);
+		}
+	}
+	
+	@Override
+	public void accept(Object object, long value) {
+		try {
+			PSET.invokeExact(object, value);
+		} catch(Throwable e) {
+			throw rethrow(e);
+		}
+	}
+	
+	@Override
+	public double applyAsDouble(Object object) {
+		try {
+			return (double)PGET.invokeExact(object);
+		} catch(Throwable e) {
+			throw rethrow(e);
+		}
+	}
+	
+	@Override
+	public void accept(Object object, double value) {
+		try {
+			PSET.invokeExact(object, value);
+		} catch(Throwable e) {
+			throw rethrow(e);
+		}
+	}
+	
+	/**
+	 * Propagate unchecked exceptions (field accesses do not raise checked ones).
+	 * @param e		Caught exception.
+	 * @return		Exception to throw.
+	 */
+	static RuntimeException rethrow(Throwable e) {
+		if(e instanceof RuntimeException)
+			return (RuntimeException)e;
+		else if(e instanceof Error)
+			throw (Error)e;
+		else
+			return new IllegalStateException(e);
+	}
+
+}
@@ -0,0 +1,445 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Fast access to a property of the objects of a class: a field or a pair
+ * of get/set methods.
+ * 
+ * The accessors are built once per member and shared (see {@link #field(Class, String)},
+ * {@link #field(Field)} and {@link #methods(Method, Method)}). They are functional objects
+ * without reflection, access checks or, for the int, long and double properties, boxing.
+ * The method accessors are generated by {@link LambdaMetafactory}. As the lambda
+ * factory does not support field handles, the field accessors are hidden classes
+ * defined from the {@link FieldAccess} template, that invoke the field handles
+ * as constants.
+ * @author casse
+ */
+public final class Property {
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+	private static final ClassValue<ConcurrentHashMap<String, Property>> cache = new ClassValue<ConcurrentHashMap<String, Property>>() {
+		@Override protected ConcurrentHashMap<String, Property> computeValue(Class<?> type) { return new ConcurrentHashMap<String, Property>(); }
+	};
+	private static final Property NONE = new Property(null, null, null);
+	private static final byte[] template = readTemplate();
+	private final String name;
+	private final Class<?> type;
+	private final Type generic;
+	Function<Object, Object> getter;
+	BiConsumer<Object, Object> setter;
+	ToIntFunction<Object> intGetter;
+	ObjIntConsumer<Object> intSetter;
+	ToLongFunction<Object> longGetter;
+	ObjLongConsumer<Object> longSetter;
+	ToDoubleFunction<Object> doubleGetter;
+	ObjDoubleConsumer<Object> doubleSetter;
+	
+	/**
+	 * Build a property.
+	 * @param name		Property name.
+	 * @param type		Property type.
+	 * @param generic	Generic property type.
+	 */
+	private Property(String name, Class<?> type, Type generic) {
+		this.name = name;
+		this.type = type;
+		this.generic = generic;
+	}
+	
+	/**
+	 * Get the property for a field of a class (looked in the class and its super-classes).
+	 * @param clazz		Class of the objects.
+	 * @param name		Field name.
+	 * @return			Property or null if the field does not exist or cannot be accessed.
+	 */
+	public static Property field(Class<?> clazz, String name) {
+		for(Class<?> c = clazz; c != null; c = c.getSuperclass())
+			try {
+				return field(c.getDeclaredField(name));
+			} catch (NoSuchFieldException e) {
+			} catch (SecurityException e) {
+				return null;
+			}
+		return null;
+	}
+	
+	/**
+	 * Get the property for a field.
+	 * @param field		Accessed field.
+	 * @return			Property or null if the field cannot be accessed.
+	 */
+	public static Property field(Field field) {
+		ConcurrentHashMap<String, Property> map = cache.get(field.getDeclaringClass());
+		Property prop = map.get(field.getName());
+		if(prop == null) {
+			prop = makeField(field);
+			Property old = map.putIfAbsent(field.getName(), prop);
+			if(old != null)
+				prop = old;
+		}
+		return prop == NONE ? null : prop;
+	}
+	
+	/**
+	 * Get the property for a pair of get/set methods (at least one of them must be given).
+	 * @param getter	Getter method (null for a write-only property).
+	 * @param setter	Setter method (null for a read-only property).
+	 * @return			Property or null if the methods cannot be accessed.
+	 */
+	public static Property methods(Method getter, Method setter) {
+		ConcurrentHashMap<String, Property> map = cache.get((getter != null ? getter : setter).getDeclaringClass());
+		String key = (getter == null ? "" : getter.getName() + "()") + "/" + (setter == null ? "" : setter.getName());
+		Property prop = map.get(key);
+		if(prop == null) {
+			prop = makeMethods(getter, setter);
+			Property old = map.putIfAbsent(key, prop);
+			if(old != null)
+				prop = old;
+		}
+		return prop == NONE ? null : prop;
+	}
+	
+	/**
+	 * Build the property of a field.
+	 * @param field		Accessed field.
+	 * @return			Built property or NONE.
+	 */
+	private static Property makeField(Field field) {
+		Property prop = new Property(field.getName(), field.getType(), field.getGenericType());
+		try {
+			field.setAccessible(true);
+		} catch (RuntimeException e) {
+			// inaccessible module: let the lookup decide
+		}
+		try {
+			boolean writable = (field.getModifiers() & Modifier.FINAL) == 0;
+			MethodHandle get = lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class)),
+				set = writable ? lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class)) : null,
+				pget = null, pset = null;
+			if(prop.type == int.class || prop.type == long.class || prop.type == double.class) {
+				pget = lookup.unreflectGetter(field).asType(MethodType.methodType(prop.type, Object.class));
+				if(writable)
+					pset = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, prop.type));
+			}
+			Object access = defineAccess(field, get, set, pget, pset);
+			prop.getter = bind(Function.class, access, get);
+			prop.setter = bind(BiConsumer.class, access, set);
+			if(prop.type == int.class) {
+				prop.intGetter = bind(ToIntFunction.class, access, pget);
+				prop.intSetter = bind(ObjIntConsumer.class, access, pset);
+			}
+			else if(prop.type == long.class) {
+				prop.longGetter = bind(ToLongFunction.class, access, pget);
+				prop.longSetter = bind(ObjLongConsumer.class, access, pset);
+			}
+			else if(prop.type == double.class) {
+				prop.doubleGetter = bind(ToDoubleFunction.class, access, pget);
+				prop.doubleSetter = bind(ObjDoubleConsumer.class, access, pset);
+			}
+			return prop;
+		} catch (IllegalAccessException e) {
+			System.err.println("ERROR: cannot access field " + field.getName() + ": " + e.getLocalizedMessage());
+			return NONE;
+		}
+	}
+	
+	/**
+	 * Define the hidden accessor class of a field (see {@link FieldAccess}).
+	 * @param field		Accessed field.
+	 * @param handles	Handles of the field (get, set, primitive get, primitive set).
+	 * @return			Accessor object or null if it cannot be defined.
+	 */
+	private static Object defineAccess(Field field, MethodHandle... handles) {
+		if(template == null)
+			return null;
+		try {
+			MethodHandles.Lookup hidden = lookup.defineHiddenClassWithClassData(template,
+				Collections.unmodifiableList(Arrays.asList(handles)), true);
+			return hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+		} catch (Throwable e) {
+			System.err.println("ERROR: cannot define the accessor of field " + field.getName() + ": " + e.getLocalizedMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Get the accessor of a field as a functional object. Without hidden accessor,
+	 * the handle is wrapped in a proxy (much slower).
+	 * @param iface		Functional interface.
+	 * @param access	Hidden accessor (may be null).
+	 * @param handle	Handle of the access (null if not available).
+	 * @return			Functional object or null if the handle is null.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T bind(Class<?> iface, Object access, MethodHandle handle) {
+		if(handle == null)
+			return null;
+		else if(access != null)
+			return (T)access;
+		else
+			return (T)MethodHandleProxies.asInterfaceInstance(iface, handle);
+	}
+	
+	/**
+	 * Read the class file of the {@link FieldAccess} template.
+	 * @return	Class file or null if it cannot be read.
+	 */
+	private static byte[] readTemplate() {
+		InputStream in = Property.class.getResourceAsStream("FieldAccess.class");
+		if(in == null) {
+			System.err.println("ERROR: field accessor template not found: the field properties will be slow.");
+			return null;
+		}
+		try {
+			try {
+				return in.readAllBytes();
+			}
+			finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("ERROR: cannot read field accessor template: " + e.getLocalizedMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Build the property of a pair of methods.
+	 * @param get		Getter method (may be null).
+	 * @param set		Setter method (may be null).
+	 * @return			Built property or NONE.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Property makeMethods(Method get, Method set) {
+		Class<?> type, owner;
+		Property prop;
+		if(get != null) {
+			type = get.getReturnType();
+			owner = get.getDeclaringClass();
+			prop = new Property(get.getName(), type, get.getGenericReturnType());
+		}
+		else {
+			type = set.getParameterTypes()[0];
+			owner = set.getDeclaringClass();
+			prop = new Property(set.getName(), type, set.getGenericParameterTypes()[0]);
+		}
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(owner, Property.lookup);
+			Class<?> boxed = MethodType.methodType(type).wrap().returnType();
+			if(get != null) {
+				MethodHandle gh = lookup.unreflect(get);
+				prop.getter = (Function<Object, Object>)lambda(lookup, Function.class, "apply",
+					MethodType.methodType(Object.class, Object.class), gh, MethodType.methodType(boxed, owner));
+				if(type == int.class)
+					prop.intGetter = (ToIntFunction<Object>)lambda(lookup, ToIntFunction.class, "applyAsInt",
+						MethodType.methodType(int.class, Object.class), gh, MethodType.methodType(int.class, owner));
+				else if(type == long.class)
+					prop.longGetter = (ToLongFunction<Object>)lambda(lookup, ToLongFunction.class, "applyAsLong",
+						MethodType.methodType(long.class, Object.class), gh, MethodType.methodType(long.class, owner));
+				else if(type == double.class)
+					prop.doubleGetter = (ToDoubleFunction<Object>)lambda(lookup, ToDoubleFunction.class, "applyAsDouble",
+						MethodType.methodType(double.class, Object.class), gh, MethodType.methodType(double.class, owner));
+			}
+			if(set != null) {
+				MethodHandle sh = lookup.unreflect(set);
+				prop.setter = (BiConsumer<Object, Object>)lambda(lookup, BiConsumer.class, "accept",
+					MethodType.methodType(void.class, Object.class, Object.class), sh, MethodType.methodType(void.class, owner, boxed));
+				if(type == int.class)
+					prop.intSetter = (ObjIntConsumer<Object>)lambda(lookup, ObjIntConsumer.class, "accept",
+						MethodType.methodType(void.class, Object.class, int.class), sh, MethodType.methodType(void.class, owner, int.class));
+				else if(type == long.class)
+					prop.longSetter = (ObjLongConsumer<Object>)lambda(lookup, ObjLongConsumer.class, "accept",
+						MethodType.methodType(void.class, Object.class, long.class), sh, MethodType.methodType(void.class, owner, long.class));
+				else if(type == double.class)
+					prop.doubleSetter = (ObjDoubleConsumer<Object>)lambda(lookup, ObjDoubleConsumer.class, "accept",
+						MethodType.methodType(void.class, Object.class, double.class), sh, MethodType.methodType(void.class, owner, double.class));
+			}
+			return prop;
+		} catch (Throwable e) {
+			System.err.println("ERROR: cannot access property " + prop.name + ": " + e.getLocalizedMessage());
+			return NONE;
+		}
+	}
+	
+	/**
+	 * Generate a functional object calling a method.
+	 * @param lookup		Lookup with private access to the method class.
+	 * @param iface			Functional interface.
+	 * @param sam			Name of the interface method.
+	 * @param samType		Erased type of the interface method.
+	 * @param impl			Handle of the called method.
+	 * @param type			Actual type of the interface method.
+	 * @return				Functional object.
+	 * @throws Throwable	If the object cannot be generated.
+	 */
+	private static Object lambda(MethodHandles.Lookup lookup, Class<?> iface, String sam, MethodType samType, MethodHandle impl, MethodType type) throws Throwable {
+		CallSite site = LambdaMetafactory.metafactory(lookup, sam, MethodType.methodType(iface), samType, impl, type);
+		return site.getTarget().invoke();
+	}
+	
+	/**
+	 * Get the property name.
+	 * @return	Property name.
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Get the property type.
+	 * @return	Property type.
+	 */
+	public Class<?> getType() {
+		return type;
+	}
+	
+	/**
+	 * Get the generic type of the property.
+	 * @return	Generic type.
+	 */
+	public Type getGenericType() {
+		return generic;
+	}
+	
+	/**
+	 * Test if the property can be got.
+	 * @return	True if it can be got, false else.
+	 */
+	public boolean isReadable() {
+		return getter != null;
+	}
+	
+	/**
+	 * Test if the property can be set.
+	 * @return	True if it can be set, false else.
+	 */
+	public boolean isWritable() {
+		return setter != null;
+	}
+	
+	/**
+	 * Get the value of the property.
+	 * @param object	Object to get value from.
+	 * @return			Property value.
+	 */
+	public Object get(Object object) {
+		if(getter == null)
+			throw new UnsupportedOperationException("property " + name + " is write-only");
+		return getter.apply(object);
+	}
+	
+	/**
+	 * Set the value of the property.
+	 * @param object	Object to set value to.
+	 * @param value		Set value.
+	 */
+	public void set(Object object, Object value) {
+		if(setter == null)
+			throw new UnsupportedOperationException("property " + name + " is read-only");
+		setter.accept(object, value);
+	}
+	
+	/**
+	 * Get the generic getter.
+	 * @return	Getter (boxing the primitive values) or null if the property is write-only.
+	 */
+	public Function<Object, Object> getter() {
+		return getter;
+	}
+	
+	/**
+	 * Get the generic setter.
+	 * @return	Setter (unboxing the primitive values) or null if the property is read-only.
+	 */
+	public BiConsumer<Object, Object> setter() {
+		return setter;
+	}
+	
+	/**
+	 * Get the getter of an int property.
+	 * @return	Getter or null if the property is not a readable int.
+	 */
+	public ToIntFunction<Object> intGetter() {
+		return intGetter;
+	}
+	
+	/**
+	 * Get the setter of an int property.
+	 * @return	Setter or null if the property is not a writable int.
+	 */
+	public ObjIntConsumer<Object> intSetter() {
+		return intSetter;
+	}
+	
+	/**
+	 * Get the getter of a long property.
+	 * @return	Getter or null if the property is not a readable long.
+	 */
+	public ToLongFunction<Object> longGetter() {
+		return longGetter;
+	}
+	
+	/**
+	 * Get the setter of a long property.
+	 * @return	Setter or null if the property is not a writable long.
+	 */
+	public ObjLongConsumer<Object> longSetter() {
+		return longSetter;
+	}
+	
+	/**
+	 * Get the getter of a double property.
+	 * @return	Getter or null if the property is not a readable double.
+	 */
+	public ToDoubleFunction<Object> doubleGetter() {
+		return doubleGetter;
+	}
+	
+	/**
+	 * Get the setter of a double property.
+	 * @return	Setter or null if the property is not a writable double.
+	 */
+	public ObjDoubleConsumer<Object> doubleSetter() {
+		return doubleSetter;
+	}
+
+}
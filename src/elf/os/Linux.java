@@ -63,7 +63,7 @@ public class Linux extends OS {
 			} catch (IOException e) {
 				System.err.println("ERROR: cannot access the configuration directory: " + e.getLocalizedMessage());
 			}
-		return new FileStorage(app_path.append(ressource));
+		return new FileStorage(app_path.append(ressource), true);
 	}
 
 	@Override
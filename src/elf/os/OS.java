@@ -72,7 +72,7 @@ public class OS {
 	public Storage getConfigStore(String app, String ressource) {
 		if(config_path == null)
 			config_path = new Path(System.getProperty("user.home"));
-		return new FileStorage(config_path + File.separator + app + File.separator + ressource);
+		return new FileStorage(new Path(config_path + File.separator + app + File.separator + ressource), true);
 	}
 	
 	/**
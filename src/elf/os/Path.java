@@ -23,6 +23,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import elf.store.Storage;
 
 /**
  * Path management (easier than the original Java file class).
@@ -83,6 +93,49 @@ public class Path {
 		return file.exists();
 	}
 	
+	/**
+	 * Get the last modification time of the file.
+	 * @return		Modification time (in ms since the epoch, 0 if the file does not exist).
+	 */
+	public long lastModified() {
+		return file.lastModified();
+	}
+	
+	/**
+	 * Get the size of the file.
+	 * @return		File size in bytes (0 if the file does not exist).
+	 */
+	public long size() {
+		return file.length();
+	}
+	
+	/**
+	 * Get the attributes of the file (with the full resolution of the file system
+	 * for the times, and the file key identifying the file on the disk, if available).
+	 * @return				File attributes.
+	 * @throws IOException	If the file does not exist or cannot be accessed.
+	 */
+	public BasicFileAttributes attributes() throws IOException {
+		return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+	}
+	
+	/**
+	 * Delete the file (if it exists).
+	 * @throws IOException	If the file cannot be deleted.
+	 */
+	public void delete() throws IOException {
+		Files.deleteIfExists(file.toPath());
+	}
+	
+	/**
+	 * Get the canonical form of the path (absolute and without links).
+	 * @return				Canonical path.
+	 * @throws IOException	If the path cannot be resolved.
+	 */
+	public String getCanonical() throws IOException {
+		return file.getCanonicalPath();
+	}
+	
 	/**
 	 * Build the current path as a directory, possibly building
 	 * missing sub-directories.
@@ -110,10 +163,240 @@ public class Path {
 	public OutputStream write() throws IOException {
 		return new FileOutputStream(file);		
 	}
+	
+	/**
+	 * Open a channel on the file for positioned reads.
+	 * @return					Open channel.
+	 * @throws IOException		Thrown in case of error.
+	 */
+	public FileChannel readChannel() throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+	
+	/**
+	 * Open a channel on the file for positioned writes (the file is created
+	 * if it does not exist).
+	 * @return					Open channel.
+	 * @throws IOException		Thrown in case of error.
+	 */
+	public FileChannel writeChannel() throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	}
+	
+	/**
+	 * Map the file in memory for reading. The content is read on demand from
+	 * the OS page cache, without being copied in the Java heap.
+	 * @return					Read-only mapped buffer.
+	 * @throws IOException		Thrown in case of error.
+	 */
+	public MappedByteBuffer map() throws IOException {
+		FileChannel channel = readChannel();
+		try {
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException("file too big to be mapped: " + this);
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Get output to write the file atomically: the data is written to a temporary
+	 * file that replaces the file only when the stream is closed, after being
+	 * forced to the disk. If an error arises during the write, the file is left
+	 * unchanged. A write abandoned by the caller must be aborted (see {@link Storage#abort(OutputStream)}):
+	 * closing the stream commits the write.
+	 * @param backup			True to keep the previous version of the file as backup.
+	 * @return					Open output stream.
+	 * @throws IOException		Thrown in case of error.
+	 */
+	public OutputStream writeAtomic(boolean backup) throws IOException {
+		return new AtomicOutputStream(backup);
+	}
+	
+	/**
+	 * Get the path of the backup of the file.
+	 * @return	Backup path.
+	 */
+	public Path getBackup() {
+		return new Path(file.getPath() + "~");
+	}
+	
+	/**
+	 * Restore the file from its backup (if any).
+	 * @return				True if the file has been restored, false else.
+	 * @throws IOException	Thrown in case of error.
+	 */
+	public boolean rollback() throws IOException {
+		File back = getBackup().file;
+		if(!back.exists())
+			return false;
+		move(back, file);
+		return true;
+	}
+	
+	/**
+	 * Move atomically a file (if supported by the file system).
+	 * @param from			Moved file.
+	 * @param to			Target file.
+	 * @throws IOException	Thrown in case of error.
+	 */
+	private static void move(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
 
 	@Override
 	public String toString() {
 		return file.toString();
 	}
 	
+	/**
+	 * Output stream performing an atomic write of the file.
+	 * @author casse
+	 */
+	private class AtomicOutputStream extends OutputStream implements Storage.Abortable {
+		private final boolean backup;
+		private final File tmp;
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocate(8192);
+		private IOException failure;
+		private boolean closed = false;
+		
+		public AtomicOutputStream(boolean backup) throws IOException {
+			this.backup = backup;
+			File dir = file.getAbsoluteFile().getParentFile();
+			tmp = File.createTempFile("." + file.getName() + ".", ".tmp", dir);
+			try {
+				channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			} catch(IOException e) {
+				tmp.delete();
+				throw e;
+			}
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if(!buf.hasRemaining())
+				drain();
+			buf.put((byte)b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				if(!buf.hasRemaining())
+					drain();
+				int n = Math.min(len, buf.remaining());
+				buf.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			drain();
+		}
+		
+		/**
+		 * Write the buffer content to the channel.
+		 * @throws IOException	Thrown in case of error.
+		 */
+		private void drain() throws IOException {
+			if(failure != null)
+				throw failure;
+			buf.flip();
+			try {
+				while(buf.hasRemaining())
+					channel.write(buf);
+			} catch(IOException e) {
+				fail(e);
+				throw e;
+			} finally {
+				buf.clear();
+			}
+		}
+		
+		@Override
+		public void abort() {
+			if(closed)
+				return;
+			closed = true;
+			if(failure == null)
+				fail(new IOException("write of " + file + " aborted"));
+		}
+		
+		/**
+		 * Abandon the write after an error: the temporary file is removed
+		 * at once (the file being left unchanged).
+		 * @param e		Write error.
+		 */
+		private void fail(IOException e) {
+			failure = e;
+			try {
+				channel.close();
+			} catch(IOException x) {
+			}
+			tmp.delete();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if(closed)
+				return;
+			closed = true;
+			if(failure != null)
+				throw failure;
+			try {
+				drain();
+				channel.force(true);
+				channel.close();
+			} catch(IOException e) {
+				if(failure == null)
+					fail(e);
+				throw e;
+			}
+			try {
+				if(backup && file.exists()) {
+					File back = getBackup().file;
+					Files.deleteIfExists(back.toPath());
+					try {
+						Files.createLink(back.toPath(), file.toPath());
+					} catch(IOException e) {
+						Files.copy(file.toPath(), back.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					} catch(UnsupportedOperationException e) {
+						Files.copy(file.toPath(), back.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					}
+				}
+				move(tmp, file);
+			} catch(IOException e) {
+				tmp.delete();
+				throw e;
+			}
+			syncDir(tmp.getAbsoluteFile().getParentFile());
+		}
+		
+		/**
+		 * Force the directory entries to the disk (not supported by all systems).
+		 * @param dir	Directory to force.
+		 */
+		private void syncDir(File dir) {
+			try {
+				FileChannel dchan = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+				try {
+					dchan.force(true);
+				} finally {
+					dchan.close();
+				}
+			} catch(IOException e) {
+				// not supported
+			}
+		}
+	}
+
 }
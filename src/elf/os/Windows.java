@@ -49,7 +49,7 @@ public class Windows extends OS {
 			} catch (IOException e) {
 				System.err.println("ERROR: cannot access the configuration directory: " + e.getLocalizedMessage());
 			}
-		return new FileStorage(app_path.append(ressource));
+		return new FileStorage(app_path.append(ressource), true);
 	}
 
 	@Override
@@ -18,20 +18,96 @@
 package elf.store;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.RecordComponent;
 import java.lang.reflect.Type;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import elf.data.Property;
 
 /**
  * Automatically serialize a datastructure to a structured store.
+ * 
+ * The way to serialize a class (fields, types, accessors) is computed only once
+ * in a plan that is shared by all the serializers. Besides the values supported by
+ * the store (including enumerated types), the arrays, the collections and the objects
+ * with public fields, the maps are saved as lists of key/value structures and the
+ * records as structures of their components, built back by their canonical constructor.
+ * The collections and maps are created with the item count as capacity when the store
+ * gives it.
+ * 
+ * By default, an object referenced several times is saved at each reference
+ * and the cyclic graphs are rejected. In identity mode (see {@link #setIdentity(boolean)}),
+ * each structure starts with an identifier field and the next references to the same
+ * object are saved as back-references, resolved at load time to the same object.
+ * The identifiers are numbered per field of the top object, so that the patches
+ * of some fields keep consistent. Only the objects saved as structures are tracked
+ * and the load must use the same mode as the save.
+ * 
+ * In parallel mode (see {@link #setParallel(ForkJoinPool)}), the big lists are split
+ * in chunks serialized by the tasks of a fork-join pool in forked saves (see
+ * {@link StructuredStore.Save#fork()}) then spliced in order. If the store supports it
+ * (see {@link StructuredStore.Load#splitList(int, int)}), the big lists are also loaded
+ * in parallel. The parallel mode is ignored in identity mode.
  * @author casse
  */
 public class AutoStructuredSerializer {
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+	private static final MethodType
+		CONSTRUCTOR_TYPE = MethodType.methodType(Object.class),
+		SIZED_CONSTRUCTOR_TYPE = MethodType.methodType(Object.class, int.class),
+		RECORD_CONSTRUCTOR_TYPE = MethodType.methodType(Object.class, Object[].class);
+	public static final String
+		ID_FIELD = "elf-id",
+		REF_FIELD = "elf-ref",
+		TOP_REF = "/",
+		KEY_FIELD = "key",
+		VALUE_FIELD = "value";
+	static final int TRACK_DEPTH = 64;
+	public static final int PARALLEL_THRESHOLD = 4096;
+	private static final ClassValue<Plan> plans = new ClassValue<Plan>() {
+		@Override protected Plan computeValue(Class<?> type) { return new Plan(type); }
+	};
+	private static final ClassValue<Data> datas = new ClassValue<Data>() {
+		@Override protected Data computeValue(Class<?> type) { return Data.make(type); }
+	};
 	StructuredStore store;
 	Object object;
+	HashMap<String, ItemHandler> handlers;
+	boolean identity;
+	IdentityHashMap<Object, Ref> refs;
+	IdentityHashMap<Object, Object> path;
+	HashMap<String, HashMap<Integer, Object>> objects;
+	String scope;
+	int next, depth;
+	ForkJoinPool pool;
 	
 	/**
 	 * Test if the field is an instance accessible field.
@@ -53,56 +129,405 @@ public class AutoStructuredSerializer {
 		this.object = object;
 	}
 	
+	/**
+	 * In the following loads, deliver the items of the given list field (collection
+	 * or array) of the object to the handler instead of storing them in the object.
+	 * The items are loaded one by one so that, if the store supports it,
+	 * the whole list is never in memory.
+	 * @param field		Name of the list field.
+	 * @param handler	Handler to call for each item (null to stop streaming the field).
+	 */
+	public void stream(String field, ItemHandler handler) {
+		if(handler == null) {
+			if(handlers != null)
+				handlers.remove(field);
+		}
+		else {
+			if(handlers == null)
+				handlers = new HashMap<String, ItemHandler>();
+			handlers.put(field, handler);
+		}
+	}
+	
+	/**
+	 * Set the identity mode: the objects referenced several times are saved once
+	 * and the cyclic graphs are supported.
+	 * @param identity	True to enable identity mode, false else.
+	 */
+	public void setIdentity(boolean identity) {
+		this.identity = identity;
+	}
+	
+	/**
+	 * Set the parallel mode: the lists of more than {@link #PARALLEL_THRESHOLD} items
+	 * are saved and loaded by the tasks of the given pool.
+	 * @param pool	Pool to use (null to disable parallel mode).
+	 */
+	public void setParallel(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
 	/**
 	 * Save the object.
 	 */
 	public void save() throws IOException {
-		StructuredStore.Save save = store.save();
-		saveFields(save, object);
-		save.end();
+		save(store.save(), null);
+	}
+	
+	/**
+	 * Save only the given fields of the object. The store must be patchable.
+	 * @param fields			Names of the fields to save.
+	 * @throws IOException		In case of error.
+	 */
+	public void save(Collection<String> fields) throws IOException {
+		if(!(store instanceof StructuredStore.Patchable))
+			throw new IOException("store does not support partial save");
+		save(((StructuredStore.Patchable)store).patch(), fields);
+	}
+	
+	/**
+	 * Record the object in memory (as it would be saved in the store)
+	 * to save it later.
+	 * @return					Recorded save.
+	 * @throws IOException		In case of error.
+	 */
+	public SaveRecord record() throws IOException {
+		SaveRecord record = new SaveRecord();
+		save(record, null);
+		return record;
+	}
+	
+	/**
+	 * Record in memory only the given fields of the object.
+	 * @param fields			Names of the fields to record.
+	 * @return					Recorded save.
+	 * @throws IOException		In case of error.
+	 */
+	public SaveRecord record(Collection<String> fields) throws IOException {
+		SaveRecord record = new SaveRecord();
+		save(record, fields);
+		return record;
+	}
+	
+	/**
+	 * Save the object.
+	 * @param save				Save to use.
+	 * @param fields			Names of the fields to save (null for all fields).
+	 * @throws IOException		In case of error.
+	 */
+	private void save(StructuredStore.Save save, Collection<String> fields) throws IOException {
+		depth = 0;
+		if(identity) {
+			refs = new IdentityHashMap<Object, Ref>();
+			refs.put(object, new Ref(null, 0));
+		}
+		boolean done = false;
+		try {
+			for(FieldPlan field: plans.get(object.getClass()).fields)
+				if(fields == null || fields.contains(field.name)) {
+					scope = field.name;
+					next = 0;
+					saveField(save, field, object);
+				}
+			save.end();
+			done = true;
+		}
+		finally {
+			refs = null;
+			path = null;
+			if(!done)
+				save.abort();
+		}
 	}
 	
 	/**
 	 * Save the fields of the current object.
 	 * @param save				Store to save to.
+	 * @param plan				Plan of the object class.
 	 * @param object			Object to save.
 	 * @throws IOException		In case of error.
 	 */
-	private void saveFields(StructuredStore.Save save, Object object) throws IOException {
-		for(Field field: object.getClass().getDeclaredFields()) {
-			if(isInstanceField(field)) {
-				try {
-					Object value = field.get(object);
-					save.putField(field.getName());
-					saveData(save, value);
-				} catch (IllegalArgumentException e) {
-					e.printStackTrace();
-				} catch (IllegalAccessException e) {
-					e.printStackTrace();
-				}
+	private void saveFields(StructuredStore.Save save, Plan plan, Object object) throws IOException {
+		for(FieldPlan field: plan.fields)
+			saveField(save, field, object);
+	}
+	
+	/**
+	 * Save a field of an object (nothing is saved for a null field).
+	 * @param save				Store to save to.
+	 * @param field				Plan of the field.
+	 * @param object			Object containing the field.
+	 * @throws IOException		In case of error.
+	 */
+	private void saveField(StructuredStore.Save save, FieldPlan field, Object object) throws IOException {
+		switch(field.prim) {
+		case FieldPlan.P_INT:
+			save.putField(field.name);
+			save.putInt(field.getInt(object));
+			break;
+		case FieldPlan.P_LONG:
+			save.putField(field.name);
+			save.putLong(field.getLong(object));
+			break;
+		case FieldPlan.P_DOUBLE:
+			save.putField(field.name);
+			save.putDouble(field.getDouble(object));
+			break;
+		default:
+			Object value = field.get(object);
+			if(value != null) {
+				save.putField(field.name);
+				saveData(save, field.data, value);
 			}
+			break;
 		}
 	}
 	
+	/**
+	 * Save a datum whose description depends on its actual class.
+	 * @param save		Store to save to.
+	 * @param object	Value to save.
+	 */
+	private void saveAny(StructuredStore.Save save, Object object) throws IOException {
+		Data actual = datas.get(object.getClass());
+		if(actual.kind == Data.ANY)
+			saveStruct(save, object);
+		else
+			saveData(save, actual, object);
+	}
+	
 	/**
 	 * Save a datum.
 	 * @param save		Store to save to.
+	 * @param data		Description of the datum type.
 	 * @param object	Value to save.
 	 */
-	private void saveData(StructuredStore.Save save, Object object) throws IOException {
-		if(store.supports(object.getClass()))
-			save.put(object);
-		else if(object instanceof Collection<?>) {
+	private void saveData(StructuredStore.Save save, Data data, Object object) throws IOException {
+		switch(data.kind) {
+		case Data.VALUE:
+			if(store.supports(data.clazz))
+				save.put(object);
+			else
+				saveAny(save, object);
+			break;
+		case Data.ANY:
+			saveAny(save, object);
+			break;
+		case Data.ARRAY:
+			if(object instanceof int[])
+				save.putArray((int[])object);
+			else if(object instanceof long[])
+				save.putArray((long[])object);
+			else if(object instanceof double[])
+				save.putArray((double[])object);
+			else if(parallel(Array.getLength(object)) && object instanceof Object[])
+				saveParallel(save, data.item, (Object[])object);
+			else {
+				save.putList();
+				for(int i = 0, n = Array.getLength(object); i < n; i++)
+					saveData(save, data.item, Array.get(object, i));
+				save.end();
+			}
+			break;
+		case Data.COLLECTION:
+			if(savePacked(save, data.item.clazz, (Collection<?>)object))
+				break;
+			if(parallel(((Collection<?>)object).size())) {
+				saveParallel(save, data.item, ((Collection<?>)object).toArray());
+				break;
+			}
 			save.putList();
 			for(Object item: ((Collection<?>)object))
-				saveData(save, item);
+				saveData(save, data.item, item);
 			save.end();
+			break;
+		case Data.MAP:
+			save.putList();
+			for(Map.Entry<?, ?> entry: ((Map<?, ?>)object).entrySet()) {
+				save.putStruct();
+				if(entry.getKey() != null) {
+					save.putField(KEY_FIELD);
+					saveData(save, data.key, entry.getKey());
+				}
+				if(entry.getValue() != null) {
+					save.putField(VALUE_FIELD);
+					saveData(save, data.item, entry.getValue());
+				}
+				save.end();
+			}
+			save.end();
+			break;
+		case Data.RECORD:
+			save.putStruct();
+			for(int i = 0; i < data.names.length; i++) {
+				Object value = data.component(i, object);
+				if(value != null) {
+					save.putField(data.names[i]);
+					saveData(save, data.component(i), value);
+				}
+			}
+			save.end();
+			break;
+		case Data.STRUCT:
+			saveStruct(save, object);
+			break;
+		}
+	}
+	
+	/**
+	 * Test if a list has to be processed in parallel.
+	 * @param size	List size.
+	 * @return		True for parallel processing, false else.
+	 */
+	private boolean parallel(int size) {
+		return pool != null && !identity && size >= PARALLEL_THRESHOLD;
+	}
+	
+	/**
+	 * Build a serializer to process a part of the current object in another thread.
+	 * @return	Worker serializer.
+	 */
+	private AutoStructuredSerializer worker() {
+		AutoStructuredSerializer worker = new AutoStructuredSerializer(store, object);
+		worker.depth = depth;
+		worker.scope = scope;
+		if(path != null)
+			worker.path = new IdentityHashMap<Object, Object>(path);
+		return worker;
+	}
+	
+	/**
+	 * Wait for the end of a task.
+	 * @param task			Task to wait for.
+	 * @return				Task result.
+	 * @throws IOException	Error raised by the task.
+	 */
+	private static <T> T join(ForkJoinTask<T> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			else if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			else if(e.getCause() instanceof Error)
+				throw (Error)e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Save a list in parallel: the items are split in chunks saved by the tasks
+	 * of the pool in forked saves, spliced in order in the list.
+	 * @param save		Store to save to.
+	 * @param data		Description of the item type.
+	 * @param items		Items to save.
+	 */
+	private void saveParallel(StructuredStore.Save save, final Data data, final Object[] items) throws IOException {
+		int parts = pool.getParallelism() * 4;
+		ArrayList<ForkJoinTask<StructuredStore.Save>> tasks = new ArrayList<ForkJoinTask<StructuredStore.Save>>(parts);
+		for(int p = 0; p < parts; p++) {
+			final int first = (int)((long)p * items.length / parts), last = (int)((long)(p + 1) * items.length / parts);
+			final StructuredStore.Save fork = save.fork();
+			final AutoStructuredSerializer worker = worker();
+			tasks.add(pool.submit(new Callable<StructuredStore.Save>() {
+				@Override
+				public StructuredStore.Save call() throws IOException {
+					for(int i = first; i < last; i++)
+						worker.saveData(fork, data, items[i]);
+					return fork;
+				}
+			}));
+		}
+		save.putList();
+		for(ForkJoinTask<StructuredStore.Save> task: tasks)
+			save.splice(join(task));
+		save.end();
+	}
+	
+	/**
+	 * Save a collection of integers, long integers or doubles as a packed array.
+	 * @param save		Store to save to.
+	 * @param item		Item class.
+	 * @param coll		Saved collection.
+	 * @return			True if the collection has been saved, false if it cannot be packed
+	 * 					(other item type or null items).
+	 */
+	private static boolean savePacked(StructuredStore.Save save, Class<?> item, Collection<?> coll) throws IOException {
+		if(item != Integer.class && item != Long.class && item != Double.class)
+			return false;
+		int i = 0;
+		if(item == Integer.class) {
+			int[] a = new int[coll.size()];
+			for(Object v: coll)
+				if(v == null)
+					return false;
+				else
+					a[i++] = (Integer)v;
+			save.putArray(a);
+		}
+		else if(item == Long.class) {
+			long[] a = new long[coll.size()];
+			for(Object v: coll)
+				if(v == null)
+					return false;
+				else
+					a[i++] = (Long)v;
+			save.putArray(a);
 		}
 		else {
+			double[] a = new double[coll.size()];
+			for(Object v: coll)
+				if(v == null)
+					return false;
+				else
+					a[i++] = (Double)v;
+			save.putArray(a);
+		}
+		return true;
+	}
+	
+	/**
+	 * Save an object as a structure.
+	 * @param save		Store to save to.
+	 * @param object	Object to save.
+	 */
+	private void saveStruct(StructuredStore.Save save, Object object) throws IOException {
+		if(refs != null) {
+			Ref ref = refs.get(object);
+			if(ref != null) {
+				save.putStruct();
+				save.putField(REF_FIELD);
+				save.put(ref.toString(scope));
+				save.end();
+				return;
+			}
+			ref = new Ref(scope, next++);
+			refs.put(object, ref);
 			save.putStruct();
-			saveFields(save, object);
-			save.end();
+			save.putField(ID_FIELD);
+			save.putInt(ref.id);
 		}
+		else {
+			
+			// deep structure: look for cycles
+			if(depth >= TRACK_DEPTH) {
+				if(path == null)
+					path = new IdentityHashMap<Object, Object>();
+				if(path.put(object, object) != null)
+					throw new IOException("cyclic reference to " + object.getClass().getName() + " (see identity mode)");
+			}
+			save.putStruct();
+		}
+		depth++;
+		saveFields(save, plans.get(object.getClass()), object);
+		depth--;
+		if(path != null && depth >= TRACK_DEPTH)
+			path.remove(object);
+		save.end();
 	}
 	
 	/**
@@ -111,131 +536,821 @@ public class AutoStructuredSerializer {
 	 */
 	public void load() throws IOException {
 		StructuredStore.Load load = store.load();
-		loadFields(load, object);
+		if(identity)
+			objects = new HashMap<String, HashMap<Integer, Object>>();
+		try {
+			loadFields(load, plans.get(object.getClass()), object);
+		}
+		finally {
+			objects = null;
+		}
 		load.end();
-		
+	
 	}
 
+	/**
+	 * Load the stored values of the fields without modifying the object
+	 * (see {@link #retainChanged(Map)} to select the changed ones).
+	 * @param skip				Names of the fields to ignore (may be null).
+	 * @return					Stored fields with their value (primitive values are boxed),
+	 * 							in declaration order.
+	 * @throws IOException		In case of error.
+	 */
+	public LinkedHashMap<String, Object> loadValues(Collection<String> skip) throws IOException {
+		LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+		StructuredStore.Load load = store.load();
+		if(identity)
+			objects = new HashMap<String, HashMap<Integer, Object>>();
+		try {
+			for(FieldPlan field: plans.get(object.getClass()).fields)
+				if((skip == null || !skip.contains(field.name)) && load.getField(field.name)) {
+					scope = field.name;
+					Object value;
+					switch(field.prim) {
+					case FieldPlan.P_INT:
+						value = load.getInt();
+						break;
+					case FieldPlan.P_LONG:
+						value = load.getLong();
+						break;
+					case FieldPlan.P_DOUBLE:
+						value = load.getDouble();
+						break;
+					default:
+						value = loadData(load, field.data);
+						break;
+					}
+					values.put(field.name, value);
+				}
+		}
+		finally {
+			objects = null;
+		}
+		load.end();
+		return values;
+	}
+	
+	/**
+	 * Remove from field values (as got by {@link #loadValues(Collection)}) the ones
+	 * that are the same as the current values of the object. The values are compared
+	 * by equality or else by their serialized form.
+	 * @param values			Field values to select from.
+	 * @throws IOException		If a field of the object cannot be read.
+	 */
+	public void retainChanged(Map<String, Object> values) throws IOException {
+		for(FieldPlan field: plans.get(object.getClass()).fields)
+			if(values.containsKey(field.name) && same(field.data, field.get(object), values.get(field.name)))
+				values.remove(field.name);
+	}
+	
+	/**
+	 * Test if two values of the same type are the same.
+	 * @param data		Description of the value type.
+	 * @param v1		First value.
+	 * @param v2		Second value.
+	 * @return			True if they are equal or have the same serialized form, false else.
+	 */
+	private boolean same(Data data, Object v1, Object v2) {
+		if(v1 == null || v2 == null)
+			return v1 == v2;
+		if(v1.equals(v2))
+			return true;
+		SaveRecord r1 = new SaveRecord(), r2 = new SaveRecord();
+		try {
+			depth = 0;
+			saveData(r1, data, v1);
+			depth = 0;
+			saveData(r2, data, v2);
+		} catch (IOException e) {
+			return false;
+		}
+		finally {
+			path = null;
+		}
+		return r1.sameAs(r2);
+	}
+	
 	/**
 	 * Load the fields of the current object.
 	 * @param save				Store to load to.
+	 * @param plan				Plan of the object class.
 	 * @param object			Object to load.
 	 * @throws IOException		In case of error.
 	 */
-	private void loadFields(StructuredStore.Load load, Object object) throws IOException {
-		for(Field field: object.getClass().getDeclaredFields())
-			if(isInstanceField(field)) {
-				try {
-					if(load.getField(field.getName()))
-						field.set(object, loadData(load, field.getGenericType()));
-				} catch (IllegalArgumentException e) {
-					e.printStackTrace();
-				} catch (IllegalAccessException e) {
-					e.printStackTrace();
+	private void loadFields(StructuredStore.Load load, Plan plan, Object object) throws IOException {
+		for(FieldPlan field: plan.fields)
+			if(load.getField(field.name)) {
+				if(object == this.object)
+					scope = field.name;
+				switch(field.prim) {
+				case FieldPlan.P_INT:
+					field.setInt(object, load.getInt());
+					break;
+				case FieldPlan.P_LONG:
+					field.setLong(object, load.getLong());
+					break;
+				case FieldPlan.P_DOUBLE:
+					field.setDouble(object, load.getDouble());
+					break;
+				default:
+					ItemHandler handler = handlers == null || object != this.object ? null : handlers.get(field.name);
+					if(handler != null)
+						loadItems(load, field.data, handler);
+					else
+						field.set(object, loadData(load, field.data));
+					break;
 				}
 			}
 	}
 	
+	/**
+	 * Load the items of a list and pass them to a handler.
+	 * @param load		Store to load from.
+	 * @param data		Description of the list type.
+	 * @param handler	Handler to pass items to.
+	 */
+	private void loadItems(StructuredStore.Load load, Data data, ItemHandler handler) throws IOException {
+		if(data.kind != Data.ARRAY && data.kind != Data.COLLECTION)
+			throw new IOException("cannot stream items of " + data.type);
+		Class<?> item = data.item.clazz;
+		if(item == int.class || item == long.class || item == double.class) {
+			Object array = loadData(load, data);
+			for(int i = 0, n = Array.getLength(array); i < n; i++)
+				handler.handle(Array.get(array, i));
+		}
+		else if(item == Integer.class || item == Long.class || item == Double.class) {
+			for(Object v: (Collection<?>)loadData(load, data))
+				handler.handle(v);
+		}
+		else {
+			StructuredStore.Cursor cursor = load.openList();
+			while(cursor.hasNextItem())
+				handler.handle(loadData(load, data.item));
+			load.end();
+		}
+	}
+	
+	/**
+	 * Load the items of the list just got in parallel, if the store supports it.
+	 * @param load		Store to load from.
+	 * @param data		Description of the item type.
+	 * @return			Loaded items or null if the list cannot be loaded in parallel.
+	 */
+	private Object[] loadParallel(StructuredStore.Load load, final Data data) throws IOException {
+		if(pool == null || identity)
+			return null;
+		StructuredStore.Load[] parts = load.splitList(pool.getParallelism() * 4, PARALLEL_THRESHOLD);
+		if(parts == null)
+			return null;
+		ArrayList<ForkJoinTask<Object[]>> tasks = new ArrayList<ForkJoinTask<Object[]>>(parts.length);
+		for(final StructuredStore.Load part: parts) {
+			final AutoStructuredSerializer worker = worker();
+			tasks.add(pool.submit(new Callable<Object[]>() {
+				@Override
+				public Object[] call() throws IOException {
+					Object[] r = new Object[part.getList()];
+					for(int i = 0; i < r.length; i++)
+						r[i] = worker.loadData(part, data);
+					part.end();
+					return r;
+				}
+			}));
+		}
+		ArrayList<Object> items = new ArrayList<Object>();
+		for(ForkJoinTask<Object[]> task: tasks)
+			items.addAll(Arrays.asList(join(task)));
+		return items.toArray();
+	}
+	
 	/**
 	 * Load a datum.
 	 * @param load		Store to load from.
-	 * @param field		Target field.
+	 * @param data		Description of the datum type.
 	 * @return			Read value.
 	 */
 	@SuppressWarnings("unchecked")
-	private Object loadData(StructuredStore.Load load, Type type) throws IOException {
-		
-		// basic class and arrays
-		if(type instanceof Class) {
-			Class<?> clazz = (Class<?>)type;
-			if(store.supports(clazz))
-				return load.get((Class<?>)type);
-			else if(clazz.isArray()) {
-				Class<?> item_type = clazz.getComponentType();
+	private Object loadData(StructuredStore.Load load, Data data) throws IOException {
+		switch(data.kind) {
+		
+		case Data.VALUE:
+			if(store.supports(data.clazz))
+				return load.get(data.clazz);
+			break;
+		
+		case Data.ARRAY: {
+				if(data.item.clazz == int.class)
+					return load.getIntArray();
+				else if(data.item.clazz == long.class)
+					return load.getLongArray();
+				else if(data.item.clazz == double.class)
+					return load.getDoubleArray();
 				int n = load.getList();
-				Object array = Array.newInstance(item_type, n);
-				for(int i = 0; i < n; i++)
-					Array.set(array, i, loadData(load, item_type));
+				Object array = Array.newInstance(data.item.clazz, n);
+				Object[] items = data.item.clazz.isPrimitive() ? null : loadParallel(load, data.item);
+				if(items != null)
+					System.arraycopy(items, 0, array, 0, n);
+				else
+					for(int i = 0; i < n; i++)
+						Array.set(array, i, loadData(load, data.item));
 				load.end();
 				return array;
 			}
-			else if(clazz.isEnum()) {
-				
-			}
-		}
-		
-		// collections
-		if(type instanceof ParameterizedType) {
-			ParameterizedType ptype = (ParameterizedType)type;
-			Type rtype = ptype.getRawType();
-			if(rtype instanceof Class<?>) {
-				Class<?> clazz = (Class<?>)rtype;
-				if(Collection.class.isAssignableFrom(clazz)) {
-					try {
-						@SuppressWarnings("rawtypes")
-						Collection coll = (Collection<?>)clazz.newInstance();
-						int n = load.getList();
-						for(int i = 0; i < n; i++)
-							coll.add(loadData(load, ptype.getActualTypeArguments()[0]));
-						load.end();
-						return coll;
-					} catch (InstantiationException e) {
-						throw new IOException(e);
-					} catch (IllegalAccessException e) {
-						throw new IOException(e);
-					}
+		
+		case Data.COLLECTION: {
+				@SuppressWarnings("rawtypes")
+				Collection coll;
+				if(data.item.clazz == Integer.class) {
+					int[] a = load.getIntArray();
+					coll = (Collection<?>)data.create(a.length);
+					for(int v: a)
+						coll.add(v);
+					return coll;
 				}
+				else if(data.item.clazz == Long.class) {
+					long[] a = load.getLongArray();
+					coll = (Collection<?>)data.create(a.length);
+					for(long v: a)
+						coll.add(v);
+					return coll;
+				}
+				else if(data.item.clazz == Double.class) {
+					double[] a = load.getDoubleArray();
+					coll = (Collection<?>)data.create(a.length);
+					for(double v: a)
+						coll.add(v);
+					return coll;
+				}
+				StructuredStore.Cursor cursor = load.openList();
+				coll = (Collection<?>)data.create(cursor.size());
+				Object[] items = loadParallel(load, data.item);
+				if(items != null)
+					coll.addAll(Arrays.asList(items));
+				else
+					while(cursor.hasNextItem())
+						coll.add(loadData(load, data.item));
+				load.end();
+				return coll;
 			}
-		}
 		
-		// else this is a structured type
-		if(type instanceof Class<?>) {
-			Class<?> clazz = (Class<?>)type;
-			try {
-				Object r = clazz.newInstance();
-				load.getClass();
-				for(Field field: clazz.getDeclaredFields())
-					if(field.isAccessible() && load.getField(field.getName()))
-						field.set(r, load.get(field.getType()));
+		case Data.MAP: {
+				int n = load.getList();
+				@SuppressWarnings("rawtypes")
+				Map map = (Map<?, ?>)data.create(n);
+				for(int i = 0; i < n; i++) {
+					load.getStruct();
+					Object key = load.getField(KEY_FIELD) ? loadData(load, data.key) : null;
+					Object value = load.getField(VALUE_FIELD) ? loadData(load, data.item) : null;
+					load.end();
+					map.put(key, value);
+				}
 				load.end();
-			} catch (InstantiationException e) {
-				throw new IOException(e);
-			} catch (IllegalAccessException e) {
-				throw new IOException(e);
+				return map;
+			}
+		
+		case Data.RECORD: {
+				Object[] args = data.defaults.clone();
+				load.getStruct();
+				for(int i = 0; i < args.length; i++)
+					if(load.getField(data.names[i]))
+						args[i] = loadData(load, data.component(i));
+				load.end();
+				return data.build(args);
+			}
+		
+		case Data.STRUCT: {
+				Plan plan = plans.get(data.clazz);
+				load.getStruct();
+				Object r;
+				if(objects == null) {
+					r = data.create();
+					loadFields(load, plan, r);
+				}
+				else if(load.getField(ID_FIELD)) {
+					int id = load.getInt();
+					r = data.create();
+					HashMap<Integer, Object> map = objects.get(scope);
+					if(map == null) {
+						map = new HashMap<Integer, Object>();
+						objects.put(scope, map);
+					}
+					map.put(id, r);
+					loadFields(load, plan, r);
+				}
+				else if(load.getField(REF_FIELD))
+					r = resolve((String)load.get(String.class));
+				else {
+					r = data.create();
+					loadFields(load, plan, r);
+				}
+				load.end();
+				return r;
 			}
 		}
 		
 		// don't know how to proceed ?
-		throw new IOException("unsupported type: " + type); 
+		throw new IOException("unsupported type: " + data.type);
+	}
+	
+	/**
+	 * Find the object designated by a back-reference.
+	 * @param ref			Reference as saved (see {@link Ref#toString(String)}).
+	 * @return				Designated object.
+	 * @throws IOException	If the reference cannot be resolved.
+	 */
+	private Object resolve(String ref) throws IOException {
+		if(TOP_REF.equals(ref))
+			return object;
+		String field = scope;
+		int p = ref.lastIndexOf('/');
+		if(p >= 0) {
+			field = ref.substring(0, p);
+			ref = ref.substring(p + 1);
+		}
+		Object r = null;
+		try {
+			HashMap<Integer, Object> map = objects.get(field);
+			if(map != null)
+				r = map.get(Integer.valueOf(ref));
+		} catch(NumberFormatException e) {
+		}
+		if(r == null)
+			throw new IOException("unresolved reference " + ref + " in " + field);
+		return r;
+	}
+	
+	/**
+	 * Identifier of a saved object: field of the top object it is saved in
+	 * and number in this field.
+	 */
+	private static final class Ref {
+		final String field;
+		final int id;
 		
-		/*else if(Collection.class.isAssignableFrom(type)) {
-			Collection<?> coll = (Collection<?>)type.newInstance();
-			Class<?> item = (Class<?>)(()type.getGenericSuperclass()).getActualTypeArguments()[0];
-			int n = load.getList();
-			for(int i = 0; i < n; i++)
-				;
+		Ref(String field, int id) {
+			this.field = field;
+			this.id = id;
 		}
-		else {
+		
+		/**
+		 * Get the textual form of the reference.
+		 * @param scope		Field of the top object containing the reference.
+		 * @return			"/" for the top object, the number if the object is in the same field,
+		 * 					"field/number" else.
+		 */
+		String toString(String scope) {
+			if(field == null)
+				return TOP_REF;
+			else if(field.equals(scope))
+				return Integer.toString(id);
+			else
+				return field + '/' + id;
 		}
+	}
+	
+	/**
+	 * Description of the way to serialize a type.
+	 * @author casse
+	 */
+	private static final class Data {
+		static final int
+			VALUE = 0,
+			ARRAY = 1,
+			COLLECTION = 2,
+			STRUCT = 3,
+			ANY = 4,
+			MAP = 5,
+			RECORD = 6;
+		int kind;
+		Type type;
+		Class<?> clazz, impl;
+		Data item, key;
+		MethodHandle constructor, sized;
+		boolean hashed;
+		String[] names;
+		Type[] types;
+		volatile Data[] components;
+		Property[] accessors;
+		Object[] defaults;
+		
+		/**
+		 * Build the description of the given type.
+		 * @param type	Described type.
+		 * @return		Type description.
+		 */
+		static Data make(Type type) {
+			Data data = new Data();
+			data.type = type;
+			data.kind = ANY;
+			data.clazz = Object.class;
 			
-			// get the object
-			Object data = field.get(object);
+			// simple class
+			if(type instanceof Class<?>) {
+				Class<?> clazz = (Class<?>)type;
+				data.clazz = clazz;
+				if(TextSerializer.get(clazz) != null)
+					data.kind = VALUE;
+				else if(clazz.isArray()) {
+					data.kind = ARRAY;
+					data.item = make(clazz.getComponentType());
+				}
+				else if(Collection.class.isAssignableFrom(clazz)) {
+					data.kind = COLLECTION;
+					data.item = make(Object.class);
+				}
+				else if(Map.class.isAssignableFrom(clazz)) {
+					data.kind = MAP;
+					data.key = make(Object.class);
+					data.item = make(Object.class);
+				}
+				else if(clazz.isRecord())
+					makeRecord(data);
+				else if(!clazz.isInterface() && !Modifier.isAbstract(clazz.getModifiers())
+				&& clazz != Object.class && !clazz.isPrimitive())
+					data.kind = STRUCT;
+			}
 			
-			// fetch the object
-			if(data instanceof Collection<?>) {
-				Collection<?> coll = (Collection<?>)data;
-				
-				save.putList();
-				for(Object item: ((Collection<?>)object))
-					saveData(save, item);
-				save.end();
+			// generic type
+			else if(type instanceof ParameterizedType) {
+				ParameterizedType ptype = (ParameterizedType)type;
+				if(ptype.getRawType() instanceof Class<?>) {
+					Class<?> clazz = (Class<?>)ptype.getRawType();
+					if(Collection.class.isAssignableFrom(clazz)) {
+						data.kind = COLLECTION;
+						data.clazz = clazz;
+						data.item = make(ptype.getActualTypeArguments()[0]);
+					}
+					else if(Map.class.isAssignableFrom(clazz)) {
+						data.kind = MAP;
+						data.clazz = clazz;
+						data.key = make(ptype.getActualTypeArguments()[0]);
+						data.item = make(ptype.getActualTypeArguments()[1]);
+					}
+					else
+						return make(clazz);
+				}
 			}
-			else {
-				save.putStruct();
-				saveFields(save, object);
-				save.end();
+			
+			// implementation of the containers
+			data.impl = data.clazz;
+			if(data.kind == COLLECTION || data.kind == MAP) {
+				data.impl = implementation(data.clazz);
+				data.hashed = HashSet.class.isAssignableFrom(data.impl) || HashMap.class.isAssignableFrom(data.impl);
+				data.sized = findSizedConstructor(data.impl);
 			}
-		}*/
+			
+			// constructors (resolved now as the descriptions are shared by the parallel loads)
+			if(data.kind == COLLECTION || data.kind == MAP || data.kind == STRUCT)
+				data.constructor = findConstructor(data.impl);
+			return data;
+		}
+		
+		/**
+		 * Select the class to instantiate for a collection or a map type:
+		 * the type itself or a default implementation for the interfaces
+		 * and the abstract classes.
+		 * @param clazz		Collection or map type.
+		 * @return			Implementation class.
+		 */
+		private static Class<?> implementation(Class<?> clazz) {
+			if(!clazz.isInterface() && !Modifier.isAbstract(clazz.getModifiers()))
+				return clazz;
+			else if(SortedMap.class.isAssignableFrom(clazz))
+				return TreeMap.class;
+			else if(Map.class.isAssignableFrom(clazz))
+				return HashMap.class;
+			else if(SortedSet.class.isAssignableFrom(clazz))
+				return TreeSet.class;
+			else if(Set.class.isAssignableFrom(clazz))
+				return HashSet.class;
+			else if(Queue.class.isAssignableFrom(clazz))
+				return ArrayDeque.class;
+			else
+				return ArrayList.class;
+		}
+		
+		/**
+		 * Fill the description of a record type: components and canonical constructor.
+		 * If they cannot be accessed, the record is not supported.
+		 * @param data		Record description.
+		 */
+		private static void makeRecord(Data data) {
+			RecordComponent[] comps = data.clazz.getRecordComponents();
+			int n = comps.length;
+			String[] names = new String[n];
+			Type[] gtypes = new Type[n];
+			Property[] accessors = new Property[n];
+			Object[] defaults = new Object[n];
+			Class<?>[] types = new Class<?>[n];
+			try {
+				for(int i = 0; i < n; i++) {
+					names[i] = comps[i].getName();
+					types[i] = comps[i].getType();
+					gtypes[i] = comps[i].getGenericType();
+					accessors[i] = Property.methods(comps[i].getAccessor(), null);
+					if(accessors[i] == null)
+						return;
+					if(types[i].isPrimitive())
+						defaults[i] = Array.get(Array.newInstance(types[i], 1), 0);
+				}
+				Constructor<?> cons = data.clazz.getDeclaredConstructor(types);
+				cons.setAccessible(true);
+				data.constructor = lookup.unreflectConstructor(cons)
+					.asSpreader(Object[].class, n).asType(RECORD_CONSTRUCTOR_TYPE);
+			} catch (NoSuchMethodException e) {
+				System.err.println("ERROR: no canonical constructor for " + data.clazz.getName());
+				return;
+			} catch (IllegalAccessException e) {
+				System.err.println("ERROR: cannot access record " + data.clazz.getName() + ": " + e.getLocalizedMessage());
+				return;
+			} catch (RuntimeException e) {
+				System.err.println("ERROR: cannot access record " + data.clazz.getName() + ": " + e.getLocalizedMessage());
+				return;
+			}
+			data.kind = RECORD;
+			data.names = names;
+			data.types = gtypes;
+			data.accessors = accessors;
+			data.defaults = defaults;
+		}
+		
+		/**
+		 * Get the description of a record component (computed at first use to support
+		 * recursive records). The descriptions may be computed twice by concurrent
+		 * loads but are published as a whole.
+		 * @param i		Component index.
+		 * @return		Component description.
+		 */
+		Data component(int i) {
+			Data[] comps = components;
+			if(comps == null) {
+				comps = new Data[types.length];
+				for(int j = 0; j < comps.length; j++)
+					comps[j] = make(types[j]);
+				components = comps;
+			}
+			return comps[i];
+		}
+		
+		/**
+		 * Get the value of a record component.
+		 * @param i			Component index.
+		 * @param object	Record to get value from.
+		 * @return			Component value.
+		 */
+		Object component(int i, Object object) throws IOException {
+			return accessors[i].get(object);
+		}
+		
+		/**
+		 * Build a record from its component values.
+		 * @param args			Component values.
+		 * @return				Built record.
+		 * @throws IOException	If the record cannot be built.
+		 */
+		Object build(Object[] args) throws IOException {
+			try {
+				return (Object)constructor.invokeExact(args);
+			} catch(RuntimeException e) {
+				throw e;
+			} catch(Error e) {
+				throw e;
+			} catch(Throwable e) {
+				throw new IOException(e);
+			}
+		}
+		
+		/**
+		 * Create an instance of the described container type, with enough capacity
+		 * for the given number of items.
+		 * @param n				Number of items (negative if unknown).
+		 * @return				Created instance.
+		 * @throws IOException	If the instance cannot be created.
+		 */
+		Object create(int n) throws IOException {
+			if(n < 0 || sized == null)
+				return create();
+			try {
+				return (Object)sized.invokeExact(hashed ? (int)(n / .75f) + 1 : n);
+			} catch(RuntimeException e) {
+				throw e;
+			} catch(Error e) {
+				throw e;
+			} catch(Throwable e) {
+				throw new IOException(e);
+			}
+		}
+		
+		/**
+		 * Create an instance of the described type.
+		 * @return				Created instance.
+		 * @throws IOException	If the instance cannot be created.
+		 */
+		Object create() throws IOException {
+			if(constructor == null)
+				throw new IOException("cannot instantiate " + clazz.getName());
+			try {
+				return (Object)constructor.invokeExact();
+			} catch(RuntimeException e) {
+				throw e;
+			} catch(Error e) {
+				throw e;
+			} catch(Throwable e) {
+				throw new IOException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Find the default constructor of a class.
+	 * @param clazz		Class to look in.
+	 * @return			Constructor method handle or null.
+	 */
+	private static MethodHandle findConstructor(Class<?> clazz) {
+		try {
+			Constructor<?> cons = clazz.getDeclaredConstructor();
+			cons.setAccessible(true);
+			return lookup.unreflectConstructor(cons).asType(CONSTRUCTOR_TYPE);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (SecurityException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		}
 	}
 	
+	/**
+	 * Find the constructor of a class taking a capacity.
+	 * @param clazz		Class to look in.
+	 * @return			Constructor method handle or null.
+	 */
+	private static MethodHandle findSizedConstructor(Class<?> clazz) {
+		try {
+			return lookup.unreflectConstructor(clazz.getConstructor(int.class)).asType(SIZED_CONSTRUCTOR_TYPE);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (SecurityException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Serialization plan of a class: serialized fields and how to access them.
+	 * @author casse
+	 */
+	private static final class Plan {
+		final FieldPlan[] fields;
+		
+		/**
+		 * Build the plan for the given class.
+		 * @param clazz		Class to build plan for.
+		 */
+		Plan(Class<?> clazz) {
+			ArrayList<FieldPlan> list = new ArrayList<FieldPlan>();
+			for(Field field: clazz.getDeclaredFields())
+				if(isInstanceField(field)) {
+					FieldPlan plan = new FieldPlan(field);
+					if(plan.getter != null)
+						list.add(plan);
+				}
+			fields = list.toArray(new FieldPlan[list.size()]);
+		}
+	}
+	
+	/**
+	 * Plan to serialize a field.
+	 * @author casse
+	 */
+	private static final class FieldPlan {
+		static final int
+			P_NONE = 0,
+			P_INT = 1,
+			P_LONG = 2,
+			P_DOUBLE = 3;
+		final String name;
+		final Data data;
+		final Property property;
+		Function<Object, Object> getter;
+		BiConsumer<Object, Object> setter;
+		int prim = P_NONE;
+		
+		/**
+		 * Build the plan of a field.
+		 * @param field		Concerned field.
+		 */
+		FieldPlan(Field field) {
+			name = field.getName();
+			data = Data.make(field.getGenericType());
+			property = Property.field(field);
+			if(property != null) {
+				getter = property.getter();
+				setter = property.setter();
+				Class<?> type = field.getType();
+				if(type == int.class)
+					prim = P_INT;
+				else if(type == long.class)
+					prim = P_LONG;
+				else if(type == double.class)
+					prim = P_DOUBLE;
+			}
+		}
+		
+		/**
+		 * Get the value of the field.
+		 * @param object	Object to get value from.
+		 * @return			Field value.
+		 */
+		Object get(Object object) throws IOException {
+			return getter.apply(object);
+		}
+		
+		/**
+		 * Set the value of the field (ignored if the field is final).
+		 * @param object	Object to set value to.
+		 * @param value		Set value.
+		 */
+		void set(Object object, Object value) throws IOException {
+			if(setter != null)
+				try {
+					setter.accept(object, value);
+				} catch(ClassCastException e) {
+					System.err.println("ERROR: bad value for field " + name + ": " + e.getLocalizedMessage());
+				}
+		}
+		
+		/**
+		 * Get the value of an int field (without boxing).
+		 * @param object	Object to get value from.
+		 * @return			Field value.
+		 */
+		int getInt(Object object) throws IOException {
+			return property.intGetter().applyAsInt(object);
+		}
+		
+		/**
+		 * Get the value of a long field (without boxing).
+		 * @param object	Object to get value from.
+		 * @return			Field value.
+		 */
+		long getLong(Object object) throws IOException {
+			return property.longGetter().applyAsLong(object);
+		}
+		
+		/**
+		 * Get the value of a double field (without boxing).
+		 * @param object	Object to get value from.
+		 * @return			Field value.
+		 */
+		double getDouble(Object object) throws IOException {
+			return property.doubleGetter().applyAsDouble(object);
+		}
+		
+		/**
+		 * Set the value of an int field (ignored if the field is final).
+		 * @param object	Object to set value to.
+		 * @param value		Set value.
+		 */
+		void setInt(Object object, int value) throws IOException {
+			if(setter != null)
+				property.intSetter().accept(object, value);
+		}
+		
+		/**
+		 * Set the value of a long field (ignored if the field is final).
+		 * @param object	Object to set value to.
+		 * @param value		Set value.
+		 */
+		void setLong(Object object, long value) throws IOException {
+			if(setter != null)
+				property.longSetter().accept(object, value);
+		}
+		
+		/**
+		 * Set the value of a double field (ignored if the field is final).
+		 * @param object	Object to set value to.
+		 * @param value		Set value.
+		 */
+		void setDouble(Object object, double value) throws IOException {
+			if(setter != null)
+				property.doubleSetter().accept(object, value);
+		}
+	}
+	
+	/**
+	 * Handler receiving the items of a list streamed by the serializer.
+	 * @author casse
+	 */
+	public interface ItemHandler {
+		
+		/**
+		 * Called for each item of the list, in order.
+		 * @param item				Loaded item.
+		 * @throws IOException		Error stopping the load.
+		 */
+		void handle(Object item) throws IOException;
+	
+	}
+
 }
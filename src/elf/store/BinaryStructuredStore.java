@@ -0,0 +1,1183 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Structured store using a compact binary format.
+ * 
+ * The file starts with a header (magic and version) followed by the string table
+ * (count and length-prefixed UTF-8 strings) and by the top structure. Each value
+ * starts with a tag: integers are stored as zig-zag varints, floating-point as raw
+ * little-endian IEEE values and strings as indexes in the string table. Lists
+ * records their item count and their byte size up front and structures their byte
+ * size, making them fast to skip. Primitive arrays are packed as their item count
+ * followed by a raw little-endian block.
+ * 
+ * If the storage supports it (see {@link MappableStorage}), the load works directly
+ * on the mapped file and the strings are only decoded when they are used.
+ * @author casse
+ */
+public class BinaryStructuredStore implements StructuredStore {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	static final byte[] MAGIC = { 'E', 'L', 'F', 'B' };
+	static final int VERSION = 1;
+	static final int
+		T_NULL = 0,
+		T_FALSE = 1,
+		T_TRUE = 2,
+		T_INT = 3,
+		T_DOUBLE = 4,
+		T_FLOAT = 5,
+		T_CHAR = 6,
+		T_STRING = 7,
+		T_TEXT = 8,
+		T_LIST = 9,
+		T_STRUCT = 10,
+		T_INTS = 11,
+		T_LONGS = 12,
+		T_DOUBLES = 13;
+	Storage store;
+	
+	/**
+	 * Build a binary structured store.
+	 * @param store		Stream storage to load/save to.
+	 */
+	public BinaryStructuredStore(Storage store) {
+		this.store = store;
+	}
+	
+	@Override
+	public boolean supports(Class<?> type) {
+		return TextSerializer.get(type) != null;
+	}
+	
+	@Override
+	public boolean exists() {
+		return store.exists();
+	}
+	
+	@Override
+	public Save save() throws IOException {
+		return new BinarySave();
+	}
+	
+	@Override
+	public Load load() throws IOException {
+		if(store instanceof MappableStorage)
+			return new BinaryLoad(((MappableStorage)store).map().order(ByteOrder.LITTLE_ENDIAN));
+		ByteBuffer buf = (ByteBuffer)StoreCache.shared().get(store, "binary", new StoreCache.Parser() {
+			@Override
+			public Object parse() throws IOException {
+				return readAll(store.read());
+			}
+		});
+		return new BinaryLoad(buf.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+	}
+	
+	/**
+	 * Read completely the given input stream.
+	 * @param in				Input stream to read (closed at the end).
+	 * @return					Read bytes (little-endian buffer).
+	 * @throws IOException		IO error.
+	 */
+	static ByteBuffer readAll(InputStream in) throws IOException {
+		try {
+			byte[] buf = new byte[Math.max(in.available(), 4096)];
+			int size = 0;
+			while(true) {
+				int n = in.read(buf, size, buf.length - size);
+				if(n < 0)
+					break;
+				size += n;
+				if(size == buf.length) {
+					byte[] nbuf = new byte[buf.length * 2];
+					System.arraycopy(buf, 0, nbuf, 0, size);
+					buf = nbuf;
+				}
+			}
+			return ByteBuffer.wrap(buf, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Growable output buffer.
+	 * @author casse
+	 */
+	static class Output {
+		byte[] buf = new byte[4096];
+		int size = 0;
+		
+		/**
+		 * Ensure there is enough place for the given number of bytes.
+		 * @param n		Number of bytes.
+		 */
+		private void ensure(int n) {
+			if(size + n > buf.length) {
+				byte[] nbuf = new byte[Math.max(buf.length * 2, size + n)];
+				System.arraycopy(buf, 0, nbuf, 0, size);
+				buf = nbuf;
+			}
+		}
+		
+		/**
+		 * Write a byte.
+		 * @param b		Written byte.
+		 */
+		public void writeByte(int b) {
+			ensure(1);
+			buf[size++] = (byte)b;
+		}
+		
+		/**
+		 * Write an unsigned varint.
+		 * @param v		Written value.
+		 */
+		public void writeVarint(long v) {
+			ensure(10);
+			while((v & ~0x7fL) != 0) {
+				buf[size++] = (byte)((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			buf[size++] = (byte)v;
+		}
+		
+		/**
+		 * Write a signed integer as a zig-zag varint.
+		 * @param v		Written value.
+		 */
+		public void writeSigned(long v) {
+			writeVarint((v << 1) ^ (v >> 63));
+		}
+		
+		/**
+		 * Write a 32-bit integer (little-endian).
+		 * @param v		Written value.
+		 */
+		public void writeInt(int v) {
+			ensure(4);
+			setInt(size, v);
+			size += 4;
+		}
+		
+		/**
+		 * Write a 64-bit integer (little-endian).
+		 * @param v		Written value.
+		 */
+		public void writeLong(long v) {
+			writeInt((int)v);
+			writeInt((int)(v >>> 32));
+		}
+		
+		/**
+		 * Write bytes.
+		 * @param bytes		Bytes to write.
+		 */
+		public void write(byte[] bytes) {
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buf, size, bytes.length);
+			size += bytes.length;
+		}
+		
+		/**
+		 * Write the content of another output.
+		 * @param out	Output to copy.
+		 */
+		public void write(Output out) {
+			ensure(out.size);
+			System.arraycopy(out.buf, 0, buf, size, out.size);
+			size += out.size;
+		}
+		
+		/**
+		 * Reserve a block of bytes to be written through a byte buffer.
+		 * @param n		Block size.
+		 * @return		Buffer on the block.
+		 */
+		public ByteBuffer reserve(int n) {
+			ensure(n);
+			ByteBuffer r = ByteBuffer.wrap(buf, size, n);
+			size += n;
+			return r;
+		}
+		
+		/**
+		 * Patch a 32-bit integer already written.
+		 * @param pos	Position of the integer.
+		 * @param v		Value to set.
+		 */
+		public void setInt(int pos, int v) {
+			buf[pos] = (byte)v;
+			buf[pos + 1] = (byte)(v >> 8);
+			buf[pos + 2] = (byte)(v >> 16);
+			buf[pos + 3] = (byte)(v >> 24);
+		}
+		
+		/**
+		 * Write the buffer content to the given stream.
+		 * @param out				Stream to write to.
+		 * @throws IOException		IO error.
+		 */
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(buf, 0, size);
+		}
+	}
+	
+	/**
+	 * Save part. As the list counts are stored up front, the body is built
+	 * in memory and written with the string table when the top structure is ended.
+	 * @author casse
+	 */
+	class BinarySave implements Save {
+		Output body = new Output();
+		ConcurrentHashMap<String, Integer> strings = new ConcurrentHashMap<String, Integer>();
+		ArrayList<String> table = new ArrayList<String>();
+		Stack<SaveState> stack = new Stack<SaveState>();
+		SaveState cur;
+		boolean field;
+		
+		/**
+		 * Build a binary save.
+		 */
+		public BinarySave() {
+			open(T_STRUCT);
+		}
+		
+		/**
+		 * Build a forked save, sharing the string table of its parent.
+		 * @param parent	Parent save.
+		 */
+		BinarySave(BinarySave parent) {
+			strings = parent.strings;
+			table = parent.table;
+			cur = new SaveState();
+			cur.list = true;
+			cur.header = -1;
+		}
+		
+		/**
+		 * Get the index of a string in the string table.
+		 * @param s		String to look for.
+		 * @return		String index.
+		 */
+		private int index(String s) {
+			Integer i = strings.get(s);
+			if(i == null)
+				synchronized(table) {
+					i = strings.get(s);
+					if(i == null) {
+						i = table.size();
+						table.add(s);
+						strings.put(s, i);
+					}
+				}
+			return i;
+		}
+		
+		/**
+		 * Prepare the writing of a value.
+		 */
+		private void prepare() {
+			if(field)
+				field = false;
+			else if(cur.list)
+				cur.count++;
+			else
+				throw new StructuralError("cannot put raw value in structure");
+		}
+		
+		/**
+		 * Open a list or a structure.
+		 * @param tag	T_LIST or T_STRUCT.
+		 */
+		private void open(int tag) {
+			if(cur != null)
+				stack.push(cur);
+			cur = new SaveState();
+			cur.list = tag == T_LIST;
+			body.writeByte(tag);
+			cur.header = body.size;
+			if(cur.list)
+				body.writeInt(0);
+			body.writeInt(0);
+		}
+		
+		@Override
+		public void put(Object value) throws IOException {
+			prepare();
+			if(value == null)
+				body.writeByte(T_NULL);
+			else if(value instanceof Integer || value instanceof Long
+			|| value instanceof Short || value instanceof Byte) {
+				body.writeByte(T_INT);
+				body.writeSigned(((Number)value).longValue());
+			}
+			else if(value instanceof Double) {
+				body.writeByte(T_DOUBLE);
+				body.writeLong(Double.doubleToRawLongBits((Double)value));
+			}
+			else if(value instanceof Float) {
+				body.writeByte(T_FLOAT);
+				body.writeInt(Float.floatToRawIntBits((Float)value));
+			}
+			else if(value instanceof Boolean)
+				body.writeByte((Boolean)value ? T_TRUE : T_FALSE);
+			else if(value instanceof Character) {
+				body.writeByte(T_CHAR);
+				body.writeVarint((Character)value);
+			}
+			else if(value instanceof String) {
+				body.writeByte(T_STRING);
+				body.writeVarint(index((String)value));
+			}
+			else {
+				body.writeByte(T_TEXT);
+				body.writeVarint(index(TextSerializer.serialize(value)));
+			}
+		}
+		
+		@Override
+		public void putInt(int value) throws IOException {
+			prepare();
+			body.writeByte(T_INT);
+			body.writeSigned(value);
+		}
+		
+		@Override
+		public void putLong(long value) throws IOException {
+			prepare();
+			body.writeByte(T_INT);
+			body.writeSigned(value);
+		}
+		
+		@Override
+		public void putDouble(double value) throws IOException {
+			prepare();
+			body.writeByte(T_DOUBLE);
+			body.writeLong(Double.doubleToRawLongBits(value));
+		}
+		
+		/**
+		 * Put a packed array.
+		 * @param tag		Tag of the array.
+		 * @param n			Item count.
+		 * @param array		Put array.
+		 */
+		private void putPacked(int tag, int n, Object array) {
+			prepare();
+			body.writeByte(tag);
+			body.writeInt(n);
+			Packed.write(body.reserve(Packed.size(array)), array);
+		}
+		
+		@Override
+		public void putArray(int[] array) throws IOException {
+			putPacked(T_INTS, array.length, array);
+		}
+		
+		@Override
+		public void putArray(long[] array) throws IOException {
+			putPacked(T_LONGS, array.length, array);
+		}
+		
+		@Override
+		public void putArray(double[] array) throws IOException {
+			putPacked(T_DOUBLES, array.length, array);
+		}
+		
+		@Override
+		public void putList() throws IOException {
+			prepare();
+			open(T_LIST);
+		}
+		
+		@Override
+		public void putStruct() throws IOException {
+			prepare();
+			open(T_STRUCT);
+		}
+		
+		@Override
+		public void putField(String name) throws IOException {
+			if(cur.list)
+				throw new StructuralError("cannot put field in list");
+			if(field)
+				throw new StructuralError("cannot put field in field");
+			body.writeVarint(index(name));
+			field = true;
+		}
+		
+		@Override
+		public void end() throws IOException {
+			if(field)
+				throw new StructuralError("ending inside an empty field");
+			if(cur.header < 0)
+				throw new StructuralError("ending a forked save");
+			if(cur.list) {
+				body.setInt(cur.header, cur.count);
+				body.setInt(cur.header + 4, body.size - cur.header - 8);
+			}
+			else
+				body.setInt(cur.header, body.size - cur.header - 4);
+			if(!stack.isEmpty())
+				cur = stack.pop();
+			else
+				write();
+		}
+		
+		@Override
+		public Save fork() {
+			return new BinarySave(this);
+		}
+		
+		@Override
+		public void splice(Save fork) throws IOException {
+			BinarySave save = (BinarySave)fork;
+			if(field || !cur.list)
+				throw new StructuralError("splicing outside of a list");
+			if(save.strings != strings || !save.stack.isEmpty() || save.field)
+				throw new StructuralError("bad forked save");
+			cur.count += save.cur.count;
+			body.write(save.body);
+		}
+		
+		/**
+		 * Write the store.
+		 * @throws IOException	IO error.
+		 */
+		private void write() throws IOException {
+			Output head = new Output();
+			head.write(MAGIC);
+			head.writeByte(VERSION);
+			head.writeVarint(table.size());
+			for(String s: table) {
+				byte[] bytes = s.getBytes(UTF8);
+				head.writeVarint(bytes.length);
+				head.write(bytes);
+			}
+			OutputStream out = store.write();
+			boolean done = false;
+			try {
+				head.writeTo(out);
+				body.writeTo(out);
+				written(out, head.size);
+				done = true;
+			}
+			finally {
+				if(done)
+					out.close();
+				else
+					Storage.abort(out);
+			}
+		}
+		
+		/**
+		 * Called after the body has been written to let extensions
+		 * append data after it.
+		 * @param out			Stream to write to.
+		 * @param start			Offset of the body in the stream.
+		 * @throws IOException	IO error.
+		 */
+		void written(OutputStream out, int start) throws IOException {
+		}
+	}
+	
+	private static final class SaveState {
+		boolean list;
+		int header;
+		int count;
+	}
+	
+	/**
+	 * Load part.
+	 * @author casse
+	 */
+	static class BinaryLoad implements Load {
+		ByteBuffer buf;
+		StringTable strings;
+		Stack<LoadState> stack = new Stack<LoadState>();
+		LoadState cur;
+		int pos;
+		boolean field;
+		
+		/**
+		 * Build a binary load.
+		 * @param buf			Buffer to read from.
+		 * @throws IOException	If the format is not supported.
+		 */
+		public BinaryLoad(ByteBuffer buf) throws IOException {
+			this.buf = buf;
+			pos = buf.position();
+			for(int i = 0; i < MAGIC.length; i++)
+				if(pos >= buf.limit() || buf.get(pos++) != MAGIC[i])
+					throw new IOException("bad binary store magic");
+			if(buf.get(pos++) != VERSION)
+				throw new IOException("unsupported binary store version");
+			strings = new StringTable(buf, pos);
+			pos = strings.end;
+			if(buf.get(pos) != T_STRUCT)
+				throw new IOException("binary store does not start with a structure");
+			open(false);
+		}
+		
+		/**
+		 * Build a binary load positioned on a single value, as after a successful
+		 * {@link #getField(String)}.
+		 * @param buf			Buffer to read from (positioned on the value).
+		 * @param strings		String table.
+		 */
+		BinaryLoad(ByteBuffer buf, StringTable strings) {
+			this.buf = buf;
+			this.strings = strings;
+			pos = buf.position();
+			cur = new LoadState();
+			cur.start = cur.end = cur.cursor = pos;
+			field = true;
+		}
+		
+		/**
+		 * Build a binary load positioned inside a list, on a range of items (see
+		 * {@link #splitList(int, int)}).
+		 * @param buf			Buffer to read from.
+		 * @param strings		String table.
+		 * @param start			Position of the first item.
+		 * @param end			Position after the last item.
+		 * @param count			Number of items.
+		 */
+		BinaryLoad(ByteBuffer buf, StringTable strings, int start, int end, int count) {
+			this.buf = buf;
+			this.strings = strings;
+			pos = start;
+			cur = new LoadState();
+			cur.list = true;
+			cur.start = cur.cursor = start;
+			cur.end = end;
+			cur.count = count;
+		}
+		
+		/**
+		 * Read an unsigned varint at the current position.
+		 * @return	Read value.
+		 */
+		long readVarint() {
+			long r = 0;
+			int shift = 0;
+			while(true) {
+				byte b = buf.get(pos++);
+				r |= (long)(b & 0x7f) << shift;
+				if((b & 0x80) == 0)
+					return r;
+				shift += 7;
+			}
+		}
+		
+		/**
+		 * Read a zig-zag encoded signed varint at the current position.
+		 * @return	Read value.
+		 */
+		private long readSigned() {
+			long v = readVarint();
+			return (v >>> 1) ^ -(v & 1);
+		}
+		
+		/**
+		 * Compute the position after the value at the given position.
+		 * @param at	Value position.
+		 * @return		Position after the value.
+		 */
+		int skip(int at) {
+			switch(buf.get(at)) {
+			case T_INT:
+			case T_CHAR:
+			case T_STRING:
+			case T_TEXT:
+				at++;
+				while((buf.get(at++) & 0x80) != 0)
+					;
+				return at;
+			case T_DOUBLE:
+				return at + 9;
+			case T_FLOAT:
+				return at + 5;
+			case T_LIST:
+				return at + 9 + buf.getInt(at + 5);
+			case T_STRUCT:
+				return at + 5 + buf.getInt(at + 1);
+			case T_INTS:
+				return at + 5 + buf.getInt(at + 1) * 4;
+			case T_LONGS:
+			case T_DOUBLES:
+				return at + 5 + buf.getInt(at + 1) * 8;
+			default:
+				return at + 1;
+			}
+		}
+		
+		/**
+		 * Open the list or the structure at the current position.
+		 * @param list			True for a list, false for a structure.
+		 * @return				Item count for a list.
+		 * @throws IOException	If the value is not of the right type.
+		 */
+		private int open(boolean list) throws IOException {
+			int tag = buf.get(pos);
+			LoadState state = new LoadState();
+			state.list = list;
+			if(list) {
+				if(tag != T_LIST)
+					throw new IOException("list expected");
+				state.count = buf.getInt(pos + 1);
+				state.start = pos + 9;
+				state.end = state.start + buf.getInt(pos + 5);
+			}
+			else {
+				if(tag != T_STRUCT)
+					throw new IOException("structure expected");
+				state.start = pos + 5;
+				state.end = state.start + buf.getInt(pos + 1);
+			}
+			state.cursor = state.start;
+			if(cur != null)
+				stack.push(cur);
+			cur = state;
+			pos = state.start;
+			field = false;
+			return state.count;
+		}
+		
+		/**
+		 * Check that a value can be read.
+		 * @throws IOException	If no value is available.
+		 */
+		private void check() throws IOException {
+			if(field)
+				field = false;
+			else if(!cur.list)
+				throw new IOException("cannot get value of a structure");
+			else if(pos >= cur.end)
+				throw new IOException("no more item in list");
+		}
+		
+		/**
+		 * Read a value and convert it to the given type.
+		 * @param type			Type of the value.
+		 * @return				Read value.
+		 * @throws IOException	If the value cannot be converted.
+		 */
+		private Object read(Class<?> type) throws IOException {
+			switch(buf.get(pos++)) {
+			case T_NULL:
+				return null;
+			case T_FALSE:
+				return convert(type, false);
+			case T_TRUE:
+				return convert(type, true);
+			case T_INT:
+				return convert(type, readSigned());
+			case T_DOUBLE:
+				pos += 8;
+				return convert(type, Double.longBitsToDouble(buf.getLong(pos - 8)));
+			case T_FLOAT:
+				pos += 4;
+				return convert(type, Float.intBitsToFloat(buf.getInt(pos - 4)));
+			case T_CHAR:
+				return convert(type, (char)readVarint());
+			case T_STRING:
+			case T_TEXT:
+				String s = strings.get((int)readVarint());
+				if(type == String.class)
+					return s;
+				else
+					return TextSerializer.unserialize(type, s);
+			default:
+				throw new IOException("cannot get value of type " + type.getName() + " from a list or a structure");
+			}
+		}
+		
+		@Override
+		public Object get(Class<?> type) throws IOException {
+			check();
+			Object r = read(type);
+			if(cur.list)
+				cur.index++;
+			return r;
+		}
+		
+		@Override
+		public int getInt() throws IOException {
+			long r = getLong();
+			if(r < Integer.MIN_VALUE || r > Integer.MAX_VALUE)
+				throw new IOException("integer out of range: " + r);
+			return (int)r;
+		}
+		
+		@Override
+		public long getLong() throws IOException {
+			check();
+			long r;
+			if(buf.get(pos) == T_INT) {
+				pos++;
+				r = readSigned();
+			}
+			else
+				r = (Long)read(long.class);
+			if(cur.list)
+				cur.index++;
+			return r;
+		}
+		
+		@Override
+		public double getDouble() throws IOException {
+			check();
+			double r;
+			switch(buf.get(pos)) {
+			case T_DOUBLE:
+				pos += 9;
+				r = Double.longBitsToDouble(buf.getLong(pos - 8));
+				break;
+			case T_INT:
+				pos++;
+				r = readSigned();
+				break;
+			default:
+				r = (Double)read(double.class);
+				break;
+			}
+			if(cur.list)
+				cur.index++;
+			return r;
+		}
+		
+		/**
+		 * Get the current value as a packed array.
+		 * @param tag			Tag of the array.
+		 * @param kind			Kind of the array.
+		 * @return				Got array or null if the value is not packed.
+		 */
+		private Object getPacked(int tag, String kind) {
+			if(!(field || (cur.list && pos < cur.end)) || buf.get(pos) != tag)
+				return null;
+			field = false;
+			int n = buf.getInt(pos + 1);
+			buf.position(pos + 5);
+			Object r = Packed.read(buf, kind, n);
+			pos = skip(pos);
+			if(cur.list)
+				cur.index++;
+			return r;
+		}
+		
+		@Override
+		public int[] getIntArray() throws IOException {
+			Object r = getPacked(T_INTS, Packed.INT);
+			return r != null ? (int[])r : Load.super.getIntArray();
+		}
+		
+		@Override
+		public long[] getLongArray() throws IOException {
+			Object r = getPacked(T_LONGS, Packed.LONG);
+			return r != null ? (long[])r : Load.super.getLongArray();
+		}
+		
+		@Override
+		public double[] getDoubleArray() throws IOException {
+			Object r = getPacked(T_DOUBLES, Packed.DOUBLE);
+			return r != null ? (double[])r : Load.super.getDoubleArray();
+		}
+		
+		@Override
+		public int getList() throws IOException {
+			check();
+			return open(true);
+		}
+		
+		@Override
+		public void getStruct() throws IOException {
+			check();
+			open(false);
+		}
+		
+		@Override
+		public boolean getField(String name) throws IOException {
+			if(cur.list || field)
+				throw new IOException("cannot get field from field or list");
+			int index = strings.indexOf(name);
+			if(index < 0)
+				return false;
+			
+			// look from the cursor to the end, then from the start
+			int at = cur.cursor;
+			boolean wrapped = false;
+			while(!wrapped || at < cur.cursor) {
+				if(at >= cur.end) {
+					if(wrapped)
+						break;
+					wrapped = true;
+					at = cur.start;
+					continue;
+				}
+				pos = at;
+				int found = (int)readVarint();
+				at = skip(pos);
+				if(found == index) {
+					cur.cursor = at;
+					field = true;
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		@Override
+		public Load[] splitList(int parts, int min) throws IOException {
+			if(field || !cur.list || cur.index != 0 || cur.count < min || parts < 2)
+				return null;
+			Load[] r = new Load[parts];
+			int at = cur.start, i = 0;
+			for(int p = 0; p < parts; p++) {
+				int first = i, last = (int)((long)(p + 1) * cur.count / parts), start = at;
+				for(; i < last; i++)
+					at = skip(at);
+				final int count = last - first;
+				r[p] = new BinaryLoad(buf.duplicate().order(ByteOrder.LITTLE_ENDIAN), strings, start, at, count) {
+					boolean opened = false;
+					
+					@Override
+					public int getList() throws IOException {
+						if(opened)
+							return super.getList();
+						opened = true;
+						return count;
+					}
+				};
+			}
+			return r;
+		}
+		
+		/**
+		 * Get the names of the fields of the current structure.
+		 * @return				Field names.
+		 * @throws IOException	If the current value is not a structure.
+		 */
+		ArrayList<String> getFieldNames() throws IOException {
+			if(cur.list || field)
+				throw new IOException("cannot get field names from field or list");
+			ArrayList<String> r = new ArrayList<String>();
+			int old = pos;
+			for(int at = cur.start; at < cur.end; at = skip(pos)) {
+				pos = at;
+				r.add(strings.get((int)readVarint()));
+			}
+			pos = old;
+			return r;
+		}
+		
+		/**
+		 * Copy the current value to a save (whatever its type).
+		 * @param save			Save to copy to.
+		 * @throws IOException	IO error or no current value.
+		 */
+		void copy(Save save) throws IOException {
+			int tag = field || (cur.list && pos < cur.end) ? buf.get(pos) : -1;
+			switch(tag) {
+			case T_NULL:
+			case T_STRING:
+			case T_TEXT:
+				save.put(get(String.class));
+				break;
+			case T_FALSE:
+			case T_TRUE:
+				save.put(get(Boolean.class));
+				break;
+			case T_INT:
+				save.putLong(getLong());
+				break;
+			case T_DOUBLE:
+				save.putDouble(getDouble());
+				break;
+			case T_FLOAT:
+				save.put(get(Float.class));
+				break;
+			case T_CHAR:
+				save.put(get(Character.class));
+				break;
+			case T_INTS:
+				save.putArray(getIntArray());
+				break;
+			case T_LONGS:
+				save.putArray(getLongArray());
+				break;
+			case T_DOUBLES:
+				save.putArray(getDoubleArray());
+				break;
+			case T_LIST:
+				int n = getList();
+				save.putList();
+				for(int i = 0; i < n; i++)
+					copy(save);
+				end();
+				save.end();
+				break;
+			case T_STRUCT:
+				getStruct();
+				save.putStruct();
+				pos = cur.start;
+				while(pos < cur.end) {
+					save.putField(strings.get((int)readVarint()));
+					field = true;
+					copy(save);
+				}
+				end();
+				save.end();
+				break;
+			default:
+				throw new IOException("no value to copy");
+			}
+		}
+		
+		@Override
+		public void end() throws IOException {
+			if(stack.isEmpty())
+				return;
+			pos = cur.end;
+			cur = stack.pop();
+			field = false;
+			if(cur.list)
+				cur.index++;
+		}
+	
+	}
+	
+	/**
+	 * String table of a loaded store. The strings are decoded only when they are
+	 * used and the names are looked up by comparing their UTF-8 bytes, so that
+	 * opening a store does not build one string per entry.
+	 * @author casse
+	 */
+	static final class StringTable {
+		final ByteBuffer buf;
+		final int[] starts, lens;
+		final String[] strings;
+		final int[] slots;
+		final ConcurrentHashMap<String, Integer> found = new ConcurrentHashMap<String, Integer>();
+		int end;
+		
+		/**
+		 * Read a string table.
+		 * @param buf	Buffer containing the table.
+		 * @param at	Position of the table (string count).
+		 */
+		StringTable(ByteBuffer buf, int at) {
+			this.buf = buf;
+			end = at;
+			int n = varint();
+			starts = new int[n];
+			lens = new int[n];
+			strings = new String[n];
+			int size = 2;
+			while(size < n * 2)
+				size *= 2;
+			slots = new int[size];
+			for(int i = 0; i < n; i++) {
+				lens[i] = varint();
+				starts[i] = end;
+				end += lens[i];
+				int s = hash(i) & (size - 1);
+				while(slots[s] != 0)
+					s = (s + 1) & (size - 1);
+				slots[s] = i + 1;
+			}
+		}
+		
+		/**
+		 * Read a varint at the end of the table.
+		 * @return	Read value.
+		 */
+		private int varint() {
+			int r = 0, shift = 0;
+			while(true) {
+				byte b = buf.get(end++);
+				r |= (b & 0x7f) << shift;
+				if((b & 0x80) == 0)
+					return r;
+				shift += 7;
+			}
+		}
+		
+		/**
+		 * Compute the hash of the bytes of a string.
+		 * @param i		String index.
+		 * @return		Hash value.
+		 */
+		private int hash(int i) {
+			int h = 0;
+			for(int j = starts[i], e = j + lens[i]; j < e; j++)
+				h = 31 * h + buf.get(j);
+			return h;
+		}
+		
+		/**
+		 * Get a string.
+		 * @param i		String index.
+		 * @return		Decoded string.
+		 */
+		String get(int i) {
+			String s = strings[i];
+			if(s == null) {
+				byte[] bytes;
+				int off = 0;
+				if(buf.hasArray()) {
+					bytes = buf.array();
+					off = buf.arrayOffset() + starts[i];
+				}
+				else {
+					bytes = new byte[lens[i]];
+					ByteBuffer b = buf.duplicate();
+					b.position(starts[i]);
+					b.get(bytes);
+				}
+				s = new String(bytes, off, lens[i], UTF8);
+				strings[i] = s;
+			}
+			return s;
+		}
+		
+		/**
+		 * Look for a string in the table.
+		 * @param s		Looked string.
+		 * @return		String index or -1 if it is not in the table.
+		 */
+		int indexOf(String s) {
+			Integer r = found.get(s);
+			if(r == null) {
+				byte[] bytes = s.getBytes(UTF8);
+				int h = 0;
+				for(byte b: bytes)
+					h = 31 * h + b;
+				r = -1;
+				for(int i = h & (slots.length - 1); slots[i] != 0 && r < 0; i = (i + 1) & (slots.length - 1))
+					if(equals(slots[i] - 1, bytes))
+						r = slots[i] - 1;
+				found.put(s, r);
+			}
+			return r;
+		}
+		
+		/**
+		 * Compare a string of the table with bytes.
+		 * @param i			String index.
+		 * @param bytes		Bytes to compare with.
+		 * @return			True if they are equal, false else.
+		 */
+		private boolean equals(int i, byte[] bytes) {
+			if(lens[i] != bytes.length)
+				return false;
+			for(int j = 0; j < bytes.length; j++)
+				if(buf.get(starts[i] + j) != bytes[j])
+					return false;
+			return true;
+		}
+	
+	}
+	
+	private static final class LoadState {
+		boolean list;
+		int start, end, cursor;
+		int count, index;
+	}
+	
+	/**
+	 * Convert a boolean to the given type.
+	 * @param type			Target type.
+	 * @param v				Value to convert.
+	 * @return				Converted value.
+	 * @throws IOException	If the conversion is not possible.
+	 */
+	private static Object convert(Class<?> type, boolean v) throws IOException {
+		if(type == boolean.class || type == Boolean.class)
+			return v;
+		else
+			return TextSerializer.unserialize(type, v ? "on" : "off");
+	}
+	
+	/**
+	 * Convert an integer to the given type.
+	 * @param type			Target type.
+	 * @param v				Value to convert.
+	 * @return				Converted value.
+	 * @throws IOException	If the conversion is not possible.
+	 */
+	private static Object convert(Class<?> type, long v) throws IOException {
+		if(type == int.class || type == Integer.class)
+			return (int)v;
+		else if(type == long.class || type == Long.class)
+			return v;
+		else if(type == short.class || type == Short.class)
+			return (short)v;
+		else if(type == byte.class || type == Byte.class)
+			return (byte)v;
+		else if(type == double.class || type == Double.class)
+			return (double)v;
+		else if(type == float.class || type == Float.class)
+			return (float)v;
+		else
+			return TextSerializer.unserialize(type, Long.toString(v));
+	}
+	
+	/**
+	 * Convert a floating-point value to the given type.
+	 * @param type			Target type.
+	 * @param v				Value to convert.
+	 * @return				Converted value.
+	 * @throws IOException	If the conversion is not possible.
+	 */
+	private static Object convert(Class<?> type, double v) throws IOException {
+		if(type == double.class || type == Double.class)
+			return v;
+		else if(type == float.class || type == Float.class)
+			return (float)v;
+		else
+			return TextSerializer.unserialize(type, Double.toString(v));
+	}
+	
+	/**
+	 * Convert a character to the given type.
+	 * @param type			Target type.
+	 * @param v				Value to convert.
+	 * @return				Converted value.
+	 * @throws IOException	If the conversion is not possible.
+	 */
+	private static Object convert(Class<?> type, char v) throws IOException {
+		if(type == char.class || type == Character.class)
+			return v;
+		else
+			return TextSerializer.unserialize(type, String.valueOf(v));
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream reading the remaining bytes of a buffer.
+ * @author casse
+ */
+class BufferInputStream extends InputStream {
+	private final ByteBuffer buf;
+	
+	/**
+	 * Build the stream.
+	 * @param buf	Buffer to read (its position is moved by the reads).
+	 */
+	BufferInputStream(ByteBuffer buf) {
+		this.buf = buf;
+	}
+	
+	/**
+	 * Called each time bytes are read.
+	 * @param n		Number of read bytes.
+	 */
+	void consumed(int n) {
+	}
+	
+	@Override
+	public int read() {
+		if(!buf.hasRemaining())
+			return -1;
+		consumed(1);
+		return buf.get() & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if(len == 0)
+			return 0;
+		if(!buf.hasRemaining())
+			return -1;
+		int n = Math.min(len, buf.remaining());
+		buf.get(b, off, n);
+		consumed(n);
+		return n;
+	}
+	
+	@Override
+	public long skip(long n) {
+		int m = (int)Math.max(0, Math.min(n, buf.remaining()));
+		buf.position(buf.position() + m);
+		consumed(m);
+		return m;
+	}
+	
+	@Override
+	public int available() {
+		return buf.remaining();
+	}
+
+}
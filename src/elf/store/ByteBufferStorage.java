@@ -0,0 +1,216 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage keeping its content in a byte buffer, on the heap or direct (outside of
+ * the Java heap). The buffer grows as needed, keeping its kind.
+ * 
+ * Unlike {@link MemoryStorage}, the content is written in place: the storage must not be
+ * read while it is written. The storage accounts exactly the bytes read and written.
+ * @author casse
+ */
+public class ByteBufferStorage implements MappableStorage {
+	private final String name;
+	private final boolean direct;
+	private ByteBuffer buf;
+	private int size = -1;
+	private long read, written;
+	
+	/**
+	 * Build an empty storage.
+	 * @param capacity	Initial capacity (in bytes).
+	 * @param direct	True to use a direct buffer, false for a heap buffer.
+	 */
+	public ByteBufferStorage(int capacity, boolean direct) {
+		this.direct = direct;
+		name = direct ? "direct" : "heap";
+		buf = allocate(capacity);
+	}
+	
+	/**
+	 * Build a storage whose content is made of the remaining bytes of the given
+	 * buffer (that is used for the next writes).
+	 * @param buffer	Buffer containing the content.
+	 */
+	public ByteBufferStorage(ByteBuffer buffer) {
+		direct = buffer.isDirect();
+		name = direct ? "direct" : "heap";
+		buf = buffer.slice();
+		size = buf.capacity();
+	}
+	
+	/**
+	 * Allocate a buffer of the storage kind.
+	 * @param capacity	Buffer capacity.
+	 * @return			Allocated buffer.
+	 */
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+	
+	@Override
+	public String getName() {
+		return "buffer:" + name;
+	}
+	
+	@Override
+	public synchronized boolean exists() {
+		return size >= 0;
+	}
+	
+	/**
+	 * Test if the storage uses a direct buffer.
+	 * @return	True if the buffer is direct, false else.
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+	
+	/**
+	 * Get the size of the content.
+	 * @return	Content size in bytes (0 if the storage does not exist).
+	 */
+	public synchronized int size() {
+		return Math.max(size, 0);
+	}
+	
+	/**
+	 * Get the capacity of the underlying buffer.
+	 * @return	Capacity in bytes.
+	 */
+	public synchronized int capacity() {
+		return buf.capacity();
+	}
+	
+	/**
+	 * Get the number of bytes read from the storage since its creation.
+	 * @return	Read bytes.
+	 */
+	public synchronized long getReadBytes() {
+		return read;
+	}
+	
+	/**
+	 * Get the number of bytes written to the storage since its creation.
+	 * @return	Written bytes.
+	 */
+	public synchronized long getWrittenBytes() {
+		return written;
+	}
+	
+	/**
+	 * Get a buffer on the current content.
+	 * @return					Read-only buffer.
+	 * @throws IOException		If the storage does not exist.
+	 */
+	private synchronized ByteBuffer content() throws IOException {
+		if(size < 0)
+			throw new FileNotFoundException(getName());
+		ByteBuffer r = buf.duplicate();
+		r.limit(size).position(0);
+		return r.asReadOnlyBuffer();
+	}
+	
+	@Override
+	public InputStream read() throws IOException {
+		return new BufferInputStream(content()) {
+			@Override
+			void consumed(int n) {
+				synchronized(ByteBufferStorage.this) {
+					read += n;
+				}
+			}
+		};
+	}
+	
+	@Override
+	public ByteBuffer map() throws IOException {
+		ByteBuffer r = content();
+		synchronized(this) {
+			read += r.remaining();
+		}
+		return r;
+	}
+	
+	@Override
+	public synchronized OutputStream write() {
+		return new Output(buf);
+	}
+	
+	/**
+	 * Stream writing in the buffer from its start.
+	 */
+	private class Output extends OutputStream {
+		private ByteBuffer out;
+		private boolean closed = false;
+		
+		/**
+		 * Build the stream.
+		 * @param out	Buffer to write to.
+		 */
+		Output(ByteBuffer out) {
+			this.out = out.duplicate();
+			this.out.clear();
+		}
+		
+		/**
+		 * Ensure there is enough room to write.
+		 * @param n		Number of bytes to write.
+		 */
+		private void reserve(int n) {
+			if(out.remaining() >= n)
+				return;
+			ByteBuffer nout = allocate(Math.max(out.capacity() * 2, out.position() + n));
+			out.flip();
+			nout.put(out);
+			out = nout;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			reserve(1);
+			out.put((byte)b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			reserve(len);
+			out.put(b, off, len);
+		}
+		
+		@Override
+		public void close() {
+			if(closed)
+				return;
+			closed = true;
+			synchronized(ByteBufferStorage.this) {
+				buf = out;
+				size = out.position();
+				written += size;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,235 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Storage decorator compressing the data written to another storage.
+ * 
+ * The codec is chosen at build time: DEFLATE (zlib format), GZIP (plain gzip file) or
+ * FAST (raw deflate at the best speed level). DEFLATE and FAST streams start with
+ * a magic header followed by the codec. The format is detected when reading, so that
+ * the uncompressed data, the data written with another codec and the plain gzip files
+ * can still be read.
+ * @author casse
+ */
+public class CompressedStorage implements Storage {
+	public static final int
+		DEFLATE = 0,
+		GZIP = 1,
+		FAST = 2;
+	static final byte[] MAGIC = { 'E', 'L', 'F', 'Z' };
+	static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	private final Storage storage;
+	private final int codec;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private int size = DEFAULT_BUFFER_SIZE;
+	
+	/**
+	 * Build a compressed storage with the DEFLATE codec.
+	 * @param storage	Decorated storage.
+	 */
+	public CompressedStorage(Storage storage) {
+		this(storage, DEFLATE);
+	}
+	
+	/**
+	 * Build a compressed storage.
+	 * @param storage	Decorated storage.
+	 * @param codec		Codec used to write (one of DEFLATE, GZIP or FAST).
+	 */
+	public CompressedStorage(Storage storage, int codec) {
+		if(codec < DEFLATE || codec > FAST)
+			throw new IllegalArgumentException("unknown codec " + codec);
+		this.storage = storage;
+		this.codec = codec;
+	}
+	
+	/**
+	 * Set the compression level used by DEFLATE and GZIP codecs.
+	 * @param level		Compression level (0 to 9, -1 for default).
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+	
+	/**
+	 * Set the size of the buffers used to compress and decompress.
+	 * @param size		Buffer size in bytes.
+	 */
+	public void setBufferSize(int size) {
+		this.size = size;
+	}
+	
+	/**
+	 * Get the codec used to write.
+	 * @return	Used codec.
+	 */
+	public int getCodec() {
+		return codec;
+	}
+	
+	@Override
+	public String getName() {
+		return storage.getName();
+	}
+	
+	@Override
+	public boolean exists() {
+		return storage.exists();
+	}
+	
+	@Override
+	public InputStream read() throws IOException {
+		BufferedInputStream in = new BufferedInputStream(storage.read(), size);
+		try {
+			in.mark(MAGIC.length + 1);
+			byte[] head = new byte[MAGIC.length + 1];
+			int n = 0;
+			while(n < head.length) {
+				int r = in.read(head, n, head.length - n);
+				if(r < 0)
+					break;
+				n += r;
+			}
+			if(n >= 2 && (head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b) {
+				in.reset();
+				return new GZIPInputStream(in, size);
+			}
+			for(int i = 0; i < MAGIC.length; i++)
+				if(i >= n || head[i] != MAGIC[i]) {
+					in.reset();
+					return in;
+				}
+			if(n <= MAGIC.length)
+				throw new IOException("truncated compressed storage " + getName());
+			switch(head[MAGIC.length]) {
+			case DEFLATE:
+				return new Inflating(in, new Inflater(), size);
+			case FAST:
+				return new Inflating(in, new Inflater(true), size);
+			default:
+				throw new IOException("unknown codec " + head[MAGIC.length] + " in " + getName());
+			}
+		}
+		catch(IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+	
+	@Override
+	public OutputStream write() throws IOException {
+		OutputStream out = storage.write();
+		try {
+			switch(codec) {
+			case GZIP:
+				return new Gzipping(out, size, level);
+			case FAST:
+				out.write(MAGIC);
+				out.write(FAST);
+				return new Deflating(out, new Deflater(Deflater.BEST_SPEED, true), size);
+			default:
+				out.write(MAGIC);
+				out.write(DEFLATE);
+				return new Deflating(out, new Deflater(level), size);
+			}
+		}
+		catch(IOException e) {
+			Storage.abort(out);
+			throw e;
+		}
+	}
+	
+	/**
+	 * GZIP stream with a compression level.
+	 */
+	private static class Gzipping extends GZIPOutputStream implements Storage.Abortable {
+		
+		public Gzipping(OutputStream out, int size, int level) throws IOException {
+			super(out, size);
+			def.setLevel(level);
+		}
+		
+		@Override
+		public void abort() {
+			def.end();
+			Storage.abort(out);
+		}
+	
+	}
+	
+	/**
+	 * Deflater stream releasing the deflater when closed.
+	 */
+	private static class Deflating extends DeflaterOutputStream implements Storage.Abortable {
+		
+		public Deflating(OutputStream out, Deflater def, int size) {
+			super(out, def, size);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			}
+			finally {
+				def.end();
+			}
+		}
+		
+		@Override
+		public void abort() {
+			def.end();
+			Storage.abort(out);
+		}
+	
+	}
+	
+	/**
+	 * Inflater stream releasing the inflater when closed.
+	 */
+	private static class Inflating extends InflaterInputStream {
+		
+		public Inflating(InputStream in, Inflater inf, int size) {
+			super(in, inf, size);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			}
+			finally {
+				inf.end();
+			}
+		}
+	
+	}
+
+}
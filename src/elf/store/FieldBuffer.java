@@ -0,0 +1,200 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Side buffer used by the streaming loads to keep the fields of a structure met
+ * while looking forward for another field. The values are kept in the form
+ * captured by the load as long as the memory budget shared by all the buffers of
+ * the load is not exhausted: beyond, the fields are only marked as skipped and the
+ * load has to re-read the storage to get them back (see {@link #navigate(StructuredStore.Load, Object[], boolean[], String)}).
+ * @author casse
+ * 
+ * @param <T>	Type of captured values.
+ */
+class FieldBuffer<T> {
+	public static final int DEFAULT_BUDGET = 1 << 20;
+	private final Budget budget;
+	private final HashMap<String, Entry<T>> fields = new HashMap<String, Entry<T>>();
+	
+	/**
+	 * Build a field buffer.
+	 * @param budget	Memory budget of the load.
+	 */
+	public FieldBuffer(Budget budget) {
+		this.budget = budget;
+	}
+	
+	/**
+	 * Test if there is still room in the budget to keep a value.
+	 * @return	True if a value can be captured, false if it has to be skipped.
+	 */
+	public boolean hasRoom() {
+		return budget.left > 0;
+	}
+	
+	/**
+	 * Test if a field has already been met.
+	 * @param name	Field name.
+	 * @return		True if it has been met, false else.
+	 */
+	public boolean contains(String name) {
+		return fields.containsKey(name);
+	}
+	
+	/**
+	 * Keep the value of a field (only the first met field of a given name is kept).
+	 * If the budget is exceeded, the field is marked as skipped.
+	 * @param name		Field name.
+	 * @param value		Captured value.
+	 * @param cost		Memory cost of the value (in characters).
+	 */
+	public void keep(String name, T value, int cost) {
+		if(fields.containsKey(name))
+			return;
+		if(cost > budget.left)
+			skip(name);
+		else {
+			budget.left -= cost;
+			fields.put(name, new Entry<T>(value, cost));
+		}
+	}
+	
+	/**
+	 * Mark a field as skipped (only the first met field of a given name is recorded).
+	 * @param name		Field name.
+	 */
+	public void skip(String name) {
+		if(!fields.containsKey(name))
+			fields.put(name, new Entry<T>(null, -1));
+	}
+	
+	/**
+	 * Test if a met field has been skipped.
+	 * @param name	Field name.
+	 * @return		True if it is skipped, false else.
+	 */
+	public boolean isSkipped(String name) {
+		Entry<T> entry = fields.get(name);
+		return entry != null && entry.cost < 0;
+	}
+	
+	/**
+	 * Remove a kept field and give back its memory to the budget.
+	 * @param name	Field name.
+	 * @return		Kept value (null if it is not kept).
+	 */
+	public T take(String name) {
+		Entry<T> entry = fields.remove(name);
+		if(entry == null || entry.cost < 0)
+			return null;
+		budget.left += entry.cost;
+		return entry.value;
+	}
+	
+	/**
+	 * Drop all the kept fields and give back their memory to the budget
+	 * (called when the structure is ended).
+	 */
+	public void clear() {
+		for(Entry<T> entry: fields.values())
+			if(entry.cost > 0)
+				budget.left += entry.cost;
+		fields.clear();
+	}
+	
+	/**
+	 * Move a fresh load of the same storage to a field that has been skipped.
+	 * The path gives the steps from the top structure to the structure containing the field:
+	 * a field name or an item index (in the list of the previous step) and
+	 * the kind of the entered value (structure or list). The skipper is used to skip
+	 * the list items preceding the looked one.
+	 * @param load				Fresh load.
+	 * @param steps				Field names (String) or item indexes (Integer).
+	 * @param lists				For each step, true if a list is entered, false for a structure.
+	 * @param name				Name of the looked field.
+	 * @return					True if the field has been found, false else.
+	 * @throws IOException		IO error.
+	 */
+	public static boolean navigate(StructuredStore.Load load, Object[] steps, boolean[] lists, String name) throws IOException {
+		StructuredStore.Cursor cursor = null;
+		for(int i = 0; i < steps.length; i++) {
+			if(steps[i] instanceof Integer) {
+				for(int j = (Integer)steps[i]; j >= 0; j--) {
+					if(cursor == null || !cursor.hasNextItem())
+						return false;
+					if(j > 0)
+						((Skipper)load).skipItem();
+				}
+			}
+			else if(!load.getField((String)steps[i]))
+				return false;
+			if(lists[i])
+				cursor = load.openList();
+			else {
+				load.getStruct();
+				cursor = null;
+			}
+		}
+		return load.getField(name);
+	}
+	
+	/**
+	 * Memory budget shared by the buffers of a load.
+	 */
+	public static final class Budget {
+		int left;
+		
+		/**
+		 * Build a budget.
+		 * @param size	Budget size (in characters).
+		 */
+		public Budget(int size) {
+			left = size;
+		}
+	}
+	
+	/**
+	 * Implemented by the streaming loads able to re-read their storage.
+	 */
+	interface Skipper {
+		
+		/**
+		 * Skip the current list item (got by {@link StructuredStore.Cursor#hasNextItem()}).
+		 * @throws IOException	IO error.
+		 */
+		void skipItem() throws IOException;
+	
+	}
+	
+	/**
+	 * A met field.
+	 */
+	private static final class Entry<T> {
+		final T value;
+		final int cost;
+		
+		Entry(T value, int cost) {
+			this.value = value;
+			this.cost = cost;
+		}
+	}
+}
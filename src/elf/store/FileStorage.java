@@ -17,14 +17,17 @@
  */
 package elf.store;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import elf.os.Path;
 
-public class FileStorage implements Storage {
+public class FileStorage implements RandomAccessStorage {
 	Path file;
+	boolean atomic, backup;
 	
 	/**
 	 * Build a storage on the OS file system.
@@ -34,6 +37,16 @@ public class FileStorage implements Storage {
 		this.file = file;
 	}
 	
+	/**
+	 * Build a storage on the OS file system.
+	 * @param file		File path.
+	 * @param atomic	True to perform atomic writes (see {@link Path#writeAtomic(boolean)}).
+	 */
+	public FileStorage(Path file, boolean atomic) {
+		this.file = file;
+		this.atomic = atomic;
+	}
+	
 	/**
 	 * Build a storage on the OS file system.
 	 * @param file		File path.
@@ -42,6 +55,14 @@ public class FileStorage implements Storage {
 		this.file = new Path(file);
 	}
 	
+	/**
+	 * Get the path of the file.
+	 * @return	File path.
+	 */
+	public Path getPath() {
+		return file;
+	}
+	
 	@Override
 	public String getName() {
 		return "file:" + file;
@@ -52,9 +73,71 @@ public class FileStorage implements Storage {
 		return file.read();
 	}
 
+	@Override
+	public FileChannel channel() throws IOException {
+		return file.readChannel();
+	}
+	
 	@Override
 	public OutputStream write() throws IOException {
-		return file.write();
+		StoreCache.shared().invalidate(file);
+		return new Output(atomic ? file.writeAtomic(backup) : file.write());
+	}
+	
+	/**
+	 * Output stream invalidating the cached contents of the file when closed.
+	 */
+	private class Output extends FilterOutputStream implements Storage.Abortable {
+		
+		Output(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			}
+			finally {
+				StoreCache.shared().invalidate(file);
+			}
+		}
+		
+		@Override
+		public void abort() {
+			Storage.abort(out);
+		}
+	}
+	
+	/**
+	 * Set the atomic write mode: the file is only replaced when the write
+	 * is completed (and forced to the disk).
+	 * @param atomic	True for atomic write, false else.
+	 */
+	public void setAtomic(boolean atomic) {
+		this.atomic = atomic;
+	}
+	
+	/**
+	 * In atomic mode, keep the previous version of the file as a backup.
+	 * @param backup	True to keep backup, false else.
+	 */
+	public void setBackup(boolean backup) {
+		this.backup = backup;
+	}
+	
+	/**
+	 * Restore the previous version of the file from the backup.
+	 * @return				True if the backup has been restored, false if there is no backup.
+	 * @throws IOException	IO error.
+	 */
+	public boolean rollback() throws IOException {
+		return file.rollback();
 	}
 
 	@Override
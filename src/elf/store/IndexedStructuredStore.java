@@ -0,0 +1,566 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Binary structured store with an index allowing to read a value deep in the store
+ * without reading the whole store (see {@link StructuredStore.Load#seek(String)}).
+ * 
+ * The file is a binary store, also readable by {@link BinaryStructuredStore}, followed
+ * by an index giving the offsets of the values from their path, sorted by path, and by
+ * a trailer giving the offsets of the body and of the index. To keep the index small,
+ * the fields inside list items are not indexed and only one item out of STRIDE
+ * is recorded: a value is reached by a binary search in the index and a short scan.
+ * The items of packed arrays cannot be reached by a path.
+ * 
+ * When the storage supports it (see {@link RandomAccessStorage}), the values are read
+ * with positioned reads and only the header and the index are read when the load
+ * is opened. A mapped storage (see {@link MappableStorage}) is used without copy.
+ * A binary store without index is scanned from the top structure.
+ * @author casse
+ */
+public class IndexedStructuredStore extends BinaryStructuredStore {
+	static final byte[] INDEX_MAGIC = { 'E', 'L', 'F', 'X' };
+	static final int
+		STRIDE = 64,
+		TRAILER = 20,
+		PAGE = 4096;
+	
+	/**
+	 * Build an indexed structured store.
+	 * @param store		Storage to load/save to.
+	 */
+	public IndexedStructuredStore(Storage store) {
+		super(store);
+	}
+	
+	@Override
+	public Save save() throws IOException {
+		return new IndexedSave();
+	}
+	
+	@Override
+	public Load load() throws IOException {
+		return new IndexedLoad();
+	}
+	
+	/**
+	 * Save appending the index after the body.
+	 * @author casse
+	 */
+	private class IndexedSave extends BinarySave {
+		
+		@Override
+		void written(OutputStream out, int start) throws IOException {
+			BinaryLoad walker = new BinaryLoad(ByteBuffer.wrap(body.buf, 0, body.size).order(ByteOrder.LITTLE_ENDIAN), null);
+			TreeMap<String, Integer> index = new TreeMap<String, Integer>();
+			walk(walker, 0, "", index);
+			Output foot = new Output();
+			foot.writeVarint(index.size());
+			for(Map.Entry<String, Integer> entry: index.entrySet()) {
+				byte[] bytes = entry.getKey().getBytes(UTF8);
+				foot.writeVarint(bytes.length);
+				foot.write(bytes);
+				foot.writeVarint(entry.getValue());
+			}
+			foot.writeLong(start);
+			foot.writeLong(start + body.size);
+			foot.write(INDEX_MAGIC);
+			foot.writeTo(out);
+		}
+		
+		/**
+		 * Record in the index the values contained in the given value.
+		 * @param walker	Load on the body.
+		 * @param at		Value position.
+		 * @param path		Value path.
+		 * @param index		Index to fill.
+		 */
+		private void walk(BinaryLoad walker, int at, String path, TreeMap<String, Integer> index) {
+			ByteBuffer buf = walker.buf;
+			switch(buf.get(at)) {
+			case T_STRUCT:
+				int end = at + 5 + buf.getInt(at + 1);
+				walker.pos = at + 5;
+				while(walker.pos < end) {
+					String name = table.get((int)walker.readVarint());
+					String child = path.isEmpty() ? name : path + "/" + name;
+					int value = walker.pos;
+					index.put(child, value);
+					walk(walker, value, child, index);
+					walker.pos = walker.skip(value);
+				}
+				break;
+			case T_LIST:
+				int count = buf.getInt(at + 1);
+				int item = at + 9;
+				for(int i = 0; i < count; i++) {
+					if(i % STRIDE == 0)
+						index.put(path + "/" + i, item);
+					item = walker.skip(item);
+				}
+				break;
+			}
+		}
+	
+	}
+	
+	/**
+	 * Load reading the header and the index when opened and the values on demand.
+	 * Without seek, the whole body is read at the first access.
+	 * @author casse
+	 */
+	private class IndexedLoad implements Load {
+		Window win;
+		long start, limit;
+		StringTable strings;
+		String[] paths = new String[0];
+		int[] offsets = new int[0];
+		BinaryLoad load;
+		int depth = 0;
+		
+		/**
+		 * Build the load.
+		 * @throws IOException	IO error or bad format.
+		 */
+		public IndexedLoad() throws IOException {
+			if(store instanceof MappableStorage)
+				win = new Window(((MappableStorage)store).map());
+			else if(store instanceof RandomAccessStorage)
+				win = new Window(((RandomAccessStorage)store).channel());
+			else
+				win = new Window(readAll(store.read()));
+			try {
+				readHeader();
+				readIndex();
+			} catch(IOException e) {
+				win.close();
+				throw e;
+			}
+		}
+		
+		/**
+		 * Read the header and the string table.
+		 * @throws IOException	IO error or bad format.
+		 */
+		private void readHeader() throws IOException {
+			long at = 0;
+			for(int i = 0; i < MAGIC.length; i++)
+				if(at >= win.size || win.get(at++) != MAGIC[i])
+					throw new IOException("bad binary store magic");
+			if(win.get(at++) != VERSION)
+				throw new IOException("unsupported binary store version");
+			int n = (int)win.varint(at);
+			at = win.next;
+			for(int i = 0; i < n; i++) {
+				long len = win.varint(at);
+				at = win.next + len;
+			}
+			strings = new StringTable(win.read(0, (int)at), MAGIC.length + 1);
+			if(win.get(at) != T_STRUCT)
+				throw new IOException("binary store does not start with a structure");
+			start = at;
+			limit = win.size;
+		}
+		
+		/**
+		 * Read the index, if any.
+		 * @throws IOException	IO error.
+		 */
+		private void readIndex() throws IOException {
+			long size = win.size;
+			if(size < start + TRAILER)
+				return;
+			for(int i = 0; i < INDEX_MAGIC.length; i++)
+				if(win.get(size - INDEX_MAGIC.length + i) != INDEX_MAGIC[i])
+					return;
+			if(win.getLong(size - TRAILER) != start)
+				return;
+			limit = win.getLong(size - TRAILER + 8);
+			long at = limit;
+			int n = (int)win.varint(at);
+			at = win.next;
+			paths = new String[n];
+			offsets = new int[n];
+			for(int i = 0; i < n; i++) {
+				int len = (int)win.varint(at);
+				at = win.next;
+				paths[i] = UTF8.decode(win.read(at, len)).toString();
+				offsets[i] = (int)win.varint(at + len);
+				at = win.next;
+			}
+		}
+		
+		/**
+		 * Get the load on the current value, reading the whole body if needed.
+		 * @return				Current load.
+		 * @throws IOException	IO error.
+		 */
+		private BinaryLoad load() throws IOException {
+			if(load == null) {
+				load = new BinaryLoad(win.read(start, (int)(limit - start)), strings);
+				load.getStruct();
+			}
+			return load;
+		}
+		
+		/**
+		 * Look for a path in the index.
+		 * @param path	Looked path.
+		 * @return		Position of the value or -1.
+		 */
+		private long lookup(String path) {
+			int i = Arrays.binarySearch(paths, path);
+			return i < 0 ? -1 : start + offsets[i];
+		}
+		
+		/**
+		 * Look for a field by scanning a structure.
+		 * @param at			Structure position.
+		 * @param name			Field name.
+		 * @return				Position of the field value or -1.
+		 * @throws IOException	IO error.
+		 */
+		private long scan(long at, String name) throws IOException {
+			int index = strings.indexOf(name);
+			if(index < 0)
+				return -1;
+			long end = at + 5 + win.getInt(at + 1);
+			at += 5;
+			while(at < end) {
+				long found = win.varint(at);
+				at = win.next;
+				if(found == index)
+					return at;
+				at = win.skip(at);
+			}
+			return -1;
+		}
+		
+		/**
+		 * Find the position of a value from its path.
+		 * @param path			Value path.
+		 * @return				Value position or -1.
+		 * @throws IOException	IO error.
+		 */
+		private long resolve(String path) throws IOException {
+			long at = start;
+			String prefix = "";
+			for(String comp: path.split("/")) {
+				if(comp.isEmpty())
+					continue;
+				String key = prefix.isEmpty() ? comp : prefix + "/" + comp;
+				switch(win.get(at)) {
+				case T_STRUCT:
+					long found = lookup(key);
+					if(found < 0)
+						found = scan(at, comp);
+					if(found < 0)
+						return -1;
+					at = found;
+					break;
+				case T_LIST:
+					int i;
+					try {
+						i = Integer.parseInt(comp);
+					} catch(NumberFormatException e) {
+						return -1;
+					}
+					if(i < 0 || i >= win.getInt(at + 1))
+						return -1;
+					int k = i - i % STRIDE;
+					long item = lookup(prefix + "/" + k);
+					if(item < 0) {
+						item = at + 9;
+						k = 0;
+					}
+					for(; k < i; k++)
+						item = win.skip(item);
+					at = item;
+					break;
+				default:
+					return -1;
+				}
+				prefix = key;
+			}
+			return at;
+		}
+		
+		@Override
+		public boolean seek(String path) throws IOException {
+			long at = resolve(path);
+			if(at < 0)
+				return false;
+			load = new BinaryLoad(win.read(at, (int)(win.skip(at) - at)), strings);
+			depth = 0;
+			return true;
+		}
+		
+		@Override
+		public Object get(Class<?> type) throws IOException {
+			return load().get(type);
+		}
+		
+		@Override
+		public int getInt() throws IOException {
+			return load().getInt();
+		}
+		
+		@Override
+		public long getLong() throws IOException {
+			return load().getLong();
+		}
+		
+		@Override
+		public double getDouble() throws IOException {
+			return load().getDouble();
+		}
+		
+		@Override
+		public int[] getIntArray() throws IOException {
+			return load().getIntArray();
+		}
+		
+		@Override
+		public long[] getLongArray() throws IOException {
+			return load().getLongArray();
+		}
+		
+		@Override
+		public double[] getDoubleArray() throws IOException {
+			return load().getDoubleArray();
+		}
+		
+		@Override
+		public int getList() throws IOException {
+			int r = load().getList();
+			depth++;
+			return r;
+		}
+		
+		@Override
+		public Cursor openList() throws IOException {
+			Cursor r = load().openList();
+			depth++;
+			return r;
+		}
+		
+		@Override
+		public Load[] splitList(int parts, int min) throws IOException {
+			return load().splitList(parts, min);
+		}
+		
+		@Override
+		public void getStruct() throws IOException {
+			load().getStruct();
+			depth++;
+		}
+		
+		@Override
+		public boolean getField(String name) throws IOException {
+			return load().getField(name);
+		}
+		
+		@Override
+		public void end() throws IOException {
+			if(depth > 0) {
+				depth--;
+				load.end();
+			}
+			else {
+				if(load != null)
+					load.end();
+				win.close();
+			}
+		}
+	
+	}
+	
+	/**
+	 * Window on the storage reading it by pages with positioned reads
+	 * (or on the whole storage in memory).
+	 * @author casse
+	 */
+	private static final class Window {
+		FileChannel channel;
+		ByteBuffer all, page;
+		long size, base = -1, next;
+		
+		/**
+		 * Build a window on a channel.
+		 * @param channel		Channel to read from.
+		 * @throws IOException	IO error.
+		 */
+		Window(FileChannel channel) throws IOException {
+			this.channel = channel;
+			size = channel.size();
+			page = ByteBuffer.allocate(PAGE);
+			page.limit(0);
+		}
+		
+		/**
+		 * Build a window on a buffer containing the whole storage.
+		 * @param all	Storage content.
+		 */
+		Window(ByteBuffer all) {
+			this.all = all;
+			size = all.limit();
+		}
+		
+		/**
+		 * Close the window.
+		 * @throws IOException	IO error.
+		 */
+		void close() throws IOException {
+			if(channel != null)
+				channel.close();
+		}
+		
+		/**
+		 * Get a byte.
+		 * @param at			Byte position.
+		 * @return				Byte value.
+		 * @throws IOException	IO error.
+		 */
+		byte get(long at) throws IOException {
+			if(at >= size)
+				throw new IOException("unexpected end of store");
+			if(all != null)
+				return all.get((int)at);
+			if(at < base || at >= base + page.limit()) {
+				base = at - at % PAGE;
+				page.clear();
+				while(page.hasRemaining())
+					if(channel.read(page, base + page.position()) < 0)
+						break;
+				page.flip();
+			}
+			return page.get((int)(at - base));
+		}
+		
+		/**
+		 * Get a 32-bit little-endian integer.
+		 * @param at			Integer position.
+		 * @return				Integer value.
+		 * @throws IOException	IO error.
+		 */
+		int getInt(long at) throws IOException {
+			return (get(at) & 0xff)
+				| (get(at + 1) & 0xff) << 8
+				| (get(at + 2) & 0xff) << 16
+				| (get(at + 3) & 0xff) << 24;
+		}
+		
+		/**
+		 * Get a 64-bit little-endian integer.
+		 * @param at			Integer position.
+		 * @return				Integer value.
+		 * @throws IOException	IO error.
+		 */
+		long getLong(long at) throws IOException {
+			return (getInt(at) & 0xffffffffL) | (long)getInt(at + 4) << 32;
+		}
+		
+		/**
+		 * Get an unsigned varint. The position after the varint is stored in next.
+		 * @param at			Varint position.
+		 * @return				Varint value.
+		 * @throws IOException	IO error.
+		 */
+		long varint(long at) throws IOException {
+			long r = 0;
+			int shift = 0;
+			while(true) {
+				byte b = get(at++);
+				r |= (long)(b & 0x7f) << shift;
+				if((b & 0x80) == 0) {
+					next = at;
+					return r;
+				}
+				shift += 7;
+			}
+		}
+		
+		/**
+		 * Read a block of bytes.
+		 * @param at			Block position.
+		 * @param len			Block size.
+		 * @return				Little-endian buffer on the block.
+		 * @throws IOException	IO error.
+		 */
+		ByteBuffer read(long at, int len) throws IOException {
+			if(at + len > size)
+				throw new IOException("unexpected end of store");
+			if(all != null) {
+				ByteBuffer r = all.duplicate();
+				r.position((int)at);
+				r.limit((int)at + len);
+				return r.slice().order(ByteOrder.LITTLE_ENDIAN);
+			}
+			ByteBuffer r = ByteBuffer.allocate(len);
+			while(r.hasRemaining())
+				if(channel.read(r, at + r.position()) < 0)
+					throw new IOException("unexpected end of store");
+			r.flip();
+			return r.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		
+		/**
+		 * Compute the position after the value at the given position.
+		 * @param at			Value position.
+		 * @return				Position after the value.
+		 * @throws IOException	IO error.
+		 */
+		long skip(long at) throws IOException {
+			switch(get(at)) {
+			case T_INT:
+			case T_CHAR:
+			case T_STRING:
+			case T_TEXT:
+				varint(at + 1);
+				return next;
+			case T_DOUBLE:
+				return at + 9;
+			case T_FLOAT:
+				return at + 5;
+			case T_LIST:
+				return at + 9 + getInt(at + 5);
+			case T_STRUCT:
+				return at + 5 + getInt(at + 1);
+			case T_INTS:
+				return at + 5 + getInt(at + 1) * 4L;
+			case T_LONGS:
+			case T_DOUBLES:
+				return at + 5 + getInt(at + 1) * 8L;
+			default:
+				return at + 1;
+			}
+		}
+	
+	}
+
+}
@@ -0,0 +1,1061 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Stack;
+
+/**
+ * Structured store supporting JSON.
+ * 
+ * The structures are saved as JSON objects (the top structure being the document
+ * object), the lists as JSON arrays and the values as JSON numbers, booleans or strings.
+ * The save writes directly to a buffered writer and the load pulls the tokens from
+ * a character window on the stream: no document is built. Like the XML streaming load,
+ * the fields met before being asked (in the limit of the field budget, see {@link FieldBuffer})
+ * and the lists whose size is required are kept aside as light trees of strings, lists and maps.
+ * @author casse
+ */
+public class JSONStructuredStore implements StructuredStore {
+	private static final int
+		IN_STRUCT = 0,
+		IN_LIST = 1,
+		IN_FIELD = 2;
+	private static final int BUFFER_SIZE = 8192;
+	private static final String NULL = "null";
+	Storage store;
+	boolean indent;
+	int budget = FieldBuffer.DEFAULT_BUDGET;
+	
+	/**
+	 * Build a JSON structured store.
+	 * @param store		Stream storage to load/save to.
+	 */
+	public JSONStructuredStore(Storage store) {
+		this(store, true);
+	}
+	
+	/**
+	 * Build a JSON structured store.
+	 * @param store		Stream storage to load/save to.
+	 * @param indent	True to indent the saved document, false to save it compact.
+	 */
+	public JSONStructuredStore(Storage store, boolean indent) {
+		this.store = store;
+		this.indent = indent;
+	}
+	
+	/**
+	 * Set the memory budget of a load to keep the fields met before being asked.
+	 * Beyond, these fields are re-read from the storage.
+	 * @param budget	Budget size (in characters).
+	 */
+	public void setFieldBudget(int budget) {
+		this.budget = budget;
+	}
+	
+	@Override
+	public Save save() throws IOException {
+		return new JSONSave();
+	}
+	
+	@Override
+	public Load load() throws IOException {
+		return new JSONLoad();
+	}
+	
+	@Override
+	public boolean supports(Class<?> type) {
+		return TextSerializer.get(type) != null;
+	}
+	
+	@Override
+	public boolean exists() {
+		return store.exists();
+	}
+	
+	/**
+	 * Save part.
+	 * @author casse
+	 */
+	private class JSONSave implements Save {
+		OutputStream raw;
+		Writer out;
+		int state = IN_STRUCT;
+		boolean first = true;
+		int[] states = new int[16];
+		boolean[] firsts = new boolean[16];
+		int depth = 0;
+		char[] digits = new char[32];
+		
+		/**
+		 * Build a save.
+		 * @throws IOException	IO error.
+		 */
+		public JSONSave() throws IOException {
+			raw = store.write();
+			out = new BufferedWriter(new OutputStreamWriter(raw, StandardCharsets.UTF_8), BUFFER_SIZE);
+			out.write('{');
+		}
+		
+		/**
+		 * Push a new state.
+		 * @param new_state		Pushed state.
+		 */
+		private void push(int new_state) {
+			if(depth == states.length) {
+				int[] nstates = new int[depth * 2];
+				System.arraycopy(states, 0, nstates, 0, depth);
+				states = nstates;
+				boolean[] nfirsts = new boolean[depth * 2];
+				System.arraycopy(firsts, 0, nfirsts, 0, depth);
+				firsts = nfirsts;
+			}
+			states[depth] = state;
+			firsts[depth] = first;
+			depth++;
+			state = new_state;
+			first = true;
+		}
+		
+		/**
+		 * Pop an old state.
+		 */
+		private void pop() {
+			depth--;
+			state = states[depth];
+			first = firsts[depth];
+		}
+		
+		/**
+		 * Write the separator before an item or a field.
+		 * @throws IOException	IO error.
+		 */
+		private void separate() throws IOException {
+			if(!first)
+				out.write(',');
+			first = false;
+			newLine(depth + 1);
+		}
+		
+		/**
+		 * Go to a new line (in indentation mode).
+		 * @param level			Indentation level.
+		 * @throws IOException	IO error.
+		 */
+		private void newLine(int level) throws IOException {
+			if(indent) {
+				out.write('\n');
+				for(int i = 0; i < level; i++)
+					out.write('\t');
+			}
+		}
+		
+		/**
+		 * Start a value in the current state.
+		 * @return				True if the value ends a field, false else.
+		 * @throws IOException	IO error.
+		 */
+		private boolean startValue() throws IOException {
+			switch(state) {
+			case IN_STRUCT:
+				throw new StructuralError("cannot put raw value in structure");
+			case IN_LIST:
+				separate();
+				return false;
+			default:
+				return true;
+			}
+		}
+		
+		/**
+		 * Write a JSON string.
+		 * @param text			String to write.
+		 * @throws IOException	IO error.
+		 */
+		private void writeString(String text) throws IOException {
+			out.write('"');
+			int start = 0, n = text.length();
+			for(int i = 0; i < n; i++) {
+				char c = text.charAt(i);
+				if(c >= ' ' && c != '"' && c != '\\')
+					continue;
+				out.write(text, start, i - start);
+				start = i + 1;
+				switch(c) {
+				case '"':	out.write("\\\""); break;
+				case '\\':	out.write("\\\\"); break;
+				case '\n':	out.write("\\n"); break;
+				case '\r':	out.write("\\r"); break;
+				case '\t':	out.write("\\t"); break;
+				default:
+					out.write("\\u00");
+					out.write(Character.forDigit(c >> 4, 16));
+					out.write(Character.forDigit(c & 0xf, 16));
+					break;
+				}
+			}
+			out.write(text, start, n - start);
+			out.write('"');
+		}
+		
+		/**
+		 * Write a raw value.
+		 * @param text			Text of the value (or null to use the digits buffer).
+		 * @param len			Length of the text in the digits buffer.
+		 * @throws IOException	IO error.
+		 */
+		private void putRaw(String text, int len) throws IOException {
+			boolean field = startValue();
+			if(text != null)
+				out.write(text);
+			else
+				out.write(digits, 0, len);
+			if(field)
+				pop();
+		}
+		
+		@Override
+		public void put(Object value) throws IOException {
+			if(value == null)
+				putRaw(NULL, 0);
+			else if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+				putLong(((Number)value).longValue());
+			else if(value instanceof Double || value instanceof Float)
+				putDouble(((Number)value).doubleValue());
+			else if(value instanceof Boolean)
+				putRaw(value.toString(), 0);
+			else {
+				boolean field = startValue();
+				writeString(TextSerializer.serialize(value));
+				if(field)
+					pop();
+			}
+		}
+		
+		@Override
+		public void putInt(int value) throws IOException {
+			putRaw(null, TextSerializer.formatLong(value, digits, 0));
+		}
+		
+		@Override
+		public void putLong(long value) throws IOException {
+			putRaw(null, TextSerializer.formatLong(value, digits, 0));
+		}
+		
+		@Override
+		public void putDouble(double value) throws IOException {
+			if(Double.isNaN(value) || Double.isInfinite(value)) {
+				boolean field = startValue();
+				writeString(Double.toString(value));
+				if(field)
+					pop();
+			}
+			else
+				putRaw(null, TextSerializer.formatDouble(value, digits, 0));
+		}
+		
+		@Override
+		public void putList() throws IOException {
+			switch(state) {
+			case IN_STRUCT:
+				throw new StructuralError("cannot put raw list in structure");
+			case IN_LIST:
+				separate();
+				push(IN_LIST);
+				break;
+			case IN_FIELD:
+				state = IN_LIST;
+				first = true;
+				break;
+			}
+			out.write('[');
+		}
+		
+		@Override
+		public void putStruct() throws IOException {
+			switch(state) {
+			case IN_STRUCT:
+				throw new StructuralError("cannot put struct in struct");
+			case IN_LIST:
+				separate();
+				push(IN_STRUCT);
+				break;
+			case IN_FIELD:
+				state = IN_STRUCT;
+				first = true;
+				break;
+			}
+			out.write('{');
+		}
+		
+		@Override
+		public void putField(String name) throws IOException {
+			switch(state) {
+			case IN_STRUCT:
+				separate();
+				writeString(name);
+				out.write(':');
+				if(indent)
+					out.write(' ');
+				push(IN_FIELD);
+				break;
+			case IN_LIST:
+				throw new StructuralError("cannot put field in list");
+			case IN_FIELD:
+				throw new StructuralError("cannot put field in field");
+			}
+		}
+		
+		@Override
+		public void end() throws IOException {
+			if(state == IN_FIELD)
+				throw new StructuralError("ending inside an empty field");
+			if(!first)
+				newLine(depth);
+			out.write(state == IN_LIST ? ']' : '}');
+			if(depth == 0) {
+				try {
+					if(indent)
+						out.write('\n');
+					out.flush();
+				}
+				catch(IOException e) {
+					abort();
+					throw e;
+				}
+				out.close();
+			}
+			else
+				pop();
+		}
+		
+		@Override
+		public void abort() {
+			Storage.abort(raw);
+		}
+	}
+	
+	/**
+	 * Load part. Structures and opened lists are read directly from the stream.
+	 * @author casse
+	 */
+	private class JSONLoad implements Load, FieldBuffer.Skipper {
+		Reader in;
+		char[] buf = new char[BUFFER_SIZE];
+		int pos, lim;
+		long base;
+		FieldBuffer.Budget fields_budget = new FieldBuffer.Budget(budget);
+		Object step;
+		LoadState cur = new LoadState();
+		Stack<LoadState> stack = new Stack<LoadState>();
+		StringBuilder text = new StringBuilder();
+		boolean quoted;
+		Load sub;
+		int sub_depth;
+		
+		/**
+		 * Build a load.
+		 * @throws IOException	IO error.
+		 */
+		public JSONLoad() throws IOException {
+			in = new InputStreamReader(store.read(), StandardCharsets.UTF_8);
+			try {
+				expect('{');
+			} catch(IOException e) {
+				in.close();
+				throw e;
+			}
+			cur.state = IN_STRUCT;
+		}
+		
+		/**
+		 * Ensure there is at least one character in the window.
+		 * @return				True if there is a character, false at end of stream.
+		 * @throws IOException	IO error.
+		 */
+		private boolean fill() throws IOException {
+			if(pos < lim)
+				return true;
+			base += lim;
+			lim = in.read(buf, 0, buf.length);
+			pos = 0;
+			if(lim <= 0) {
+				lim = 0;
+				return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * Get the position in the stream.
+		 * @return	Number of consumed characters.
+		 */
+		private long position() {
+			return base + pos;
+		}
+		
+		/**
+		 * Close the stream.
+		 * @throws IOException	IO error.
+		 */
+		private void close() throws IOException {
+			in.close();
+		}
+		
+		/**
+		 * Skip the spaces and get the next character without consuming it.
+		 * @return				Next character.
+		 * @throws IOException	IO error or end of stream.
+		 */
+		private char peek() throws IOException {
+			while(true) {
+				if(!fill())
+					throw new IOException("unexpected end of JSON document");
+				char c = buf[pos];
+				if(c != ' ' && c != '\n' && c != '\r' && c != '\t')
+					return c;
+				pos++;
+			}
+		}
+		
+		/**
+		 * Consume the expected character (after spaces).
+		 * @param c				Expected character.
+		 * @throws IOException	IO error or syntax error.
+		 */
+		private void expect(char c) throws IOException {
+			char f = peek();
+			if(f != c)
+				throw new IOException("JSON: '" + c + "' expected but '" + f + "' found");
+			pos++;
+		}
+		
+		/**
+		 * Skip the separator before the next item or field and test the end
+		 * of the current object or array (that is consumed).
+		 * @param close			Closing character.
+		 * @return				True if the end is reached, false else.
+		 * @throws IOException	IO error.
+		 */
+		private boolean atEnd(char close) throws IOException {
+			char c = peek();
+			if(c == ',') {
+				pos++;
+				c = peek();
+			}
+			if(c == close) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+		
+		/**
+		 * Read a string (whose opening quote is the next character) into the text buffer.
+		 * @throws IOException	IO error or syntax error.
+		 */
+		private void readString() throws IOException {
+			expect('"');
+			text.setLength(0);
+			quoted = true;
+			while(true) {
+				if(!fill())
+					throw new IOException("JSON: unterminated string");
+				int start = pos;
+				while(pos < lim && buf[pos] != '"' && buf[pos] != '\\')
+					pos++;
+				text.append(buf, start, pos - start);
+				if(pos == lim)
+					continue;
+				if(buf[pos++] == '"')
+					return;
+				text.append(escape());
+			}
+		}
+		
+		/**
+		 * Read an escape sequence (after the backslash).
+		 * @return				Escaped character.
+		 * @throws IOException	IO error or syntax error.
+		 */
+		private char escape() throws IOException {
+			if(!fill())
+				throw new IOException("JSON: unterminated string");
+			char c = buf[pos++];
+			switch(c) {
+			case 'n':	return '\n';
+			case 'r':	return '\r';
+			case 't':	return '\t';
+			case 'b':	return '\b';
+			case 'f':	return '\f';
+			case 'u':
+				int r = 0;
+				for(int i = 0; i < 4; i++) {
+					if(!fill())
+						throw new IOException("JSON: unterminated string");
+					int d = Character.digit(buf[pos++], 16);
+					if(d < 0)
+						throw new IOException("JSON: bad unicode escape");
+					r = (r << 4) | d;
+				}
+				return (char)r;
+			default:
+				return c;
+			}
+		}
+		
+		/**
+		 * Read a scalar (string or literal) in the text buffer.
+		 * @throws IOException	IO error or syntax error.
+		 */
+		private void readScalar() throws IOException {
+			char c = peek();
+			if(c == '"')
+				readString();
+			else if(c == '{' || c == '[')
+				throw new IOException("cannot get value of a structure or a list");
+			else {
+				text.setLength(0);
+				quoted = false;
+				while(fill()) {
+					int start = pos;
+					while(pos < lim && !isDelimiter(buf[pos]))
+						pos++;
+					text.append(buf, start, pos - start);
+					if(pos < lim)
+						break;
+				}
+				if(text.length() == 0)
+					throw new IOException("JSON: value expected");
+			}
+		}
+		
+		/**
+		 * Test if a character ends a literal.
+		 * @param c		Tested character.
+		 * @return		True if it is a delimiter, false else.
+		 */
+		private boolean isDelimiter(char c) {
+			return c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t';
+		}
+		
+		/**
+		 * Test if the last read scalar is the null literal.
+		 * @return	True if it is null, false else.
+		 */
+		private boolean isNull() {
+			return !quoted && text.length() == 4 && NULL.contentEquals(text);
+		}
+		
+		/**
+		 * Capture the next value as a tree: strings for scalars (null for the null literal),
+		 * array lists for arrays and hash maps for objects.
+		 * @return				Captured value.
+		 * @throws IOException	IO error or syntax error.
+		 */
+		private Object capture() throws IOException {
+			switch(peek()) {
+			case '{':
+				pos++;
+				HashMap<String, Object> map = new HashMap<String, Object>();
+				while(!atEnd('}')) {
+					readString();
+					String name = text.toString();
+					expect(':');
+					map.put(name, capture());
+				}
+				return map;
+			case '[':
+				pos++;
+				ArrayList<Object> list = new ArrayList<Object>();
+				while(!atEnd(']'))
+					list.add(capture());
+				return list;
+			default:
+				readScalar();
+				return isNull() ? null : text.toString();
+			}
+		}
+		
+		/**
+		 * Skip the next value.
+		 * @throws IOException	IO error or syntax error.
+		 */
+		private void skip() throws IOException {
+			char c = peek();
+			if(c != '{' && c != '[') {
+				readScalar();
+				return;
+			}
+			int depth = 0;
+			do {
+				if(!fill())
+					throw new IOException("unexpected end of JSON document");
+				c = buf[pos];
+				if(c == '"') {
+					readString();
+					continue;
+				}
+				pos++;
+				if(c == '{' || c == '[')
+					depth++;
+				else if(c == '}' || c == ']')
+					depth--;
+			} while(depth > 0);
+		}
+		
+		/**
+		 * Delegate the load of the current value to a captured tree.
+		 * @param value		Captured value.
+		 */
+		private void delegate(Object value) {
+			sub = new TreeLoad(value);
+			sub_depth = 0;
+		}
+		
+		/**
+		 * Called each time a value is consumed in delegation mode.
+		 */
+		private void consumed() throws IOException {
+			if(sub_depth == 0) {
+				if(sub instanceof JSONLoad)
+					((JSONLoad)sub).close();
+				sub = null;
+			}
+		}
+		
+		/**
+		 * Get back a skipped field of the current structure by re-reading the storage:
+		 * the load of the field value is delegated to a fresh load moved to the field.
+		 * @param name			Field name.
+		 * @return				True if the field is found, false else.
+		 * @throws IOException	IO error.
+		 */
+		private boolean reread(String name) throws IOException {
+			ArrayList<Object> steps = new ArrayList<Object>();
+			ArrayList<Boolean> lists = new ArrayList<Boolean>();
+			for(int i = 1; i <= stack.size(); i++) {
+				LoadState state = i < stack.size() ? stack.get(i) : cur;
+				if(state != FIELD) {
+					steps.add(state.step);
+					lists.add(state.state == IN_LIST);
+				}
+			}
+			boolean[] kinds = new boolean[lists.size()];
+			for(int i = 0; i < kinds.length; i++)
+				kinds[i] = lists.get(i);
+			JSONLoad load = new JSONLoad();
+			load.fields_budget.left = 0;
+			boolean found = false;
+			try {
+				found = FieldBuffer.navigate(load, steps.toArray(), kinds, name);
+			} finally {
+				if(!found)
+					load.close();
+			}
+			if(found) {
+				load.fields_budget.left = budget;
+				sub = load;
+				sub_depth = 0;
+			}
+			return found;
+		}
+		
+		@Override
+		public void skipItem() throws IOException {
+			skip();
+			cur = stack.pop();
+		}
+		
+		/**
+		 * Read the scalar of the current field or item.
+		 * @return				Text of the value (reused by the next call).
+		 * @throws IOException	If there is no value.
+		 */
+		private CharSequence value() throws IOException {
+			if(cur.state != IN_FIELD)
+				throw new IOException("cannot get value of a structure");
+			readScalar();
+			cur = stack.pop();
+			return text;
+		}
+		
+		@Override
+		public Object get(Class<?> type) throws IOException {
+			if(sub != null) {
+				Object r = sub.get(type);
+				consumed();
+				return r;
+			}
+			value();
+			if(isNull())
+				return null;
+			return TextSerializer.unserialize(type, text.toString());
+		}
+		
+		@Override
+		public int getInt() throws IOException {
+			if(sub != null) {
+				int r = sub.getInt();
+				consumed();
+				return r;
+			}
+			CharSequence text = value();
+			return TextSerializer.parseInt(text, 0, text.length());
+		}
+		
+		@Override
+		public long getLong() throws IOException {
+			if(sub != null) {
+				long r = sub.getLong();
+				consumed();
+				return r;
+			}
+			CharSequence text = value();
+			return TextSerializer.parseLong(text, 0, text.length());
+		}
+		
+		@Override
+		public double getDouble() throws IOException {
+			if(sub != null) {
+				double r = sub.getDouble();
+				consumed();
+				return r;
+			}
+			CharSequence text = value();
+			if(quoted)
+				try {
+					return Double.parseDouble(text.toString());
+				} catch(NumberFormatException e) {
+					throw new IOException("not a number: " + text);
+				}
+			return TextSerializer.parseDouble(text, 0, text.length());
+		}
+		
+		@Override
+		public int getList() throws IOException {
+			if(sub == null) {
+				if(cur.state != IN_FIELD)
+					throw new IOException("cannot get list of a structure");
+				Object value = capture();
+				cur = stack.pop();
+				delegate(value);
+			}
+			sub_depth++;
+			return sub.getList();
+		}
+		
+		@Override
+		public Cursor openList() throws IOException {
+			if(sub != null) {
+				sub_depth++;
+				return sub.openList();
+			}
+			if(cur.state != IN_FIELD)
+				throw new IOException("cannot get list of a structure");
+			expect('[');
+			stack.push(cur);
+			final LoadState list = new LoadState();
+			list.state = IN_LIST;
+			list.step = step;
+			cur = list;
+			return new Cursor() {
+				@Override
+				public boolean hasNextItem() throws IOException {
+					if(cur != list)
+						throw new IOException("previous item not consumed");
+					if(list.closed)
+						return false;
+					if(atEnd(']')) {
+						list.closed = true;
+						return false;
+					}
+					stack.push(list);
+					cur = FIELD;
+					step = list.count++;
+					return true;
+				}
+			};
+		}
+		
+		@Override
+		public void getStruct() throws IOException {
+			if(sub != null) {
+				sub_depth++;
+				sub.getStruct();
+				return;
+			}
+			if(cur.state != IN_FIELD)
+				throw new IOException("cannot get struct of a structure");
+			expect('{');
+			stack.push(cur);
+			cur = new LoadState();
+			cur.state = IN_STRUCT;
+			cur.step = step;
+		}
+		
+		@Override
+		public boolean getField(String name) throws IOException {
+			if(sub != null)
+				return sub.getField(name);
+			if(cur.state != IN_STRUCT)
+				throw new IOException("cannot get field from field or list");
+			
+			// already met?
+			if(cur.fields != null && cur.fields.contains(name)) {
+				if(cur.fields.isSkipped(name)) {
+					cur.fields.take(name);
+					return reread(name);
+				}
+				delegate(cur.fields.take(name));
+				return true;
+			}
+			
+			// look forward
+			while(!cur.closed) {
+				if(atEnd('}'))
+					cur.closed = true;
+				else {
+					readString();
+					expect(':');
+					if(name.contentEquals(text)) {
+						stack.push(cur);
+						cur = FIELD;
+						step = name;
+						return true;
+					}
+					String found = text.toString();
+					if(cur.fields == null)
+						cur.fields = new FieldBuffer<Object>(fields_budget);
+					if(cur.fields.contains(found) || !cur.fields.hasRoom()) {
+						skip();
+						cur.fields.skip(found);
+					}
+					else {
+						long start = position();
+						Object value = capture();
+						cur.fields.keep(found, value, (int)(position() - start));
+					}
+				}
+			}
+			return false;
+		}
+		
+		@Override
+		public void end() throws IOException {
+			if(sub != null) {
+				sub.end();
+				sub_depth--;
+				consumed();
+				return;
+			}
+			char close = cur.state == IN_LIST ? ']' : '}';
+			while(!cur.closed)
+				if(atEnd(close))
+					cur.closed = true;
+				else if(close == ']')
+					skip();
+				else {
+					readString();
+					expect(':');
+					skip();
+				}
+			if(cur.fields != null)
+				cur.fields.clear();
+			if(stack.isEmpty())
+				in.close();
+			else {
+				cur = stack.pop();
+				if(cur.state == IN_FIELD)
+					cur = stack.pop();
+			}
+		}
+	
+	}
+	
+	/**
+	 * State of a load.
+	 */
+	private static final class LoadState {
+		int state;
+		boolean closed;
+		Object step;
+		int count;
+		FieldBuffer<Object> fields;
+	}
+	
+	/**
+	 * State shared by all the fields and items whose value is not yet got (it is never modified).
+	 */
+	private static final LoadState FIELD = new LoadState();
+	static {
+		FIELD.state = IN_FIELD;
+	}
+	
+	/**
+	 * Load from a captured tree.
+	 * @author casse
+	 */
+	private static class TreeLoad implements Load {
+		Object value;
+		boolean pending = true;
+		Stack<Object> stack = new Stack<Object>();
+		
+		/**
+		 * Build a load on the given tree.
+		 * @param value		Captured value.
+		 */
+		public TreeLoad(Object value) {
+			this.value = value;
+		}
+		
+		/**
+		 * Take the next value: the pending field value or the next item of the current list.
+		 * @return				Taken value.
+		 * @throws IOException	If there is no value to take.
+		 */
+		private Object take() throws IOException {
+			if(pending) {
+				pending = false;
+				return value;
+			}
+			if(!stack.isEmpty() && stack.peek() instanceof ListState) {
+				ListState list = (ListState)stack.peek();
+				if(list.i < list.items.size())
+					return list.items.get(list.i++);
+			}
+			throw new IOException("no more value to get");
+		}
+		
+		/**
+		 * Take the next value as a scalar.
+		 * @return				Scalar text (null for null literal).
+		 * @throws IOException	If the value is not a scalar.
+		 */
+		private String scalar() throws IOException {
+			Object v = take();
+			if(v != null && !(v instanceof String))
+				throw new IOException("cannot get value of a structure or a list");
+			return (String)v;
+		}
+		
+		/**
+		 * Take the next value as a non-null scalar.
+		 * @return				Scalar text.
+		 * @throws IOException	If the value is not a scalar or null.
+		 */
+		private String number() throws IOException {
+			String s = scalar();
+			if(s == null)
+				throw new IOException("null found instead of a number");
+			return s;
+		}
+		
+		@Override
+		public Object get(Class<?> type) throws IOException {
+			String s = scalar();
+			return s == null ? null : TextSerializer.unserialize(type, s);
+		}
+		
+		@Override
+		public int getInt() throws IOException {
+			String s = number();
+			return TextSerializer.parseInt(s, 0, s.length());
+		}
+		
+		@Override
+		public long getLong() throws IOException {
+			String s = number();
+			return TextSerializer.parseLong(s, 0, s.length());
+		}
+		
+		@Override
+		public double getDouble() throws IOException {
+			String s = number();
+			try {
+				return TextSerializer.parseDouble(s, 0, s.length());
+			} catch(IOException e) {
+				try {
+					return Double.parseDouble(s);
+				} catch(NumberFormatException x) {
+					throw e;
+				}
+			}
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		public int getList() throws IOException {
+			Object v = take();
+			if(!(v instanceof ArrayList))
+				throw new IOException("list expected");
+			ListState list = new ListState();
+			list.items = (ArrayList<Object>)v;
+			stack.push(list);
+			return list.items.size();
+		}
+		
+		@Override
+		public void getStruct() throws IOException {
+			Object v = take();
+			if(!(v instanceof HashMap))
+				throw new IOException("structure expected");
+			stack.push(v);
+		}
+		
+		@Override
+		public boolean getField(String name) throws IOException {
+			if(stack.isEmpty() || !(stack.peek() instanceof HashMap))
+				throw new IOException("cannot get field from field or list");
+			HashMap<?, ?> map = (HashMap<?, ?>)stack.peek();
+			if(!map.containsKey(name))
+				return false;
+			value = map.get(name);
+			pending = true;
+			return true;
+		}
+		
+		@Override
+		public void end() throws IOException {
+			if(stack.isEmpty())
+				throw new StructuralError("unbalanced end");
+			stack.pop();
+			pending = false;
+		}
+	
+	}
+	
+	/**
+	 * State of a list in a tree load.
+	 */
+	private static final class ListState {
+		ArrayList<Object> items;
+		int i;
+	}
+
+}
@@ -0,0 +1,486 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.zip.CRC32;
+
+import elf.os.Path;
+
+/**
+ * Structured store recording the updates in an append-only journal, suited to
+ * configurations updated at high frequency.
+ * 
+ * The store is made of a snapshot file and of a log file named after it with the
+ * ".log" extension. A full save writes atomically the snapshot and resets the log.
+ * A patch (see {@link StructuredStore.Patchable}) only appends a record containing
+ * the patched fields to the log and forces it to the disk: its cost depends only on
+ * the size of the change. The load replays the log records over the snapshot,
+ * the last record defining a field giving its value.
+ * 
+ * Both files start with a magic and a sequence number, incremented at each snapshot:
+ * a log whose sequence does not match the snapshot is outdated and ignored. Each record
+ * is made of its size, its CRC32 and of a binary store (see {@link BinaryStructuredStore})
+ * so that a record torn by a crash is detected and dropped. Once the log exceeds
+ * a threshold, it is compacted in a background thread into a new snapshot.
+ * @author casse
+ */
+public class JournalStructuredStore implements StructuredStore, StructuredStore.Patchable {
+	static final byte[] MAGIC = { 'E', 'L', 'F', 'J' };
+	static final int HEADER = 12, RECORD_HEADER = 8;
+	static final long DEFAULT_THRESHOLD = 64 * 1024;
+	private static final int SNAPSHOT = 0, RECORD = 1;
+	private final Path path, log;
+	private long threshold = DEFAULT_THRESHOLD;
+	private long seq = -1;
+	private long logEnd = -1;
+	private boolean compacting = false;
+	
+	/**
+	 * Build a journal store.
+	 * @param path		Path of the snapshot file.
+	 */
+	public JournalStructuredStore(Path path) {
+		this.path = path;
+		log = new Path(path + ".log");
+	}
+	
+	/**
+	 * Build a journal store on the file of the given storage.
+	 * @param storage	File storage of the snapshot.
+	 */
+	public JournalStructuredStore(FileStorage storage) {
+		this(storage.file);
+	}
+	
+	/**
+	 * Set the size of the log triggering a compaction.
+	 * @param threshold		Threshold size (in bytes).
+	 */
+	public void setThreshold(long threshold) {
+		this.threshold = threshold;
+	}
+	
+	@Override
+	public boolean supports(Class<?> type) {
+		return TextSerializer.get(type) != null;
+	}
+	
+	@Override
+	public boolean exists() {
+		return path.exists() || log.exists();
+	}
+	
+	@Override
+	public Save save() throws IOException {
+		return new BinaryStructuredStore(new Sink(SNAPSHOT)).save();
+	}
+	
+	@Override
+	public Save patch() throws IOException {
+		return new BinaryStructuredStore(new Sink(RECORD)).save();
+	}
+	
+	@Override
+	public Load load() throws IOException {
+		return new MergedLoad(open());
+	}
+	
+	/**
+	 * Open the loads of the snapshot and of the valid log records.
+	 * @return				Loads, the snapshot first (if any) and the records in order.
+	 * @throws IOException	IO error.
+	 */
+	private synchronized ArrayList<BinaryStructuredStore.BinaryLoad> open() throws IOException {
+		ArrayList<BinaryStructuredStore.BinaryLoad> loads = new ArrayList<BinaryStructuredStore.BinaryLoad>();
+		seq = 0;
+		if(path.exists()) {
+			ByteBuffer buf = BinaryStructuredStore.readAll(path.read());
+			seq = header(buf, path);
+			buf.position(HEADER);
+			loads.add(new BinaryStructuredStore.BinaryLoad(buf));
+		}
+		logEnd = 0;
+		if(log.exists()) {
+			ByteBuffer buf = BinaryStructuredStore.readAll(log.read());
+			if(buf.limit() >= HEADER && header(buf, log) == seq) {
+				int at = HEADER;
+				CRC32 crc = new CRC32();
+				while(at + RECORD_HEADER <= buf.limit()) {
+					int len = buf.getInt(at);
+					int start = at + RECORD_HEADER;
+					if(len < 0 || start + len > buf.limit())
+						break;
+					crc.reset();
+					ByteBuffer rec = buf.duplicate();
+					rec.limit(start + len).position(start);
+					crc.update(rec);
+					if((int)crc.getValue() != buf.getInt(at + 4))
+						break;
+					rec = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+					rec.position(start);
+					loads.add(new BinaryStructuredStore.BinaryLoad(rec));
+					at = start + len;
+				}
+				logEnd = at;
+			}
+		}
+		return loads;
+	}
+	
+	/**
+	 * Check the header of a snapshot or of a log.
+	 * @param buf			Buffer containing the file.
+	 * @param file			Read file (for error messages).
+	 * @return				Sequence number of the file.
+	 * @throws IOException	If the header is invalid.
+	 */
+	private static long header(ByteBuffer buf, Path file) throws IOException {
+		for(int i = 0; i < MAGIC.length; i++)
+			if(i >= buf.limit() || buf.get(i) != MAGIC[i])
+				throw new IOException("bad journal magic in " + file);
+		if(buf.limit() < HEADER)
+			throw new IOException("truncated journal header in " + file);
+		return buf.getLong(MAGIC.length);
+	}
+	
+	/**
+	 * Build the header of a snapshot or of a log.
+	 * @param seq		Sequence number.
+	 * @return			Header buffer (ready to write).
+	 */
+	private static ByteBuffer header(long seq) {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(MAGIC);
+		buf.putLong(seq);
+		buf.flip();
+		return buf;
+	}
+	
+	/**
+	 * Ensure that the sequence number and the end of the log are known.
+	 * @throws IOException	IO error.
+	 */
+	private void scan() throws IOException {
+		if(logEnd < 0)
+			open();
+	}
+	
+	/**
+	 * Write a new snapshot and reset the log.
+	 * @param bytes			Binary store of the snapshot.
+	 * @throws IOException	IO error.
+	 */
+	synchronized void writeSnapshot(byte[] bytes) throws IOException {
+		scan();
+		seq++;
+		
+		// write the snapshot (a crash keeps the previous one)
+		OutputStream out = path.writeAtomic(false);
+		try {
+			out.write(header(seq).array());
+			out.write(bytes);
+		}
+		finally {
+			out.close();
+		}
+		
+		// reset the log (until then, its sequence makes it ignored)
+		FileChannel ch = log.writeChannel();
+		try {
+			ch.truncate(0);
+			write(ch, header(seq), 0);
+			ch.force(false);
+		}
+		finally {
+			ch.close();
+		}
+		logEnd = HEADER;
+	}
+	
+	/**
+	 * Append a record to the log.
+	 * @param bytes			Binary store of the record.
+	 * @throws IOException	IO error.
+	 */
+	synchronized void append(byte[] bytes) throws IOException {
+		scan();
+		ByteBuffer rec = ByteBuffer.allocate(RECORD_HEADER + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		rec.putInt(bytes.length);
+		rec.putInt((int)crc.getValue());
+		rec.put(bytes);
+		rec.flip();
+		
+		FileChannel ch = log.writeChannel();
+		try {
+			if(logEnd == 0) {
+				ch.truncate(0);
+				write(ch, header(seq), 0);
+				logEnd = HEADER;
+			}
+			else if(ch.size() > logEnd)
+				ch.truncate(logEnd);
+			write(ch, rec, logEnd);
+			ch.force(false);
+		}
+		finally {
+			ch.close();
+		}
+		logEnd += rec.limit();
+		
+		if(logEnd > threshold && !compacting) {
+			compacting = true;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compact();
+					} catch (IOException e) {
+						System.err.println("ERROR: cannot compact journal " + path + ": " + e.getLocalizedMessage());
+					}
+					finally {
+						synchronized(JournalStructuredStore.this) {
+							compacting = false;
+						}
+					}
+				}
+			}, "elf-journal-compact");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Write completely a buffer to a channel.
+	 * @param ch			Channel to write to.
+	 * @param buf			Buffer to write.
+	 * @param at			Position in the channel.
+	 * @throws IOException	IO error.
+	 */
+	private static void write(FileChannel ch, ByteBuffer buf, long at) throws IOException {
+		while(buf.hasRemaining())
+			at += ch.write(buf, at);
+	}
+	
+	/**
+	 * Merge the log records into a new snapshot. The store is locked meanwhile so that
+	 * no record can be appended and lost.
+	 * @throws IOException	IO error.
+	 */
+	public synchronized void compact() throws IOException {
+		MergedLoad load = new MergedLoad(open());
+		Save save = save();
+		for(String name: load.getFieldNames()) {
+			load.getField(name);
+			save.putField(name);
+			load.cur.copy(save);
+		}
+		save.end();
+	}
+	
+	/**
+	 * Memory storage passing the written bytes to the journal on close.
+	 */
+	private class Sink implements Storage {
+		private final int kind;
+		
+		/**
+		 * Build a sink.
+		 * @param kind	One of SNAPSHOT or RECORD.
+		 */
+		Sink(int kind) {
+			this.kind = kind;
+		}
+		
+		@Override
+		public String getName() {
+			return "journal:" + path;
+		}
+		
+		@Override
+		public boolean exists() {
+			return JournalStructuredStore.this.exists();
+		}
+		
+		@Override
+		public InputStream read() throws IOException {
+			throw new IOException("journal sink cannot be read");
+		}
+		
+		@Override
+		public OutputStream write() throws IOException {
+			return new Output();
+		}
+		
+		/**
+		 * Stream writing the snapshot or appending the record when closed.
+		 */
+		private class Output extends ByteArrayOutputStream implements Storage.Abortable {
+			private boolean closed = false;
+			
+			@Override
+			public void close() throws IOException {
+				if(closed)
+					return;
+				closed = true;
+				if(kind == SNAPSHOT)
+					writeSnapshot(toByteArray());
+				else
+					append(toByteArray());
+			}
+			
+			@Override
+			public void abort() {
+				closed = true;
+			}
+		}
+	}
+	
+	/**
+	 * Load over the snapshot and the log records: the top-level fields are looked
+	 * from the last record to the snapshot, the remaining is delegated to the load
+	 * providing the field.
+	 */
+	private static class MergedLoad implements Load {
+		private final ArrayList<BinaryStructuredStore.BinaryLoad> loads;
+		BinaryStructuredStore.BinaryLoad cur;
+		private int depth = 0;
+		
+		/**
+		 * Build a merged load.
+		 * @param loads		Loads, the oldest first.
+		 */
+		MergedLoad(ArrayList<BinaryStructuredStore.BinaryLoad> loads) {
+			this.loads = loads;
+		}
+		
+		/**
+		 * Get the names of the top-level fields defined by the snapshot or the records.
+		 * @return				Field names.
+		 * @throws IOException	IO error.
+		 */
+		Iterable<String> getFieldNames() throws IOException {
+			LinkedHashSet<String> names = new LinkedHashSet<String>();
+			for(BinaryStructuredStore.BinaryLoad load: loads)
+				names.addAll(load.getFieldNames());
+			return names;
+		}
+		
+		/**
+		 * Get the current load.
+		 * @return				Current load.
+		 * @throws IOException	If there is no current value.
+		 */
+		private Load current() throws IOException {
+			if(cur == null)
+				throw new IOException("no current field");
+			return cur;
+		}
+		
+		@Override
+		public Object get(Class<?> type) throws IOException {
+			return current().get(type);
+		}
+		
+		@Override
+		public int getInt() throws IOException {
+			return current().getInt();
+		}
+		
+		@Override
+		public long getLong() throws IOException {
+			return current().getLong();
+		}
+		
+		@Override
+		public double getDouble() throws IOException {
+			return current().getDouble();
+		}
+		
+		@Override
+		public int[] getIntArray() throws IOException {
+			return current().getIntArray();
+		}
+		
+		@Override
+		public long[] getLongArray() throws IOException {
+			return current().getLongArray();
+		}
+		
+		@Override
+		public double[] getDoubleArray() throws IOException {
+			return current().getDoubleArray();
+		}
+		
+		@Override
+		public int getList() throws IOException {
+			int n = current().getList();
+			depth++;
+			return n;
+		}
+		
+		@Override
+		public Cursor openList() throws IOException {
+			Cursor cursor = current().openList();
+			depth++;
+			return cursor;
+		}
+		
+		@Override
+		public Load[] splitList(int parts, int min) throws IOException {
+			return current().splitList(parts, min);
+		}
+		
+		@Override
+		public void getStruct() throws IOException {
+			current().getStruct();
+			depth++;
+		}
+		
+		@Override
+		public boolean getField(String name) throws IOException {
+			if(depth > 0)
+				return cur.getField(name);
+			for(int i = loads.size() - 1; i >= 0; i--)
+				if(loads.get(i).getField(name)) {
+					cur = loads.get(i);
+					return true;
+				}
+			return false;
+		}
+		
+		@Override
+		public void end() throws IOException {
+			if(depth == 0)
+				return;
+			cur.end();
+			depth--;
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import elf.os.Path;
+
+/**
+ * File storage mapping the file in memory for reading (see {@link Path#map()}).
+ * Adapted to big stores that are only partially used, the reads become mostly
+ * page cache hits. As the mapping lives until the buffer is garbage-collected,
+ * some OS (like Windows) may prevent the file to be replaced in the meantime.
+ * 
+ * The writes are atomic by default: the file is replaced, not rewritten in place,
+ * so the live mappings keep the previous content. A write in place truncates the
+ * mapped file and the access to the mapping then crashes the JVM (SIGBUS): it must
+ * only be selected if no buffer got by {@link #map()} is used after the write.
+ * @author casse
+ */
+public class MappedFileStorage extends FileStorage implements MappableStorage {
+	
+	/**
+	 * Build a mapped storage with atomic writes.
+	 * @param file		File path.
+	 */
+	public MappedFileStorage(Path file) {
+		super(file, true);
+	}
+	
+	/**
+	 * Build a mapped storage.
+	 * @param file		File path.
+	 * @param atomic	True to perform atomic writes (see {@link Path#writeAtomic(boolean)}),
+	 * 					false to write in place (the mappings must no more be used after a write).
+	 */
+	public MappedFileStorage(Path file, boolean atomic) {
+		super(file, atomic);
+	}
+	
+	/**
+	 * Build a mapped storage with atomic writes.
+	 * @param file		File path.
+	 */
+	public MappedFileStorage(String file) {
+		this(new Path(file));
+	}
+	
+	@Override
+	public ByteBuffer map() throws IOException {
+		return file.map();
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage keeping its content in a growable byte array. Used to keep hot stores
+ * in memory (for example, as a RAM-backed configuration tier with
+ * {@link elf.app.Configuration#setStore(StructuredStore)}) or to measure the stores
+ * without the cost of the file system.
+ * 
+ * A write replaces the content when its stream is closed: meanwhile, the reads
+ * still get the previous content. The storage accounts exactly the bytes read
+ * and written.
+ * @author casse
+ */
+public class MemoryStorage implements MappableStorage {
+	private final String name;
+	private byte[] buf;
+	private int size = -1;
+	private long read, written;
+	
+	/**
+	 * Build an empty memory storage.
+	 */
+	public MemoryStorage() {
+		this("memory");
+	}
+	
+	/**
+	 * Build an empty memory storage.
+	 * @param name		Storage name (used for identification).
+	 */
+	public MemoryStorage(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Build a memory storage with the given content.
+	 * @param name		Storage name (used for identification).
+	 * @param content	Initial content (not copied).
+	 */
+	public MemoryStorage(String name, byte[] content) {
+		this.name = name;
+		buf = content;
+		size = content.length;
+	}
+	
+	@Override
+	public String getName() {
+		return "memory:" + name;
+	}
+	
+	@Override
+	public synchronized boolean exists() {
+		return size >= 0;
+	}
+	
+	/**
+	 * Get the size of the content.
+	 * @return	Content size in bytes (0 if the storage does not exist).
+	 */
+	public synchronized int size() {
+		return Math.max(size, 0);
+	}
+	
+	/**
+	 * Get a copy of the content.
+	 * @return	Content bytes.
+	 */
+	public synchronized byte[] toByteArray() {
+		byte[] r = new byte[size()];
+		if(size > 0)
+			System.arraycopy(buf, 0, r, 0, size);
+		return r;
+	}
+	
+	/**
+	 * Get the number of bytes read from the storage since its creation.
+	 * @return	Read bytes.
+	 */
+	public synchronized long getReadBytes() {
+		return read;
+	}
+	
+	/**
+	 * Get the number of bytes written to the storage since its creation.
+	 * @return	Written bytes.
+	 */
+	public synchronized long getWrittenBytes() {
+		return written;
+	}
+	
+	/**
+	 * Remove the content: the storage does not exist anymore.
+	 */
+	public synchronized void clear() {
+		buf = null;
+		size = -1;
+	}
+	
+	/**
+	 * Get a buffer on the current content.
+	 * @return					Read-only buffer.
+	 * @throws IOException		If the storage does not exist.
+	 */
+	private synchronized ByteBuffer content() throws IOException {
+		if(size < 0)
+			throw new FileNotFoundException(getName());
+		return ByteBuffer.wrap(buf, 0, size).asReadOnlyBuffer();
+	}
+	
+	@Override
+	public InputStream read() throws IOException {
+		return new BufferInputStream(content()) {
+			@Override
+			void consumed(int n) {
+				synchronized(MemoryStorage.this) {
+					read += n;
+				}
+			}
+		};
+	}
+	
+	@Override
+	public ByteBuffer map() throws IOException {
+		ByteBuffer r = content();
+		synchronized(this) {
+			read += r.remaining();
+		}
+		return r;
+	}
+	
+	@Override
+	public OutputStream write() {
+		return new Output();
+	}
+	
+	/**
+	 * Stream replacing the content when closed.
+	 */
+	private class Output extends ByteArrayOutputStream implements Storage.Abortable {
+		private boolean closed = false;
+		
+		@Override
+		public void close() {
+			if(closed)
+				return;
+			closed = true;
+			synchronized(MemoryStorage.this) {
+				MemoryStorage.this.buf = buf;
+				size = count;
+				written += count;
+			}
+		}
+		
+		@Override
+		public void abort() {
+			closed = true;
+		}
+	}
+
+}
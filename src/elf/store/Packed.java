@@ -0,0 +1,199 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Packed representation of the primitive arrays (int[], long[] and double[]):
+ * the items are stored as a raw little-endian block in binary stores and as
+ * a single text of space-separated decimal values in text stores (so that
+ * the files remain readable and editable by hand).
+ * @author casse
+ */
+final class Packed {
+	public static final String
+		ATTR = "elf-packed",
+		INT = "int",
+		LONG = "long",
+		DOUBLE = "double";
+	
+	/**
+	 * Get the kind of a packed array.
+	 * @param array		Packed array.
+	 * @return			Kind of array (one of INT, LONG or DOUBLE).
+	 */
+	public static String kind(Object array) {
+		if(array instanceof int[])
+			return INT;
+		else if(array instanceof long[])
+			return LONG;
+		else
+			return DOUBLE;
+	}
+	
+	/**
+	 * Get the size in bytes of the block of a packed array.
+	 * @param array		Packed array.
+	 * @return			Size in bytes.
+	 */
+	public static int size(Object array) {
+		if(array instanceof int[])
+			return ((int[])array).length * 4;
+		else if(array instanceof long[])
+			return ((long[])array).length * 8;
+		else
+			return ((double[])array).length * 8;
+	}
+	
+	/**
+	 * Write the block of an array in the given buffer.
+	 * @param buf		Buffer to write to (with size(array) bytes remaining).
+	 * @param array		Written array.
+	 */
+	public static void write(ByteBuffer buf, Object array) {
+		buf = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+		if(array instanceof int[])
+			buf.asIntBuffer().put((int[])array);
+		else if(array instanceof long[])
+			buf.asLongBuffer().put((long[])array);
+		else
+			buf.asDoubleBuffer().put((double[])array);
+	}
+	
+	/**
+	 * Read an array from a block.
+	 * @param buf		Buffer to read from (positioned on the block).
+	 * @param kind		Kind of the array.
+	 * @param n			Number of items.
+	 * @return			Read array.
+	 */
+	public static Object read(ByteBuffer buf, String kind, int n) {
+		buf = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+		if(kind == INT) {
+			int[] r = new int[n];
+			buf.asIntBuffer().get(r);
+			return r;
+		}
+		else if(kind == LONG) {
+			long[] r = new long[n];
+			buf.asLongBuffer().get(r);
+			return r;
+		}
+		else {
+			double[] r = new double[n];
+			buf.asDoubleBuffer().get(r);
+			return r;
+		}
+	}
+	
+	/**
+	 * Encode an array as text.
+	 * @param array		Encoded array.
+	 * @return			Space-separated decimal values.
+	 */
+	public static String encode(Object array) {
+		char[] digits = new char[32];
+		StringBuilder buf;
+		if(array instanceof int[]) {
+			int[] a = (int[])array;
+			buf = new StringBuilder(a.length * 6);
+			for(int i = 0; i < a.length; i++) {
+				if(i != 0)
+					buf.append(' ');
+				buf.append(digits, 0, TextSerializer.formatLong(a[i], digits, 0));
+			}
+		}
+		else if(array instanceof long[]) {
+			long[] a = (long[])array;
+			buf = new StringBuilder(a.length * 8);
+			for(int i = 0; i < a.length; i++) {
+				if(i != 0)
+					buf.append(' ');
+				buf.append(digits, 0, TextSerializer.formatLong(a[i], digits, 0));
+			}
+		}
+		else {
+			double[] a = (double[])array;
+			buf = new StringBuilder(a.length * 10);
+			for(int i = 0; i < a.length; i++) {
+				if(i != 0)
+					buf.append(' ');
+				buf.append(digits, 0, TextSerializer.formatDouble(a[i], digits, 0));
+			}
+		}
+		return buf.toString();
+	}
+	
+	/**
+	 * Decode an array from text.
+	 * @param kind			Kind of the expected array.
+	 * @param found			Kind found in the store.
+	 * @param text			Whitespace-separated decimal values.
+	 * @return				Decoded array.
+	 * @throws IOException	If the kinds does not match or the text is not valid.
+	 */
+	public static Object decode(String kind, String found, String text) throws IOException {
+		if(!kind.equals(found))
+			throw new IOException("cannot read packed " + found + " array as " + kind + " array");
+		int len = text.length();
+		int n = 0;
+		for(int i = next(text, 0); i < len; i = next(text, skip(text, i)))
+			n++;
+		Object r = kind == INT ? new int[n] : kind == LONG ? new long[n] : new double[n];
+		int k = 0;
+		for(int i = next(text, 0); i < len; k++) {
+			int e = skip(text, i);
+			if(kind == INT)
+				((int[])r)[k] = TextSerializer.parseInt(text, i, e);
+			else if(kind == LONG)
+				((long[])r)[k] = TextSerializer.parseLong(text, i, e);
+			else
+				((double[])r)[k] = TextSerializer.parseDouble(text, i, e);
+			i = next(text, e);
+		}
+		return r;
+	}
+	
+	/**
+	 * Skip the spaces in a text.
+	 * @param text	Scanned text.
+	 * @param i		Start offset.
+	 * @return		Offset of the next value or length of the text.
+	 */
+	private static int next(String text, int i) {
+		while(i < text.length() && Character.isWhitespace(text.charAt(i)))
+			i++;
+		return i;
+	}
+	
+	/**
+	 * Skip a value in a text.
+	 * @param text	Scanned text.
+	 * @param i		Start offset of the value.
+	 * @return		Offset after the value.
+	 */
+	private static int skip(String text, int i) {
+		while(i < text.length() && !Character.isWhitespace(text.charAt(i)))
+			i++;
+		return i;
+	}
+
+}
@@ -0,0 +1,37 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Storage supporting positioned reads, allowing to read a part of the storage
+ * without reading it from the start.
+ * @author casse
+ */
+public interface RandomAccessStorage extends Storage {
+	
+	/**
+	 * Open a channel on the storage for positioned reads.
+	 * @return					Open channel (to be closed by the caller).
+	 * @throws IOException		IO error.
+	 */
+	FileChannel channel() throws IOException;
+
+}
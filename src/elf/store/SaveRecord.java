@@ -0,0 +1,198 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Save recording the events in memory to replay them later on another save.
+ * This allows to take a snapshot of an object in a thread and to write it
+ * in another thread. The values are recorded by reference and therefore
+ * must not be modified until the replay.
+ * @author casse
+ */
+public class SaveRecord implements StructuredStore.Save {
+	private static final byte
+		PUT = 0,
+		LIST = 1,
+		STRUCT = 2,
+		FIELD = 3,
+		END = 4,
+		INT = 5,
+		LONG = 6,
+		DOUBLE = 7,
+		ARRAY = 8;
+	private byte[] ops = new byte[64];
+	private Object[] args = new Object[64];
+	private long[] prims = new long[64];
+	private int size = 0;
+	
+	/**
+	 * Record an event.
+	 * @param op	Event code.
+	 * @param arg	Event argument.
+	 */
+	private void add(byte op, Object arg) {
+		if(size == ops.length) {
+			byte[] nops = new byte[size * 2];
+			System.arraycopy(ops, 0, nops, 0, size);
+			ops = nops;
+			Object[] nargs = new Object[size * 2];
+			System.arraycopy(args, 0, nargs, 0, size);
+			args = nargs;
+			long[] nprims = new long[size * 2];
+			System.arraycopy(prims, 0, nprims, 0, size);
+			prims = nprims;
+		}
+		ops[size] = op;
+		args[size] = arg;
+		size++;
+	}
+	
+	/**
+	 * Record a primitive value event (without boxing).
+	 * @param op	Event code.
+	 * @param prim	Primitive value (as long bits).
+	 */
+	private void add(byte op, long prim) {
+		add(op, null);
+		prims[size - 1] = prim;
+	}
+	
+	/**
+	 * Get the number of recorded events.
+	 * @return	Number of events.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Test if this record contains the same events as another one.
+	 * @param record	Compared record.
+	 * @return			True if the events and their values are equal, false else.
+	 */
+	public boolean sameAs(SaveRecord record) {
+		if(size != record.size)
+			return false;
+		for(int i = 0; i < size; i++)
+			if(ops[i] != record.ops[i] || prims[i] != record.prims[i] || !Objects.deepEquals(args[i], record.args[i]))
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Replay the recorded events on the given save.
+	 * @param save				Save to replay to.
+	 * @throws IOException		IO error.
+	 */
+	public void replay(StructuredStore.Save save) throws IOException {
+		for(int i = 0; i < size; i++)
+			switch(ops[i]) {
+			case PUT:
+				save.put(args[i]);
+				break;
+			case LIST:
+				save.putList();
+				break;
+			case STRUCT:
+				save.putStruct();
+				break;
+			case FIELD:
+				save.putField((String)args[i]);
+				break;
+			case END:
+				save.end();
+				break;
+			case INT:
+				save.putInt((int)prims[i]);
+				break;
+			case LONG:
+				save.putLong(prims[i]);
+				break;
+			case DOUBLE:
+				save.putDouble(Double.longBitsToDouble(prims[i]));
+				break;
+			case ARRAY:
+				if(args[i] instanceof int[])
+					save.putArray((int[])args[i]);
+				else if(args[i] instanceof long[])
+					save.putArray((long[])args[i]);
+				else
+					save.putArray((double[])args[i]);
+				break;
+			}
+	}
+	
+	@Override
+	public void put(Object value) throws IOException {
+		add(PUT, value);
+	}
+	
+	@Override
+	public void putInt(int value) throws IOException {
+		add(INT, value);
+	}
+	
+	@Override
+	public void putLong(long value) throws IOException {
+		add(LONG, value);
+	}
+	
+	@Override
+	public void putDouble(double value) throws IOException {
+		add(DOUBLE, Double.doubleToRawLongBits(value));
+	}
+	
+	@Override
+	public void putArray(int[] array) throws IOException {
+		add(ARRAY, array);
+	}
+	
+	@Override
+	public void putArray(long[] array) throws IOException {
+		add(ARRAY, array);
+	}
+	
+	@Override
+	public void putArray(double[] array) throws IOException {
+		add(ARRAY, array);
+	}
+	
+	@Override
+	public void putList() throws IOException {
+		add(LIST, null);
+	}
+	
+	@Override
+	public void putStruct() throws IOException {
+		add(STRUCT, null);
+	}
+	
+	@Override
+	public void putField(String name) throws IOException {
+		add(FIELD, name);
+	}
+	
+	@Override
+	public void end() throws IOException {
+		add(END, null);
+	}
+
+}
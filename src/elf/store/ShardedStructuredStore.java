@@ -0,0 +1,692 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+
+import elf.os.Path;
+
+/**
+ * Structured store splitting the lists of the top structure across several shard files,
+ * suited to very large data sets.
+ * 
+ * The items of a list put in a top-level field (including the maps, saved as lists)
+ * are cut in ranges of a fixed number of items (see {@link #setShardSize(int)}), each range
+ * being saved in its own binary store (see {@link BinaryStructuredStore}) named after the
+ * main file, the field and the range index. The main file is a binary store containing the other
+ * top-level fields and a small manifest giving, for each sharded field, the item count
+ * and the checksum of each shard.
+ * 
+ * A save only writes the shards whose content changed (their checksum differs from the
+ * one of the manifest), possibly in parallel (see {@link #setParallel(ForkJoinPool)}),
+ * and writes the main file last. A load only reads the main file: the shards are read
+ * as their items are got and the checksums are checked so that a shard not matching the manifest
+ * (after a crash during a save) is reported as an error.
+ * @author casse
+ */
+public class ShardedStructuredStore implements StructuredStore {
+	public static final String
+		MANIFEST_FIELD = "elf-shards",
+		ITEMS_FIELD = "items";
+	private static final String
+		NAME_FIELD = "name",
+		COUNTS_FIELD = "counts",
+		SUMS_FIELD = "sums";
+	public static final int DEFAULT_SHARD_SIZE = 65536;
+	private final Path path;
+	private int shard_size = DEFAULT_SHARD_SIZE;
+	private ForkJoinPool pool;
+	
+	/**
+	 * Build a sharded store.
+	 * @param path		Path of the main file.
+	 */
+	public ShardedStructuredStore(Path path) {
+		this.path = path;
+	}
+	
+	/**
+	 * Build a sharded store on the file of the given storage.
+	 * @param storage	File storage of the main file.
+	 */
+	public ShardedStructuredStore(FileStorage storage) {
+		this(storage.file);
+	}
+	
+	/**
+	 * Set the number of list items saved in a shard.
+	 * @param size	Shard size (in items).
+	 */
+	public void setShardSize(int size) {
+		shard_size = Math.max(1, size);
+	}
+	
+	/**
+	 * Set the pool used to write the shards in parallel.
+	 * @param pool	Pool to use or null to write sequentially.
+	 */
+	public void setParallel(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * Get the path of a shard file.
+	 * @param field		Field of the sharded list.
+	 * @param index		Shard index.
+	 * @return			Shard path.
+	 */
+	public Path getShardPath(String field, int index) {
+		return new Path(path + "." + field + "." + index);
+	}
+	
+	@Override
+	public boolean supports(Class<?> type) {
+		return TextSerializer.get(type) != null;
+	}
+	
+	@Override
+	public boolean exists() {
+		return path.exists();
+	}
+	
+	@Override
+	public Save save() throws IOException {
+		return new ShardedSave(path.exists() ? readManifest(open()) : new LinkedHashMap<String, Manifest>());
+	}
+	
+	@Override
+	public Load load() throws IOException {
+		BinaryStructuredStore.BinaryLoad main = open();
+		return new ShardedLoad(main, readManifest(main));
+	}
+	
+	/**
+	 * Open the main file.
+	 * @return				Load on the main file.
+	 * @throws IOException	IO error.
+	 */
+	private BinaryStructuredStore.BinaryLoad open() throws IOException {
+		return new BinaryStructuredStore.BinaryLoad(BinaryStructuredStore.readAll(path.read()));
+	}
+	
+	/**
+	 * Read the manifest from the main file.
+	 * @param load			Load on the main file.
+	 * @return				Manifest entries by field.
+	 * @throws IOException	IO error.
+	 */
+	private static LinkedHashMap<String, Manifest> readManifest(Load load) throws IOException {
+		LinkedHashMap<String, Manifest> manifest = new LinkedHashMap<String, Manifest>();
+		if(load.getField(MANIFEST_FIELD)) {
+			int n = load.getList();
+			for(int i = 0; i < n; i++) {
+				Manifest m = new Manifest();
+				load.getStruct();
+				if(!load.getField(NAME_FIELD))
+					throw new IOException("sharded store: bad manifest");
+				m.name = (String)load.get(String.class);
+				m.counts = load.getField(COUNTS_FIELD) ? load.getIntArray() : new int[0];
+				m.sums = load.getField(SUMS_FIELD) ? load.getLongArray() : new long[0];
+				if(m.sums.length != m.counts.length)
+					throw new IOException("sharded store: bad manifest");
+				load.end();
+				manifest.put(m.name, m);
+			}
+			load.end();
+		}
+		return manifest;
+	}
+	
+	/**
+	 * Compute the checksum of a shard: its CRC32 and its size.
+	 * @param bytes		Shard content.
+	 * @param off		Offset of the content.
+	 * @param len		Length of the content.
+	 * @return			Checksum.
+	 */
+	private static long checksum(byte[] bytes, int off, int len) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, off, len);
+		return ((long)len << 32) | crc.getValue();
+	}
+	
+	/**
+	 * Sharded field description.
+	 */
+	private static final class Manifest {
+		String name;
+		int[] counts;
+		long[] sums;
+		
+		/**
+		 * Get the total number of items.
+		 * @return	Item count.
+		 */
+		int total() {
+			int n = 0;
+			for(int c: counts)
+				n += c;
+			return n;
+		}
+	}
+	
+	/**
+	 * Save part: the top-level fields and the items of the top-level lists are routed
+	 * to the main store or to the current shard store.
+	 * @author casse
+	 */
+	private class ShardedSave implements Save {
+		final HashMap<String, Manifest> old;
+		final ArrayList<Manifest> written = new ArrayList<Manifest>();
+		final ArrayList<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+		final MemoryStorage main_mem = new MemoryStorage("sharded:" + path);
+		final Save main;
+		int depth = 0;
+		String pending;
+		
+		// current sharded list
+		boolean list;
+		String field;
+		ArrayList<Integer> counts;
+		ArrayList<Long> sums;
+		MemoryStorage shard_mem;
+		Save shard;
+		int count, ldepth;
+		
+		/**
+		 * Build the save.
+		 * @param old			Manifest of the current files.
+		 * @throws IOException	IO error.
+		 */
+		ShardedSave(HashMap<String, Manifest> old) throws IOException {
+			this.old = old;
+			main = new BinaryStructuredStore(main_mem).save();
+		}
+		
+		/**
+		 * Put the pending top-level field in the main store.
+		 * @throws IOException	IO error.
+		 */
+		private void flushField() throws IOException {
+			if(pending != null) {
+				main.putField(pending);
+				pending = null;
+			}
+		}
+		
+		/**
+		 * Get the save to put a value to.
+		 * @return				Main or shard save.
+		 * @throws IOException	IO error.
+		 */
+		private Save target() throws IOException {
+			flushField();
+			if(!list)
+				return main;
+			if(ldepth == 0 && shard == null) {
+				shard_mem = new MemoryStorage(path + "." + field + "." + counts.size());
+				shard = new BinaryStructuredStore(shard_mem).save();
+				shard.putField(ITEMS_FIELD);
+				shard.putList();
+				count = 0;
+			}
+			return shard;
+		}
+		
+		/**
+		 * Called after a value is put to count the list items.
+		 * @throws IOException	IO error.
+		 */
+		private void done() throws IOException {
+			if(list && ldepth == 0) {
+				count++;
+				if(count == shard_size)
+					closeShard();
+			}
+		}
+		
+		/**
+		 * Close the current shard and write it if it changed.
+		 * @throws IOException	IO error.
+		 */
+		private void closeShard() throws IOException {
+			if(shard == null)
+				return;
+			shard.end();
+			shard.end();
+			final byte[] bytes = shard_mem.toByteArray();
+			final int index = counts.size();
+			long sum = checksum(bytes, 0, bytes.length);
+			counts.add(count);
+			sums.add(sum);
+			shard = null;
+			shard_mem = null;
+			final Path shard_path = getShardPath(field, index);
+			Manifest m = old.get(field);
+			if(m != null && index < m.sums.length && m.sums[index] == sum && shard_path.exists())
+				return;
+			if(pool == null)
+				write(shard_path, bytes);
+			else
+				tasks.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						write(shard_path, bytes);
+						return null;
+					}
+				}));
+		}
+		
+		/**
+		 * Write atomically a file.
+		 * @param path			File path.
+		 * @param bytes			Written content.
+		 * @throws IOException	IO error.
+		 */
+		private void write(Path path, byte[] bytes) throws IOException {
+			OutputStream out = path.writeAtomic(false);
+			boolean done = false;
+			try {
+				out.write(bytes);
+				done = true;
+			}
+			finally {
+				if(done)
+					out.close();
+				else
+					Storage.abort(out);
+			}
+		}
+		
+		@Override
+		public void abort() {
+			for(ForkJoinTask<Void> task: tasks)
+				task.cancel(false);
+			tasks.clear();
+		}
+		
+		/**
+		 * Terminate the save: wait for the shard writes, remove the unused shards
+		 * and write the main file.
+		 * @throws IOException	IO error.
+		 */
+		private void commit() throws IOException {
+			for(ForkJoinTask<Void> task: tasks)
+				try {
+					task.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				} catch (ExecutionException e) {
+					Throwable c = e.getCause();
+					if(c instanceof IOException)
+						throw (IOException)c;
+					else if(c instanceof RuntimeException)
+						throw (RuntimeException)c;
+					else if(c instanceof Error)
+						throw (Error)c;
+					else
+						throw new IOException(c);
+				}
+			
+			// write the manifest and the main file
+			main.putField(MANIFEST_FIELD);
+			main.putList();
+			HashMap<String, Integer> used = new HashMap<String, Integer>();
+			for(Manifest m: written) {
+				main.putStruct();
+				main.putField(NAME_FIELD);
+				main.put(m.name);
+				main.putField(COUNTS_FIELD);
+				main.putArray(m.counts);
+				main.putField(SUMS_FIELD);
+				main.putArray(m.sums);
+				main.end();
+				used.put(m.name, m.counts.length);
+			}
+			main.end();
+			main.end();
+			write(path, main_mem.toByteArray());
+			
+			// remove the shards no more used
+			for(Manifest m: old.values()) {
+				Integer n = used.get(m.name);
+				for(int i = n == null ? 0 : n; i < m.counts.length; i++)
+					getShardPath(m.name, i).delete();
+			}
+		}
+		
+		@Override
+		public void put(Object value) throws IOException {
+			target().put(value);
+			done();
+		}
+		
+		@Override
+		public void putInt(int value) throws IOException {
+			target().putInt(value);
+			done();
+		}
+		
+		@Override
+		public void putLong(long value) throws IOException {
+			target().putLong(value);
+			done();
+		}
+		
+		@Override
+		public void putDouble(double value) throws IOException {
+			target().putDouble(value);
+			done();
+		}
+		
+		@Override
+		public void putArray(int[] array) throws IOException {
+			target().putArray(array);
+			done();
+		}
+		
+		@Override
+		public void putArray(long[] array) throws IOException {
+			target().putArray(array);
+			done();
+		}
+		
+		@Override
+		public void putArray(double[] array) throws IOException {
+			target().putArray(array);
+			done();
+		}
+		
+		@Override
+		public void putList() throws IOException {
+			if(pending != null && !list && depth == 0) {
+				list = true;
+				field = pending;
+				pending = null;
+				counts = new ArrayList<Integer>();
+				sums = new ArrayList<Long>();
+				ldepth = 0;
+				return;
+			}
+			target().putList();
+			if(list)
+				ldepth++;
+			else
+				depth++;
+		}
+		
+		@Override
+		public void putStruct() throws IOException {
+			target().putStruct();
+			if(list)
+				ldepth++;
+			else
+				depth++;
+		}
+		
+		@Override
+		public void putField(String name) throws IOException {
+			if(!list && depth == 0) {
+				if(pending != null)
+					throw new StructuralError("field " + pending + " without value");
+				pending = name;
+			}
+			else
+				target().putField(name);
+		}
+		
+		@Override
+		public void end() throws IOException {
+			if(pending != null)
+				throw new StructuralError("field " + pending + " without value");
+			if(list) {
+				if(ldepth == 0) {
+					closeShard();
+					Manifest m = new Manifest();
+					m.name = field;
+					m.counts = new int[counts.size()];
+					m.sums = new long[sums.size()];
+					for(int i = 0; i < m.counts.length; i++) {
+						m.counts[i] = counts.get(i);
+						m.sums[i] = sums.get(i);
+					}
+					written.add(m);
+					list = false;
+				}
+				else {
+					shard.end();
+					ldepth--;
+					done();
+				}
+			}
+			else if(depth > 0) {
+				main.end();
+				depth--;
+			}
+			else
+				commit();
+		}
+	
+	}
+	
+	/**
+	 * Load part: the top-level fields are got from the main file, the sharded lists
+	 * from the shard files, read as their items are got.
+	 * @author casse
+	 */
+	private class ShardedLoad implements Load {
+		final BinaryStructuredStore.BinaryLoad main;
+		final HashMap<String, Manifest> manifest;
+		int depth = 0;
+		Manifest pending;
+		
+		// current sharded list
+		Manifest list;
+		int index, left, ldepth;
+		BinaryStructuredStore.BinaryLoad shard;
+		
+		/**
+		 * Build the load.
+		 * @param main		Load on the main file.
+		 * @param manifest	Manifest of the shards.
+		 */
+		ShardedLoad(BinaryStructuredStore.BinaryLoad main, HashMap<String, Manifest> manifest) {
+			this.main = main;
+			this.manifest = manifest;
+		}
+		
+		/**
+		 * Get the load to get a value from.
+		 * @return				Main or shard load.
+		 * @throws IOException	IO error.
+		 */
+		private Load source() throws IOException {
+			if(pending != null)
+				throw new IOException("sharded field " + pending.name + " must be got as a list");
+			if(list == null)
+				return main;
+			if(ldepth == 0) {
+				while(left == 0)
+					nextShard();
+				left--;
+			}
+			return shard;
+		}
+		
+		/**
+		 * Open the next shard of the current list.
+		 * @throws IOException	IO error or no more shard.
+		 */
+		private void nextShard() throws IOException {
+			index++;
+			if(index >= list.counts.length)
+				throw new IOException("no more item in sharded field " + list.name);
+			left = list.counts[index];
+			if(left == 0)
+				return;
+			Path shard_path = getShardPath(list.name, index);
+			ByteBuffer buf = BinaryStructuredStore.readAll(shard_path.read());
+			if(checksum(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining()) != list.sums[index])
+				throw new IOException("shard " + shard_path + " does not match the manifest");
+			shard = new BinaryStructuredStore.BinaryLoad(buf);
+			if(!shard.getField(ITEMS_FIELD) || shard.getList() != left)
+				throw new IOException("bad shard " + shard_path);
+		}
+		
+		/**
+		 * Start the load of a sharded list.
+		 * @return	Item count.
+		 */
+		private int startList() {
+			list = pending;
+			pending = null;
+			index = -1;
+			left = 0;
+			ldepth = 0;
+			return list.total();
+		}
+		
+		@Override
+		public Object get(Class<?> type) throws IOException {
+			return source().get(type);
+		}
+		
+		@Override
+		public int getInt() throws IOException {
+			return source().getInt();
+		}
+		
+		@Override
+		public long getLong() throws IOException {
+			return source().getLong();
+		}
+		
+		@Override
+		public double getDouble() throws IOException {
+			return source().getDouble();
+		}
+		
+		@Override
+		public int[] getIntArray() throws IOException {
+			if(pending != null)
+				return Load.super.getIntArray();
+			return source().getIntArray();
+		}
+		
+		@Override
+		public long[] getLongArray() throws IOException {
+			if(pending != null)
+				return Load.super.getLongArray();
+			return source().getLongArray();
+		}
+		
+		@Override
+		public double[] getDoubleArray() throws IOException {
+			if(pending != null)
+				return Load.super.getDoubleArray();
+			return source().getDoubleArray();
+		}
+		
+		@Override
+		public int getList() throws IOException {
+			if(pending != null)
+				return startList();
+			int n = source().getList();
+			if(list != null)
+				ldepth++;
+			else
+				depth++;
+			return n;
+		}
+		
+		@Override
+		public Cursor openList() throws IOException {
+			if(pending == null) {
+				Cursor cursor = source().openList();
+				if(list != null)
+					ldepth++;
+				else
+					depth++;
+				return cursor;
+			}
+			final int n = startList();
+			return new Cursor() {
+				int i = 0;
+				@Override public boolean hasNextItem() {
+					if(i >= n)
+						return false;
+					i++;
+					return true;
+				}
+				@Override public int size() { return n; }
+			};
+		}
+		
+		@Override
+		public void getStruct() throws IOException {
+			source().getStruct();
+			if(list != null)
+				ldepth++;
+			else
+				depth++;
+		}
+		
+		@Override
+		public boolean getField(String name) throws IOException {
+			if(list == null && depth == 0) {
+				pending = manifest.get(name);
+				if(pending != null)
+					return true;
+				return !MANIFEST_FIELD.equals(name) && main.getField(name);
+			}
+			return source().getField(name);
+		}
+		
+		@Override
+		public void end() throws IOException {
+			if(list != null) {
+				if(ldepth == 0) {
+					list = null;
+					shard = null;
+				}
+				else {
+					shard.end();
+					ldepth--;
+				}
+			}
+			else {
+				main.end();
+				if(depth > 0)
+					depth--;
+			}
+		}
+	
+	}
+
+}
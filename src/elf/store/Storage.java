@@ -47,9 +47,40 @@ public interface Storage {
 	InputStream read() throws IOException;
 	
 	/**
-	 * Obtain a stream for writing to the storage.
+	 * Obtain a stream for writing to the storage. The write is committed when
+	 * the stream is closed: in case of error, the stream must be given to
+	 * {@link #abort(OutputStream)} instead.
 	 * @return					Built output stream.
 	 * @throws IOException		IO error.
 	 */
 	OutputStream write() throws IOException;
+	
+	/**
+	 * Abandon a write after an error. If the stream supports it (see {@link Abortable}),
+	 * the storage is left unchanged; else the stream is only closed and the storage
+	 * may keep the partially written content.
+	 * @param out	Stream of the abandoned write.
+	 */
+	static void abort(OutputStream out) {
+		if(out instanceof Abortable)
+			((Abortable)out).abort();
+		else
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+	}
+	
+	/**
+	 * Implemented by the output streams whose write can be abandoned without
+	 * modifying the storage.
+	 */
+	interface Abortable {
+		
+		/**
+		 * Abandon the write: the written data is discarded and the stream closed.
+		 */
+		void abort();
+	
+	}
 }
@@ -0,0 +1,218 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.store;
+
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+import elf.os.Path;
+
+/**
+ * Process-wide cache of parsed store contents. The contents are keyed by
+ * the kind of parse (one per store format) and the canonical path of the file, and stamped
+ * with the modification time (at the resolution of the file system), the size and the key
+ * (device and inode) of the file: repeated loads of an unchanged file skip the read and
+ * the parse. The writes through a {@link FileStorage} invalidate the entries of the file.
+ * 
+ * The cache is bounded by the sum of the sizes of the cached files, on the disk: this
+ * is only an estimate of the memory held by the parsed contents (that may be much bigger,
+ * as XML documents). The least recently used entries are evicted first. The cached contents
+ * are shared between the loads and must therefore not be modified.
+ * @author casse
+ */
+public class StoreCache {
+	public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+	private static final StoreCache shared = new StoreCache();
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, .75f, true);
+	private long max = DEFAULT_MAX_BYTES;
+	private long bytes;
+	private long hits, misses;
+	
+	/**
+	 * Get the process-wide cache.
+	 * @return	Shared cache.
+	 */
+	public static StoreCache shared() {
+		return shared;
+	}
+	
+	private StoreCache() {
+	}
+	
+	/**
+	 * Parser of a store content.
+	 * @author casse
+	 */
+	public interface Parser {
+		
+		/**
+		 * Read and parse the content.
+		 * @return				Parsed content.
+		 * @throws IOException	IO or format error.
+		 */
+		Object parse() throws IOException;
+	
+	}
+	
+	/**
+	 * Get the parsed content of a storage from the cache or parse it (and cache it).
+	 * The storages not based on a file are always parsed.
+	 * @param storage		Storage to get content for.
+	 * @param kind			Kind of parse (identifying the store format).
+	 * @param parser		Parser to use if the content is not cached.
+	 * @return				Parsed content.
+	 * @throws IOException	IO or format error.
+	 */
+	public Object get(Storage storage, String kind, Parser parser) throws IOException {
+		if(!(storage instanceof FileStorage))
+			return parser.parse();
+		Path file = ((FileStorage)storage).file;
+		BasicFileAttributes attrs;
+		try {
+			attrs = file.attributes();
+		} catch(IOException e) {
+			return parser.parse();
+		}
+		long size = attrs.size();
+		synchronized(this) {
+			if(max <= 0 || size > max)
+				return parser.parse();
+		}
+		String path = file.getCanonical();
+		String key = kind + ':' + path;
+		FileTime time = attrs.lastModifiedTime();
+		Object id = attrs.fileKey();
+		synchronized(this) {
+			Entry entry = entries.get(key);
+			if(entry != null && entry.size == size && entry.time.equals(time) && Objects.equals(entry.id, id)) {
+				hits++;
+				return entry.value;
+			}
+			misses++;
+		}
+		
+		// the stamp is taken before the parse: a concurrent change only causes a miss
+		Object value = parser.parse();
+		synchronized(this) {
+			Entry old = entries.put(key, new Entry(path, time, size, id, value));
+			if(old != null)
+				bytes -= old.size;
+			bytes += size;
+			evict();
+		}
+		return value;
+	}
+	
+	/**
+	 * Remove the entries of the given file.
+	 * @param file	File to invalidate.
+	 */
+	public synchronized void invalidate(Path file) {
+		if(entries.isEmpty())
+			return;
+		String path;
+		try {
+			path = file.getCanonical();
+		} catch (IOException e) {
+			path = file.toString();
+		}
+		for(Iterator<Entry> iter = entries.values().iterator(); iter.hasNext(); ) {
+			Entry entry = iter.next();
+			if(entry.path.equals(path)) {
+				bytes -= entry.size;
+				iter.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Remove all entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+	
+	/**
+	 * Set the maximum size of the cache (0 to disable it). The size is measured
+	 * as the sum of the sizes of the cached files on the disk, not as the memory
+	 * held by their parsed contents.
+	 * @param max	Maximum size (sum of the sizes of the cached files in bytes).
+	 */
+	public synchronized void setMaxBytes(long max) {
+		this.max = max;
+		evict();
+	}
+	
+	/**
+	 * Get the current size of the cache.
+	 * @return	Sum of the sizes of the cached files in bytes.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Get the number of loads served by the cache.
+	 * @return	Number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * Get the number of loads that have had to parse the file.
+	 * @return	Number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * Remove the least recently used entries until the cache fits its maximum size.
+	 */
+	private void evict() {
+		for(Iterator<Entry> iter = entries.values().iterator(); bytes > max && iter.hasNext(); ) {
+			bytes -= iter.next().size;
+			iter.remove();
+		}
+	}
+	
+	/**
+	 * Cached content.
+	 */
+	private static final class Entry {
+		final String path;
+		final FileTime time;
+		final long size;
+		final Object id;
+		final Object value;
+		
+		Entry(String path, FileTime time, long size, Object id, Object value) {
+			this.path = path;
+			this.time = time;
+			this.size = size;
+			this.id = id;
+			this.value = value;
+		}
+	}
+}
@@ -50,6 +50,23 @@ public interface StructuredStore {
 	 */
 	public Load load() throws IOException;
 	
+	/**
+	 * Implemented by stores able to update only some fields of the top structure
+	 * (append-only or patchable formats).
+	 * @author casse
+	 */
+	public interface Patchable {
+		
+		/**
+		 * Get a Save structure updating the store: only the fields put in the top
+		 * structure are replaced, the other fields keep their stored value.
+		 * @return		Save structure.
+		 * @throws IOException		IO error.
+		 */
+		Save patch() throws IOException;
+	
+	}
+	
 	/**
 	 * Provide facility to perform save.
 	 * @author casse
@@ -63,6 +80,72 @@ public interface StructuredStore {
 		 */
 		void put(Object value) throws IOException;
 		
+		/**
+		 * Put an integer value (without boxing if the store supports it).
+		 * @param value				Put value.
+		 * @throws IOException		IO error.
+		 */
+		default void putInt(int value) throws IOException {
+			put(value);
+		}
+		
+		/**
+		 * Put a long integer value (without boxing if the store supports it).
+		 * @param value				Put value.
+		 * @throws IOException		IO error.
+		 */
+		default void putLong(long value) throws IOException {
+			put(value);
+		}
+		
+		/**
+		 * Put a floating-point value (without boxing if the store supports it).
+		 * @param value				Put value.
+		 * @throws IOException		IO error.
+		 */
+		default void putDouble(double value) throws IOException {
+			put(value);
+		}
+		
+		/**
+		 * Put an array of integers (packed in a single block if the store supports it,
+		 * as a list else).
+		 * @param array				Put array.
+		 * @throws IOException		IO error.
+		 */
+		default void putArray(int[] array) throws IOException {
+			putList();
+			for(int v: array)
+				putInt(v);
+			end();
+		}
+		
+		/**
+		 * Put an array of long integers (packed in a single block if the store supports it,
+		 * as a list else).
+		 * @param array				Put array.
+		 * @throws IOException		IO error.
+		 */
+		default void putArray(long[] array) throws IOException {
+			putList();
+			for(long v: array)
+				putLong(v);
+			end();
+		}
+		
+		/**
+		 * Put an array of floating-point values (packed in a single block if the store
+		 * supports it, as a list else).
+		 * @param array				Put array.
+		 * @throws IOException		IO error.
+		 */
+		default void putArray(double[] array) throws IOException {
+			putList();
+			for(double v: array)
+				putDouble(v);
+			end();
+		}
+		
 		/**
 		 * Put a list of values.
 		 * @throws IOException		IO error.
@@ -88,6 +171,35 @@ public interface StructuredStore {
 		 */
 		void end() throws IOException;
 		
+		/**
+		 * Get a save collecting list items apart, that can be filled in another thread
+		 * and then appended to the current list with {@link #splice(Save)}. Only items
+		 * (values, lists or structures) can be put in it and it must not be ended.
+		 * The default implementation records the items in memory (see {@link SaveRecord}).
+		 * @return					Forked save.
+		 * @throws IOException		IO error.
+		 */
+		default Save fork() throws IOException {
+			return new SaveRecord();
+		}
+		
+		/**
+		 * Append to the current list the items of a save got by {@link #fork()}.
+		 * @param fork				Forked save.
+		 * @throws IOException		IO error.
+		 */
+		default void splice(Save fork) throws IOException {
+			((SaveRecord)fork).replay(this);
+		}
+		
+		/**
+		 * Abandon the save after an error, whatever the current depth: nothing more
+		 * is written and, if the storage supports it (see {@link Storage.Abortable}),
+		 * the previous content is left unchanged. The default implementation does nothing.
+		 */
+		default void abort() {
+		}
+	
 	}
 	
 	/**
@@ -104,6 +216,73 @@ public interface StructuredStore {
 		 */
 		Object get(Class<?> type) throws IOException;
 		
+		/**
+		 * Get an integer value (without boxing if the store supports it).
+		 * @return					Got value.
+		 * @throws IOException		IO error.
+		 */
+		default int getInt() throws IOException {
+			return (Integer)get(int.class);
+		}
+		
+		/**
+		 * Get a long integer value (without boxing if the store supports it).
+		 * @return					Got value.
+		 * @throws IOException		IO error.
+		 */
+		default long getLong() throws IOException {
+			return (Long)get(long.class);
+		}
+		
+		/**
+		 * Get a floating-point value (without boxing if the store supports it).
+		 * @return					Got value.
+		 * @throws IOException		IO error.
+		 */
+		default double getDouble() throws IOException {
+			return (Double)get(double.class);
+		}
+		
+		/**
+		 * Get an array of integers (put with {@link Save#putArray(int[])} or as a list).
+		 * @return					Got array.
+		 * @throws IOException		IO error.
+		 */
+		default int[] getIntArray() throws IOException {
+			int[] r = new int[getList()];
+			for(int i = 0; i < r.length; i++)
+				r[i] = getInt();
+			end();
+			return r;
+		}
+		
+		/**
+		 * Get an array of long integers (put with {@link Save#putArray(long[])} or as a list).
+		 * @return					Got array.
+		 * @throws IOException		IO error.
+		 */
+		default long[] getLongArray() throws IOException {
+			long[] r = new long[getList()];
+			for(int i = 0; i < r.length; i++)
+				r[i] = getLong();
+			end();
+			return r;
+		}
+		
+		/**
+		 * Get an array of floating-point values (put with {@link Save#putArray(double[])}
+		 * or as a list).
+		 * @return					Got array.
+		 * @throws IOException		IO error.
+		 */
+		default double[] getDoubleArray() throws IOException {
+			double[] r = new double[getList()];
+			for(int i = 0; i < r.length; i++)
+				r[i] = getDouble();
+			end();
+			return r;
+		}
+		
 		/**
 		 * Get a list of values.
 		 * @return		Number of items in the list.
@@ -111,6 +290,44 @@ public interface StructuredStore {
 		 */
 		int getList() throws IOException;
 		
+		/**
+		 * Get a list of values to iterate on its items without knowing their count
+		 * up front. Each time the cursor returns true, one item must be got
+		 * (value, list or structure); once it returns false, {@link #end()} must be called.
+		 * This lets the stores supporting it avoid to read the whole list in memory.
+		 * @return					Cursor on the list items.
+		 * @throws IOException		IO error.
+		 */
+		default Cursor openList() throws IOException {
+			final int n = getList();
+			return new Cursor() {
+				int i = 0;
+				@Override public boolean hasNextItem() {
+					if(i >= n)
+						return false;
+					i++;
+					return true;
+				}
+				@Override public int size() { return n; }
+			};
+		}
+		
+		/**
+		 * Split the list just got (by {@link #getList()} or {@link #openList()}) in parts
+		 * that can be loaded in parallel. The part p contains the items from p * n / parts
+		 * (included) to (p + 1) * n / parts (excluded), n being the item count: {@link #getList()}
+		 * gives the item count of the part, then its items are got and {@link #end()} is called.
+		 * Once the parts are loaded, the list must be ended on this load.
+		 * @param parts				Number of parts.
+		 * @param min				Minimum number of items to split the list.
+		 * @return					Loads on the parts or null if the store does not support
+		 * 							split or the list is too small.
+		 * @throws IOException		IO error.
+		 */
+		default Load[] splitList(int parts, int min) throws IOException {
+			return null;
+		}
+		
 		/**
 		 * Get a structure of values (fields).
 		 * @throws IOException		IO Error.
@@ -125,6 +342,18 @@ public interface StructuredStore {
 		 */
 		boolean getField(String name) throws IOException;
 		
+		/**
+		 * Move the load to the value at the given path from the top structure, as if
+		 * it was got by {@link #getField(String)}. The path is made of field names and list
+		 * item indexes separated by slashes, like "items/12/name".
+		 * @param path				Path of the value.
+		 * @return					True if the value is found, false else.
+		 * @throws IOException		IO error or seek not supported by the store.
+		 */
+		default boolean seek(String path) throws IOException {
+			throw new IOException("seek not supported by this store");
+		}
+		
 		/**
 		 * End the current structure or list.
 		 * @throws IOException		IO error.
@@ -133,6 +362,32 @@ public interface StructuredStore {
 		
 	}
 	
+	/**
+	 * Cursor on the items of a list got by {@link Load#openList()}.
+	 * @author casse
+	 */
+	public interface Cursor {
+		
+		/**
+		 * Test if there is a next item in the list and move to it. This method
+		 * must be called exactly once before each item and the item must then be
+		 * got before calling it again: a call returning true always moves to the next item
+		 * (the streaming stores throw an IOException if the previous item is not got).
+		 * @return					True if there is a next item to get, false else.
+		 * @throws IOException		IO error.
+		 */
+		boolean hasNextItem() throws IOException;
+		
+		/**
+		 * Get the number of items of the list, if it is known up front.
+		 * @return		Number of items or -1 if it is unknown.
+		 */
+		default int size() {
+			return -1;
+		}
+	
+	}
+	
 	/**
 	 * Thrown if the save/load methods are not called unconsistantly.
 	 * @author casse
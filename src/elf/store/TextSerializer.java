@@ -24,18 +24,31 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Type;
-import java.util.Hashtable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Provide serialization as text.
+ * 
+ * The serializer of a class is looked in the registered serializers,
+ * then in its superclasses and in its interfaces. The result of the look-up
+ * (including its absence) is cached per class and the registration is
+ * performed by copy, so that the look-up never locks.
  * @author casse
  */
 public class TextSerializer {
 	private static final Pattern COLOR_PAT = Pattern.compile("^#([0-9a-fA-F]{6})$");
 	private static final Pattern bool_pat = Pattern.compile("^(false|no|off)|(true|yes|on)$");
-	private static final Hashtable<Type, Serializer> map = new Hashtable<Type, Serializer>();
+	private static final Serializer NONE = new ToStringSerializer() {
+		@Override public Object unserialize(String text) throws IOException {
+			throw new IOException("no serializer");
+		}
+	};
+	private static volatile HashMap<Class<?>, Serializer> map = new HashMap<Class<?>, Serializer>();
+	private static volatile ClassValue<Serializer> cache = makeCache();
 	static {
 		
 		map.put(Boolean.class, new StringSerializer() {
@@ -55,53 +68,59 @@ public class TextSerializer {
 		map.put(Character.class, new StreamSerializer() {
 			@Override public Object unserialize(Reader reader) throws IOException {
 				int r = reader.read();
-				if(r == 0)
+				if(r < 0)
 					throw new IOException("no more characters");
 				else
 					return (char)r;
 			}
+			@Override public Object unserialize(String text) throws IOException {
+				if(text.isEmpty())
+					throw new IOException("no more characters");
+				else
+					return text.charAt(0);
+			}
 			@Override public void serialize(Writer writer, Object value) throws IOException {
 				writer.write((Character)value);
 			}
 		});
 		map.put(char.class, map.get(Character.class));
 
-		map.put(Byte.class, new ToStringSerializer() {
+		map.put(Byte.class, new IntegerSerializer() {
 			@Override public Object unserialize(String text) throws IOException {
 				return Byte.parseByte(text);
 			}
 		});
 		map.put(byte.class, map.get(Byte.class));
 
-		map.put(Short.class, new ToStringSerializer() {
+		map.put(Short.class, new IntegerSerializer() {
 			@Override public Object unserialize(String text) throws IOException {
 				return Short.parseShort(text);
 			}
 		});
 		map.put(short.class, map.get(Short.class));
 
-		map.put(Integer.class, new ToStringSerializer() {
+		map.put(Integer.class, new IntegerSerializer() {
 			@Override public Object unserialize(String text) throws IOException {
 				return Integer.parseInt(text);
 			}
 		});
 		map.put(int.class, map.get(Integer.class));
 
-		map.put(Long.class, new ToStringSerializer() {
+		map.put(Long.class, new IntegerSerializer() {
 			@Override public Object unserialize(String text) throws IOException {
 				return Long.parseLong(text);
 			}
 		});
 		map.put(long.class, map.get(Long.class));
 
-		map.put(Float.class, new ToStringSerializer() {
+		map.put(Float.class, new FloatSerializer() {
 			@Override public Object unserialize(String text) throws IOException {
 				return Float.parseFloat(text);
 			}
 		});
 		map.put(float.class, map.get(Float.class));
 
-		map.put(Double.class, new ToStringSerializer() {
+		map.put(Double.class, new FloatSerializer() {
 			@Override public Object unserialize(String text) throws IOException {
 				return Double.parseDouble(text);
 			}
@@ -123,7 +142,67 @@ public class TextSerializer {
 	 * @param serial	Added serializer.
 	 */
 	public static void add(Class<?> type, Serializer serial) {
-		map.put(type, serial);
+		synchronized(TextSerializer.class) {
+			HashMap<Class<?>, Serializer> new_map = new HashMap<Class<?>, Serializer>(map);
+			new_map.put(type, serial);
+			map = new_map;
+			cache = makeCache();
+		}
+	}
+	
+	/**
+	 * Build the cache of serializers.
+	 * @return	Built cache.
+	 */
+	private static ClassValue<Serializer> makeCache() {
+		return new ClassValue<Serializer>() {
+			@Override protected Serializer computeValue(Class<?> type) {
+				Serializer s = resolve(type);
+				return s == null ? NONE : s;
+			}
+		};
+	}
+	
+	/**
+	 * Look for the serializer of a class: registered serializer, enumerated type,
+	 * serializer of a superclass or of an interface.
+	 * @param clazz		Class to look serializer for.
+	 * @return			Found serializer or null.
+	 */
+	private static Serializer resolve(Class<?> clazz) {
+		HashMap<Class<?>, Serializer> map = TextSerializer.map;
+		Serializer s = map.get(clazz);
+		if(s != null)
+			return s;
+		if(clazz.isEnum())
+			return new EnumSerializer(clazz);
+		if(clazz.isPrimitive() || clazz.isArray())
+			return null;
+		
+		// look in superclasses
+		for(Class<?> sup = clazz.getSuperclass(); sup != null && sup != Object.class; sup = sup.getSuperclass()) {
+			s = get(sup);
+			if(s != null)
+				return s;
+		}
+		
+		// look in interfaces
+		HashSet<Class<?>> done = new HashSet<Class<?>>();
+		ArrayDeque<Class<?>> todo = new ArrayDeque<Class<?>>();
+		for(Class<?> sup = clazz; sup != null; sup = sup.getSuperclass())
+			for(Class<?> iface: sup.getInterfaces())
+				todo.add(iface);
+		while(!todo.isEmpty()) {
+			Class<?> iface = todo.remove();
+			if(done.add(iface)) {
+				s = map.get(iface);
+				if(s != null)
+					return s;
+				for(Class<?> sup: iface.getInterfaces())
+					todo.add(sup);
+			}
+		}
+		return null;
 	}
 	
 	/**
@@ -132,17 +211,10 @@ public class TextSerializer {
 	 * @return			Found serializer or null.
 	 */
 	public static Serializer get(Type type) {
-		Serializer s = map.get(type);
-		if(s == null) {
-			if(type instanceof Class) {
-				Class<?> clazz = (Class<?>)type;
-				if(clazz.isEnum()) {
-					s = new EnumSerializer(clazz);
-					map.put(clazz, s);
-				}
-			}
-		}
-		return s;
+		if(!(type instanceof Class))
+			return null;
+		Serializer s = cache.get((Class<?>)type);
+		return s == NONE ? null : s;
 	}
 	
 	/**
@@ -209,6 +281,181 @@ public class TextSerializer {
 			return serial.unserialize(reader);				
 	}
 	
+	/**
+	 * Append an integer in decimal to the given output (without allocation).
+	 * @param out			Output to append to.
+	 * @param v				Appended integer.
+	 * @throws IOException	IO error.
+	 */
+	public static void appendLong(Appendable out, long v) throws IOException {
+		if(v < 0) {
+			out.append('-');
+			if(v == Long.MIN_VALUE) {
+				out.append("9223372036854775808");
+				return;
+			}
+			v = -v;
+		}
+		long p = 1;
+		while(p <= v / 10)
+			p *= 10;
+		for(; p > 0; p /= 10) {
+			out.append((char)('0' + v / p));
+			v %= p;
+		}
+	}
+	
+	/**
+	 * Format an integer in decimal in the given buffer (that must have
+	 * at least 20 free characters).
+	 * @param v		Formatted integer.
+	 * @param buf	Buffer to format in.
+	 * @param off	Offset in the buffer.
+	 * @return		Offset after the formatted integer.
+	 */
+	public static int formatLong(long v, char[] buf, int off) {
+		if(v == Long.MIN_VALUE) {
+			"-9223372036854775808".getChars(0, 20, buf, off);
+			return off + 20;
+		}
+		if(v < 0) {
+			buf[off++] = '-';
+			v = -v;
+		}
+		int end = off;
+		for(long w = v; w >= 10; w /= 10)
+			end++;
+		int r = end + 1;
+		for(; end >= off; end--) {
+			buf[end] = (char)('0' + v % 10);
+			v /= 10;
+		}
+		return r;
+	}
+	
+	/**
+	 * Test if a double can be formatted as an integer (and give the same result
+	 * as {@link Double#toString(double)}).
+	 * @param v		Value to test.
+	 * @return		True if it can be formatted as an integer.
+	 */
+	private static boolean isSmallIntegral(double v) {
+		return v == (long)v && v > -1e7 && v < 1e7 && Double.doubleToRawLongBits(v) != 0x8000000000000000L;
+	}
+	
+	/**
+	 * Append a floating-point number to the given output. Integral values
+	 * are formatted without allocation.
+	 * @param out			Output to append to.
+	 * @param v				Appended value.
+	 * @throws IOException	IO error.
+	 */
+	public static void appendDouble(Appendable out, double v) throws IOException {
+		if(isSmallIntegral(v)) {
+			appendLong(out, (long)v);
+			out.append(".0");
+		}
+		else
+			out.append(Double.toString(v));
+	}
+	
+	/**
+	 * Format a floating-point number in the given buffer (that must have
+	 * at least 24 free characters).
+	 * @param v		Formatted value.
+	 * @param buf	Buffer to format in.
+	 * @param off	Offset in the buffer.
+	 * @return		Offset after the formatted value.
+	 */
+	public static int formatDouble(double v, char[] buf, int off) {
+		if(isSmallIntegral(v)) {
+			off = formatLong((long)v, buf, off);
+			buf[off++] = '.';
+			buf[off++] = '0';
+			return off;
+		}
+		String s = Double.toString(v);
+		s.getChars(0, s.length(), buf, off);
+		return off + s.length();
+	}
+	
+	/**
+	 * Parse a decimal integer from a range of characters (surrounding spaces are ignored).
+	 * @param text			Text to parse.
+	 * @param start			Start of the range.
+	 * @param end			End of the range.
+	 * @return				Parsed integer.
+	 * @throws IOException	If the text is not an integer.
+	 */
+	public static long parseLong(CharSequence text, int start, int end) throws IOException {
+		while(start < end && Character.isWhitespace(text.charAt(start)))
+			start++;
+		while(end > start && Character.isWhitespace(text.charAt(end - 1)))
+			end--;
+		int i = start;
+		boolean neg = false;
+		if(i < end && (text.charAt(i) == '-' || text.charAt(i) == '+'))
+			neg = text.charAt(i++) == '-';
+		if(i == end)
+			throw new IOException("not an integer: " + text.subSequence(start, end));
+		long r = 0;
+		for(; i < end; i++) {
+			int d = text.charAt(i) - '0';
+			if(d < 0 || d > 9 || r < (Long.MIN_VALUE + d) / 10)
+				throw new IOException("not an integer: " + text.subSequence(start, end));
+			r = r * 10 - d;
+		}
+		if(!neg) {
+			if(r == Long.MIN_VALUE)
+				throw new IOException("not an integer: " + text.subSequence(start, end));
+			r = -r;
+		}
+		return r;
+	}
+	
+	/**
+	 * Parse a decimal 32-bit integer from a range of characters (surrounding spaces are ignored).
+	 * @param text			Text to parse.
+	 * @param start			Start of the range.
+	 * @param end			End of the range.
+	 * @return				Parsed integer.
+	 * @throws IOException	If the text is not an integer.
+	 */
+	public static int parseInt(CharSequence text, int start, int end) throws IOException {
+		long r = parseLong(text, start, end);
+		if(r < Integer.MIN_VALUE || r > Integer.MAX_VALUE)
+			throw new IOException("integer out of range: " + r);
+		return (int)r;
+	}
+	
+	/**
+	 * Parse a floating-point number from a range of characters (surrounding spaces are ignored).
+	 * Integers are parsed without allocation.
+	 * @param text			Text to parse.
+	 * @param start			Start of the range.
+	 * @param end			End of the range.
+	 * @return				Parsed value.
+	 * @throws IOException	If the text is not a number.
+	 */
+	public static double parseDouble(CharSequence text, int start, int end) throws IOException {
+		while(start < end && Character.isWhitespace(text.charAt(start)))
+			start++;
+		while(end > start && Character.isWhitespace(text.charAt(end - 1)))
+			end--;
+		boolean integer = end > start && end - start <= 16;
+		for(int i = start; integer && i < end; i++) {
+			char c = text.charAt(i);
+			integer = (c >= '0' && c <= '9') || (i == start && c == '-' && end - start > 1);
+		}
+		if(integer)
+			return parseLong(text, start, end);
+		try {
+			return Double.parseDouble(text.subSequence(start, end).toString());
+		} catch(NumberFormatException e) {
+			throw new IOException("not a number: " + text.subSequence(start, end));
+		}
+	}
+	
 	/**
 	 * Provide serialization service.
 	 * @author casse
@@ -256,11 +503,11 @@ public class TextSerializer {
 		public Object unserialize(Reader reader) throws IOException {
 			StringBuffer buf = new StringBuffer();
 			int r = reader.read();
-			while(r != 0) {
+			while(r >= 0) {
 				buf.append((char)r);
 				r = reader.read();
 			}
-			return serialize(buf.toString());
+			return unserialize(buf.toString());
 		}
 
 	}
@@ -279,6 +526,36 @@ public class TextSerializer {
 		
 	}
 
+	/**
+	 * Serializer of integers writing them without intermediate string.
+	 * @author casse
+	 */
+	private abstract static class IntegerSerializer extends ToStringSerializer {
+		
+		@Override
+		public void serialize(Writer writer, Object value) throws IOException {
+			appendLong(writer, ((Number)value).longValue());
+		}
+	
+	}
+	
+	/**
+	 * Serializer of floating-point numbers writing them without intermediate string
+	 * when possible.
+	 * @author casse
+	 */
+	private abstract static class FloatSerializer extends ToStringSerializer {
+		
+		@Override
+		public void serialize(Writer writer, Object value) throws IOException {
+			if(value instanceof Double)
+				appendDouble(writer, (Double)value);
+			else
+				writer.write(value.toString());
+		}
+	
+	}
+	
 	/**
 	 * Color serializer.
 	 * @author casse
@@ -307,6 +584,8 @@ public class TextSerializer {
 	 */
 	private static class EnumSerializer extends StringSerializer {
 		private Class<?> clazz;
+		private final Object[] values;
+		private final HashMap<String, Object> names = new HashMap<String, Object>();
 		
 		/**
 		 * Serializer for an enumerated type.
@@ -314,6 +593,13 @@ public class TextSerializer {
 		 */
 		public EnumSerializer(Class<?> clazz) {
 			this.clazz = clazz;
+			values = clazz.getEnumConstants();
+			for(Object val: values) {
+				names.put(((Enum<?>)val).name(), val);
+				String key = val.toString().toLowerCase();
+				if(!names.containsKey(key))
+					names.put(key, val);
+			}
 		}
 		
 		@Override
@@ -323,10 +609,19 @@ public class TextSerializer {
 
 		@Override
 		public Object unserialize(String text) throws IOException {
+			Object val = names.get(text);
+			if(val != null)
+				return val;
 			text = text.trim();
-			for(Object val: clazz.getEnumConstants())
-				if(val.toString().equalsIgnoreCase(text))
-					return val;
+			val = names.get(text.toLowerCase());
+			if(val != null)
+				return val;
+			try {
+				int i = Integer.parseInt(text);
+				if(i >= 0 && i < values.length)
+					return values[i];
+			} catch(NumberFormatException e) {
+			}
 			throw new IOException("unknown enumerated value for " + clazz.getName() + ": " + text);
 		}
 		
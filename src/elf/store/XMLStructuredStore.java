@@ -17,9 +17,21 @@
  */
 package elf.store;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Stack;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import nu.xom.Attribute;
 import nu.xom.Builder;
 import nu.xom.Document;
 import nu.xom.Element;
@@ -32,6 +44,10 @@ import nu.xom.ValidityException;
 
 /**
  * Structured store supporting XML.
+ * 
+ * In streaming mode, the store never builds a XOM document: the save is directly
+ * written to an XML stream writer and the load pulls the elements from an XML
+ * stream reader. Both modes use the same format.
  * @author casse
  *
  */
@@ -43,24 +59,65 @@ public class XMLStructuredStore implements StructuredStore {
 	public static final String
 		TOP_ELEM = "elf-store",
 		ITEM_ELEM = "elf-item";
+	private static final XMLInputFactory input_factory = XMLInputFactory.newInstance();
+	private static final XMLOutputFactory output_factory = XMLOutputFactory.newInstance();
+	static {
+		input_factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		input_factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
 	Storage store;
+	boolean streaming;
+	int budget = FieldBuffer.DEFAULT_BUDGET;
 	
 	/**
 	 * Build an XML structured store.
 	 * @param store		Stream storage to load/save to.
 	 */
 	public XMLStructuredStore(Storage store) {
+		this(store, false);
+	}
+	
+	/**
+	 * Build an XML structured store.
+	 * @param store		Stream storage to load/save to.
+	 * @param streaming	True to use the streaming mode, false to use a XOM document.
+	 */
+	public XMLStructuredStore(Storage store, boolean streaming) {
 		this.store = store;
+		this.streaming = streaming;
+	}
+	
+	/**
+	 * Test if the store is in streaming mode.
+	 * @return	True if it is streaming, false else.
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+	
+	/**
+	 * Set the memory budget of a streaming load to keep the fields met before being asked.
+	 * Beyond, these fields are re-read from the storage.
+	 * @param budget	Budget size (in characters).
+	 */
+	public void setFieldBudget(int budget) {
+		this.budget = budget;
 	}
 	
 	@Override
 	public Save save() throws IOException {
-		return new XMLSave();
+		if(streaming)
+			return new StreamSave();
+		else
+			return new XMLSave();
 	}
 
 	@Override
 	public Load load() throws IOException {
-		return new XMLLoad();
+		if(streaming)
+			return new StreamLoad();
+		else
+			return new XMLLoad();
 	}
 
 	/**
@@ -101,22 +158,85 @@ public class XMLStructuredStore implements StructuredStore {
 			current = current.getParent();
 		}
 		
-		@Override
-		public void put(Object value) throws IOException {
+		/**
+		 * Put a value as text.
+		 * @param text			Text of the value.
+		 * @throws IOException	IO error.
+		 */
+		private void putText(String text) throws IOException {
 			switch(state) {
 			case IN_STRUCT:
 				throw new StructuralError("cannot put raw value in structure");
 			case IN_LIST:
 				Element item = new Element(ITEM_ELEM);
 				current.appendChild(item);
-				item.appendChild(new Text(TextSerializer.serialize(value)));
+				item.appendChild(new Text(text));
 				break;
 			case IN_FIELD:
-				current.appendChild(new Text(TextSerializer.serialize(value)));
+				current.appendChild(new Text(text));
 				pop();
 				break;
 			}
 		}
+		
+		@Override
+		public void put(Object value) throws IOException {
+			putText(TextSerializer.serialize(value));
+		}
+		
+		@Override
+		public void putInt(int value) throws IOException {
+			putText(Integer.toString(value));
+		}
+		
+		@Override
+		public void putLong(long value) throws IOException {
+			putText(Long.toString(value));
+		}
+		
+		@Override
+		public void putDouble(double value) throws IOException {
+			putText(Double.toString(value));
+		}
+		
+		/**
+		 * Put a packed array.
+		 * @param array			Put array.
+		 * @throws IOException	IO error.
+		 */
+		private void putPacked(Object array) throws IOException {
+			Element elt;
+			switch(state) {
+			case IN_STRUCT:
+				throw new StructuralError("cannot put raw value in structure");
+			case IN_LIST:
+				elt = new Element(ITEM_ELEM);
+				current.appendChild(elt);
+				break;
+			default:
+				elt = (Element)current;
+				break;
+			}
+			elt.addAttribute(new Attribute(Packed.ATTR, Packed.kind(array)));
+			elt.appendChild(new Text(Packed.encode(array)));
+			if(state == IN_FIELD)
+				pop();
+		}
+		
+		@Override
+		public void putArray(int[] array) throws IOException {
+			putPacked(array);
+		}
+		
+		@Override
+		public void putArray(long[] array) throws IOException {
+			putPacked(array);
+		}
+		
+		@Override
+		public void putArray(double[] array) throws IOException {
+			putPacked(array);
+		}
 
 		@Override
 		public void putList() throws IOException {
@@ -162,9 +282,20 @@ public class XMLStructuredStore implements StructuredStore {
 		@Override
 		public void end() throws IOException {
 			if(current == top) {
-				Serializer serial = new Serializer(store.write());
-				serial.write(doc);
-				serial.flush();
+				OutputStream out = store.write();
+				boolean done = false;
+				try {
+					Serializer serial = new Serializer(out);
+					serial.write(doc);
+					serial.flush();
+					done = true;
+				}
+				finally {
+					if(done)
+						out.close();
+					else
+						Storage.abort(out);
+				}
 			}
 			else
 				switch(state) {
@@ -184,39 +315,104 @@ public class XMLStructuredStore implements StructuredStore {
 		Stack<LoadState> stack = new Stack<LoadState>();
 		
 		public XMLLoad() throws IOException {
-			Builder builder = new Builder();
-			try {
-				doc = builder.build(store.read());
-				cur.elt = doc.getRootElement();
-			} catch (ValidityException e) {
-				throw new IOException(e);
-			} catch (ParsingException e) {
-				throw new IOException(e);
-			}
+			doc = (Document)StoreCache.shared().get(store, "xml", new StoreCache.Parser() {
+				@Override
+				public Object parse() throws IOException {
+					Builder builder = new Builder();
+					try {
+						return builder.build(store.read());
+					} catch (ValidityException e) {
+						throw new IOException(e);
+					} catch (ParsingException e) {
+						throw new IOException(e);
+					}
+				}
+			});
+			cur.elt = doc.getRootElement();
 		}
 		
 		private final void pop() {
 			cur = stack.pop();
 		}
 		
-		@Override
-		public Object get(Class<?> type) throws IOException {
-			Object r = null;
+		/**
+		 * Get the text of the current value and go to the next one.
+		 * @return				Value text.
+		 * @throws IOException	If there is no value.
+		 */
+		private String text() throws IOException {
+			String r = null;
 			switch(cur.state) {
 			case IN_STRUCT:
 				throw new IOException("cannot get value of a structure");
 			case IN_FIELD:
-				r = TextSerializer.unserialize(type, cur.elt.getValue().trim());
+				r = cur.elt.getValue();
 				pop();
 				break;
 			case IN_LIST:
-				r = TextSerializer.unserialize(type, cur.elt.getValue().trim());
+				r = cur.elt.getValue();
 				if(cur.i + 1 < cur.elts.size())
 					cur.elt = cur.elts.get(++cur.i);
 				break;
 			}
 			return r;
 		}
+		
+		@Override
+		public Object get(Class<?> type) throws IOException {
+			return TextSerializer.unserialize(type, text().trim());
+		}
+		
+		@Override
+		public int getInt() throws IOException {
+			String text = text();
+			return TextSerializer.parseInt(text, 0, text.length());
+		}
+		
+		@Override
+		public long getLong() throws IOException {
+			String text = text();
+			return TextSerializer.parseLong(text, 0, text.length());
+		}
+		
+		@Override
+		public double getDouble() throws IOException {
+			String text = text();
+			return TextSerializer.parseDouble(text, 0, text.length());
+		}
+		
+		/**
+		 * Get the current value as a packed array.
+		 * @param kind			Kind of the array.
+		 * @return				Got array or null if the value is not packed.
+		 * @throws IOException	IO error.
+		 */
+		private Object getPacked(String kind) throws IOException {
+			if(cur.state == IN_STRUCT || cur.elt == null)
+				return null;
+			String found = cur.elt.getAttributeValue(Packed.ATTR);
+			if(found == null)
+				return null;
+			return Packed.decode(kind, found, text());
+		}
+		
+		@Override
+		public int[] getIntArray() throws IOException {
+			Object r = getPacked(Packed.INT);
+			return r != null ? (int[])r : Load.super.getIntArray();
+		}
+		
+		@Override
+		public long[] getLongArray() throws IOException {
+			Object r = getPacked(Packed.LONG);
+			return r != null ? (long[])r : Load.super.getLongArray();
+		}
+		
+		@Override
+		public double[] getDoubleArray() throws IOException {
+			Object r = getPacked(Packed.DOUBLE);
+			return r != null ? (double[])r : Load.super.getDoubleArray();
+		}
 
 		@Override
 		public int getList() throws IOException {
@@ -295,6 +491,951 @@ public class XMLStructuredStore implements StructuredStore {
 		int i;
 	}
 
+	/**
+	 * Save part in streaming mode.
+	 * @author casse
+	 */
+	private class StreamSave implements Save {
+		int state = IN_STRUCT;
+		Stack<Integer> stack = new Stack<Integer>();
+		OutputStream raw, out;
+		XMLStreamWriter writer;
+		char[] digits = new char[32];
+		
+		/**
+		 * Build a streaming save.
+		 * @throws IOException	IO error.
+		 */
+		public StreamSave() throws IOException {
+			raw = store.write();
+			out = new BufferedOutputStream(raw);
+			try {
+				writer = output_factory.createXMLStreamWriter(out, "UTF-8");
+				writer.writeStartDocument("UTF-8", "1.0");
+				writer.writeStartElement(TOP_ELEM);
+			} catch (XMLStreamException e) {
+				abort();
+				throw new IOException(e);
+			}
+		}
+		
+		/**
+		 * Push a new state.
+		 * @param new_state		Pushed state.
+		 * @param name			Name of the opened element.
+		 */
+		private void push(int new_state, String name) throws XMLStreamException {
+			stack.push(state);
+			state = new_state;
+			writer.writeStartElement(name);
+		}
+		
+		/**
+		 * Pop an old state.
+		 */
+		private void pop() throws XMLStreamException {
+			state = stack.pop();
+			writer.writeEndElement();
+		}
+		
+		/**
+		 * Put a value as text.
+		 * @param text			Text of the value (or null to use the digits buffer).
+		 * @param len			Length of the text in the digits buffer.
+		 * @throws IOException	IO error.
+		 */
+		private void putText(String text, int len) throws IOException {
+			try {
+				switch(state) {
+				case IN_STRUCT:
+					throw new StructuralError("cannot put raw value in structure");
+				case IN_LIST:
+					writer.writeStartElement(ITEM_ELEM);
+					writeText(text, len);
+					writer.writeEndElement();
+					break;
+				case IN_FIELD:
+					writeText(text, len);
+					pop();
+					break;
+				}
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+		
+		/**
+		 * Write text from a string or from the digits buffer.
+		 * @param text		Text to write (or null to use the digits buffer).
+		 * @param len		Length of the text in the digits buffer.
+		 */
+		private void writeText(String text, int len) throws XMLStreamException {
+			if(text != null)
+				writer.writeCharacters(text);
+			else
+				writer.writeCharacters(digits, 0, len);
+		}
+		
+		@Override
+		public void put(Object value) throws IOException {
+			putText(TextSerializer.serialize(value), 0);
+		}
+		
+		@Override
+		public void putInt(int value) throws IOException {
+			putText(null, TextSerializer.formatLong(value, digits, 0));
+		}
+		
+		@Override
+		public void putLong(long value) throws IOException {
+			putText(null, TextSerializer.formatLong(value, digits, 0));
+		}
+		
+		@Override
+		public void putDouble(double value) throws IOException {
+			putText(null, TextSerializer.formatDouble(value, digits, 0));
+		}
+		
+		/**
+		 * Put a packed array.
+		 * @param array			Put array.
+		 * @throws IOException	IO error.
+		 */
+		private void putPacked(Object array) throws IOException {
+			try {
+				switch(state) {
+				case IN_STRUCT:
+					throw new StructuralError("cannot put raw value in structure");
+				case IN_LIST:
+					writer.writeStartElement(ITEM_ELEM);
+					writer.writeAttribute(Packed.ATTR, Packed.kind(array));
+					writer.writeCharacters(Packed.encode(array));
+					writer.writeEndElement();
+					break;
+				case IN_FIELD:
+					writer.writeAttribute(Packed.ATTR, Packed.kind(array));
+					writer.writeCharacters(Packed.encode(array));
+					pop();
+					break;
+				}
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+		
+		@Override
+		public void putArray(int[] array) throws IOException {
+			putPacked(array);
+		}
+		
+		@Override
+		public void putArray(long[] array) throws IOException {
+			putPacked(array);
+		}
+		
+		@Override
+		public void putArray(double[] array) throws IOException {
+			putPacked(array);
+		}
+		
+		@Override
+		public void putList() throws IOException {
+			try {
+				switch(state) {
+				case IN_STRUCT:
+					throw new StructuralError("cannot put raw list in list");
+				case IN_LIST:
+					push(IN_LIST, ITEM_ELEM);
+					break;
+				case IN_FIELD:
+					state = IN_LIST;
+					break;
+				}
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+		
+		@Override
+		public void putStruct() throws IOException {
+			try {
+				switch(state) {
+				case IN_STRUCT:
+					throw new StructuralError("cannot put struct in struct");
+				case IN_LIST:
+					push(IN_STRUCT, ITEM_ELEM);
+					break;
+				case IN_FIELD:
+					state = IN_STRUCT;
+					break;
+				}
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+		
+		@Override
+		public void putField(String name) throws IOException {
+			try {
+				switch(state) {
+				case IN_STRUCT:
+					push(IN_FIELD, name);
+					break;
+				case IN_LIST:
+					throw new StructuralError("cannot put field in list");
+				case IN_FIELD:
+					throw new StructuralError("cannot put field in field");
+				}
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+		
+		@Override
+		public void end() throws IOException {
+			try {
+				if(stack.isEmpty()) {
+					writer.writeEndElement();
+					writer.writeEndDocument();
+					writer.close();
+					try {
+						out.flush();
+					}
+					catch(IOException e) {
+						abort();
+						throw e;
+					}
+					out.close();
+				}
+				else
+					switch(state) {
+					case IN_STRUCT:
+					case IN_LIST:
+						pop();
+						break;
+					case IN_FIELD:
+						throw new StructuralError("ending inside an empty field");
+					}
+			} catch (XMLStreamException e) {
+				if(stack.isEmpty())
+					abort();
+				throw new IOException(e);
+			}
+		}
+		
+		@Override
+		public void abort() {
+			Storage.abort(raw);
+		}
+	}
+	
+	/**
+	 * Load part in streaming mode. Structures are read directly from the stream
+	 * and the fields met before being asked are kept aside as nodes (in the limit
+	 * of the field budget, see {@link FieldBuffer}). As the number of items must
+	 * be known, the lists got by {@link #getList()} are also read as nodes.
+	 * @author casse
+	 */
+	private class StreamLoad implements Load, FieldBuffer.Skipper {
+		InputStream in;
+		XMLStreamReader reader;
+		FieldBuffer.Budget fields_budget = new FieldBuffer.Budget(budget);
+		Object step;
+		StreamState cur = new StreamState();
+		Stack<StreamState> stack = new Stack<StreamState>();
+		Load sub;
+		int sub_depth;
+		StringBuilder text = new StringBuilder();
+		
+		/**
+		 * Build a streaming load.
+		 * @throws IOException	IO error.
+		 */
+		public StreamLoad() throws IOException {
+			in = store.read();
+			try {
+				reader = input_factory.createXMLStreamReader(in);
+				reader.nextTag();
+			} catch (XMLStreamException e) {
+				in.close();
+				throw new IOException(e);
+			}
+			cur.state = IN_STRUCT;
+		}
+		
+		/**
+		 * Delegate the load of the current value to a node.
+		 * @param node	Node containing the value.
+		 */
+		private void delegate(Node node) {
+			sub = new NodeLoad(node);
+			sub_depth = 0;
+		}
+		
+		/**
+		 * Called each time a value is consumed in delegation mode.
+		 */
+		private void consumed() throws IOException {
+			if(sub_depth == 0) {
+				if(sub instanceof StreamLoad)
+					((StreamLoad)sub).close();
+				sub = null;
+			}
+		}
+		
+		/**
+		 * Close the stream.
+		 * @throws IOException	IO error.
+		 */
+		private void close() throws IOException {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			} finally {
+				in.close();
+			}
+		}
+		
+		/**
+		 * Get back a skipped field of the current structure by re-reading the storage:
+		 * the load of the field value is delegated to a fresh load moved to the field.
+		 * @param name			Field name.
+		 * @return				True if the field is found, false else.
+		 * @throws IOException	IO error.
+		 */
+		private boolean reread(String name) throws IOException {
+			ArrayList<Object> steps = new ArrayList<Object>();
+			ArrayList<Boolean> lists = new ArrayList<Boolean>();
+			for(int i = 1; i <= stack.size(); i++) {
+				StreamState state = i < stack.size() ? stack.get(i) : cur;
+				if(state.state != IN_FIELD) {
+					steps.add(state.step);
+					lists.add(state.state == IN_LIST);
+				}
+			}
+			boolean[] kinds = new boolean[lists.size()];
+			for(int i = 0; i < kinds.length; i++)
+				kinds[i] = lists.get(i);
+			StreamLoad load = new StreamLoad();
+			load.fields_budget.left = 0;
+			boolean found = false;
+			try {
+				found = FieldBuffer.navigate(load, steps.toArray(), kinds, name);
+			} finally {
+				if(!found)
+					load.close();
+			}
+			if(found) {
+				load.fields_budget.left = budget;
+				sub = load;
+				sub_depth = 0;
+			}
+			return found;
+		}
+		
+		@Override
+		public void skipItem() throws IOException {
+			try {
+				skipElement();
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+			cur = stack.pop();
+		}
+		
+		/**
+		 * Go to the next child of the current element.
+		 * @return	True if a child is found, false if the end of the element is reached.
+		 */
+		private boolean nextChild() throws XMLStreamException {
+			return reader.nextTag() == XMLStreamConstants.START_ELEMENT;
+		}
+		
+		/**
+		 * Skip the remaining children of the current element.
+		 */
+		private void skipChildren() throws XMLStreamException {
+			while(nextChild())
+				skipElement();
+		}
+		
+		/**
+		 * Skip the current element (reader on start element) up to its end.
+		 */
+		private void skipElement() throws XMLStreamException {
+			int depth = 1;
+			while(depth > 0)
+				switch(reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					depth--;
+					break;
+				}
+		}
+		
+		/**
+		 * Read the text of the current field up to its end (the returned buffer
+		 * is reused by the next call).
+		 * @return				Field text.
+		 * @throws IOException	If there is no value.
+		 */
+		private CharSequence text() throws IOException {
+			if(cur.state != IN_FIELD)
+				throw new IOException("cannot get value of a structure");
+			try {
+				text.setLength(0);
+				while(true)
+					switch(reader.next()) {
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.CDATA:
+					case XMLStreamConstants.SPACE:
+					case XMLStreamConstants.ENTITY_REFERENCE:
+						text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						cur = stack.pop();
+						return text;
+					case XMLStreamConstants.START_ELEMENT:
+						throw new IOException("cannot get value of a structure");
+					case XMLStreamConstants.END_DOCUMENT:
+						throw new IOException("unexpected end of document");
+					}
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+		
+		@Override
+		public Object get(Class<?> type) throws IOException {
+			if(sub != null) {
+				Object r = sub.get(type);
+				consumed();
+				return r;
+			}
+			return TextSerializer.unserialize(type, text().toString().trim());
+		}
+		
+		@Override
+		public int getInt() throws IOException {
+			if(sub != null) {
+				int r = sub.getInt();
+				consumed();
+				return r;
+			}
+			CharSequence text = text();
+			return TextSerializer.parseInt(text, 0, text.length());
+		}
+		
+		@Override
+		public long getLong() throws IOException {
+			if(sub != null) {
+				long r = sub.getLong();
+				consumed();
+				return r;
+			}
+			CharSequence text = text();
+			return TextSerializer.parseLong(text, 0, text.length());
+		}
+		
+		@Override
+		public double getDouble() throws IOException {
+			if(sub != null) {
+				double r = sub.getDouble();
+				consumed();
+				return r;
+			}
+			CharSequence text = text();
+			return TextSerializer.parseDouble(text, 0, text.length());
+		}
+		
+		/**
+		 * Get the current field as a packed array.
+		 * @param kind			Kind of the array.
+		 * @return				Got array or null if the value is not packed.
+		 * @throws IOException	IO error.
+		 */
+		private Object getPacked(String kind) throws IOException {
+			if(cur.state != IN_FIELD)
+				return null;
+			String found = reader.getAttributeValue(null, Packed.ATTR);
+			if(found == null)
+				return null;
+			return Packed.decode(kind, found, text().toString());
+		}
+		
+		@Override
+		public int[] getIntArray() throws IOException {
+			if(sub != null) {
+				int[] r = sub.getIntArray();
+				consumed();
+				return r;
+			}
+			Object r = getPacked(Packed.INT);
+			return r != null ? (int[])r : Load.super.getIntArray();
+		}
+		
+		@Override
+		public long[] getLongArray() throws IOException {
+			if(sub != null) {
+				long[] r = sub.getLongArray();
+				consumed();
+				return r;
+			}
+			Object r = getPacked(Packed.LONG);
+			return r != null ? (long[])r : Load.super.getLongArray();
+		}
+		
+		@Override
+		public double[] getDoubleArray() throws IOException {
+			if(sub != null) {
+				double[] r = sub.getDoubleArray();
+				consumed();
+				return r;
+			}
+			Object r = getPacked(Packed.DOUBLE);
+			return r != null ? (double[])r : Load.super.getDoubleArray();
+		}
+		
+		@Override
+		public int getList() throws IOException {
+			if(sub == null)
+				switch(cur.state) {
+				case IN_FIELD:
+					try {
+						Node node = Node.capture(reader);
+						cur = stack.pop();
+						delegate(node);
+					} catch (XMLStreamException e) {
+						throw new IOException(e);
+					}
+					break;
+				default:
+					throw new IOException("cannot get list of a structure");
+				}
+			sub_depth++;
+			return sub.getList();
+		}
+		
+		@Override
+		public Cursor openList() throws IOException {
+			if(sub != null) {
+				sub_depth++;
+				return sub.openList();
+			}
+			if(cur.state != IN_FIELD)
+				throw new IOException("cannot get list of a structure");
+			stack.push(cur);
+			final StreamState list = new StreamState();
+			list.state = IN_LIST;
+			list.step = step;
+			cur = list;
+			return new Cursor() {
+				@Override
+				public boolean hasNextItem() throws IOException {
+					if(cur != list)
+						throw new IOException("previous item not consumed");
+					if(list.closed)
+						return false;
+					try {
+						if(!nextChild()) {
+							list.closed = true;
+							return false;
+						}
+					} catch (XMLStreamException e) {
+						throw new IOException(e);
+					}
+					stack.push(list);
+					cur = new StreamState();
+					cur.state = IN_FIELD;
+					step = list.count++;
+					return true;
+				}
+			};
+		}
+		
+		@Override
+		public void getStruct() throws IOException {
+			if(sub != null) {
+				sub_depth++;
+				sub.getStruct();
+				return;
+			}
+			switch(cur.state) {
+			case IN_FIELD:
+				stack.push(cur);
+				cur = new StreamState();
+				cur.state = IN_STRUCT;
+				cur.step = step;
+				break;
+			default:
+				throw new IOException("cannot get struct of a structure");
+			}
+		}
+		
+		@Override
+		public boolean getField(String name) throws IOException {
+			if(sub != null)
+				return sub.getField(name);
+			if(cur.state != IN_STRUCT)
+				throw new IOException("cannot get field from field or list");
+			
+			// already met?
+			if(cur.fields != null && cur.fields.contains(name)) {
+				if(cur.fields.isSkipped(name)) {
+					cur.fields.take(name);
+					return reread(name);
+				}
+				delegate(cur.fields.take(name));
+				return true;
+			}
+			
+			// look forward
+			try {
+				while(!cur.closed) {
+					if(!nextChild())
+						cur.closed = true;
+					else if(reader.getLocalName().equals(name)) {
+						stack.push(cur);
+						cur = new StreamState();
+						cur.state = IN_FIELD;
+						step = name;
+						return true;
+					}
+					else {
+						String found = reader.getLocalName();
+						if(cur.fields == null)
+							cur.fields = new FieldBuffer<Node>(fields_budget);
+						if(cur.fields.contains(found) || !cur.fields.hasRoom()) {
+							skipElement();
+							cur.fields.skip(found);
+						}
+						else {
+							Node node = Node.capture(reader);
+							cur.fields.keep(found, node, node.cost);
+						}
+					}
+				}
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+			return false;
+		}
+		
+		@Override
+		public void end() throws IOException {
+			if(sub != null) {
+				sub.end();
+				sub_depth--;
+				consumed();
+				return;
+			}
+			try {
+				if(!cur.closed)
+					skipChildren();
+				if(cur.fields != null)
+					cur.fields.clear();
+				if(stack.isEmpty()) {
+					reader.close();
+					in.close();
+				}
+				else {
+					cur = stack.pop();
+					if(cur.state == IN_FIELD)
+						cur = stack.pop();
+				}
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+	
+	}
+	
+	/**
+	 * State of a streaming load.
+	 */
+	private static final class StreamState {
+		int state;
+		boolean closed;
+		Object step;
+		int count;
+		FieldBuffer<Node> fields;
+	}
+	
+	/**
+	 * Lightweight representation of an XML element kept by the streaming load.
+	 * @author casse
+	 */
+	private static final class Node {
+		static final int NODE_COST = 32;
+		String name;
+		String packed;
+		StringBuffer text = new StringBuffer();
+		ArrayList<Node> children;
+		int cost;
+		
+		/**
+		 * Build a node from the current element of the reader.
+		 * @param reader	Reader on a start element.
+		 */
+		public Node(XMLStreamReader reader) {
+			name = reader.getLocalName();
+			packed = reader.getAttributeValue(null, Packed.ATTR);
+		}
+		
+		/**
+		 * Capture the current element of the reader (on its start element)
+		 * up to its end element.
+		 * @param reader	Reader to read from.
+		 * @return			Built node.
+		 */
+		public static Node capture(XMLStreamReader reader) throws XMLStreamException {
+			Stack<Node> stack = new Stack<Node>();
+			Node node = new Node(reader), top = node;
+			int cost = NODE_COST;
+			while(true)
+				switch(reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					Node child = new Node(reader);
+					cost += NODE_COST;
+					if(node.children == null)
+						node.children = new ArrayList<Node>();
+					node.children.add(child);
+					stack.push(node);
+					node = child;
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if(stack.isEmpty()) {
+						top.cost = cost + top.text.length();
+						return node;
+					}
+					String text = node.getValue();
+					node = stack.pop();
+					node.text.append(text);
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					node.text.append(reader.getText());
+					break;
+				}
+		}
+		
+		/**
+		 * Get the text value of the node (including text of the children).
+		 * @return	Text value.
+		 */
+		public String getValue() {
+			return text.toString();
+		}
+		
+		/**
+		 * Get the first child with the given name.
+		 * @param name	Name of the looked child.
+		 * @return		Found child or null.
+		 */
+		public Node getFirstChild(String name) {
+			if(children != null)
+				for(Node child: children)
+					if(child.name.equals(name))
+						return child;
+			return null;
+		}
+		
+		/**
+		 * Get the children with the given name.
+		 * @param name	Name of the looked children.
+		 * @return		List of children.
+		 */
+		public ArrayList<Node> getChildren(String name) {
+			ArrayList<Node> r = new ArrayList<Node>();
+			if(children != null)
+				for(Node child: children)
+					if(child.name.equals(name))
+						r.add(child);
+			return r;
+		}
+	}
+	
+	/**
+	 * Load from a node (used by the streaming load for the values
+	 * that cannot be read directly from the stream).
+	 * @author casse
+	 */
+	private static class NodeLoad implements Load {
+		NodeState cur = new NodeState();
+		Stack<NodeState> stack = new Stack<NodeState>();
+		
+		/**
+		 * Build the load, positioned on the value of the given field node.
+		 * @param node	Field node.
+		 */
+		public NodeLoad(Node node) {
+			stack.push(new NodeState());
+			cur.state = IN_FIELD;
+			cur.elt = node;
+		}
+		
+		private final void pop() {
+			cur = stack.pop();
+		}
+		
+		/**
+		 * Get the text of the current value and go to the next one.
+		 * @return				Value text.
+		 * @throws IOException	If there is no value.
+		 */
+		private CharSequence text() throws IOException {
+			CharSequence r = null;
+			switch(cur.state) {
+			case IN_STRUCT:
+				throw new IOException("cannot get value of a structure");
+			case IN_FIELD:
+				r = cur.elt.text;
+				pop();
+				break;
+			case IN_LIST:
+				r = cur.elt.text;
+				if(cur.i + 1 < cur.elts.size())
+					cur.elt = cur.elts.get(++cur.i);
+				break;
+			}
+			return r;
+		}
+		
+		@Override
+		public Object get(Class<?> type) throws IOException {
+			return TextSerializer.unserialize(type, text().toString().trim());
+		}
+		
+		@Override
+		public int getInt() throws IOException {
+			CharSequence text = text();
+			return TextSerializer.parseInt(text, 0, text.length());
+		}
+		
+		@Override
+		public long getLong() throws IOException {
+			CharSequence text = text();
+			return TextSerializer.parseLong(text, 0, text.length());
+		}
+		
+		@Override
+		public double getDouble() throws IOException {
+			CharSequence text = text();
+			return TextSerializer.parseDouble(text, 0, text.length());
+		}
+		
+		/**
+		 * Get the current value as a packed array.
+		 * @param kind			Kind of the array.
+		 * @return				Got array or null if the value is not packed.
+		 * @throws IOException	IO error.
+		 */
+		private Object getPacked(String kind) throws IOException {
+			if(cur.state == IN_STRUCT || cur.elt == null || cur.elt.packed == null)
+				return null;
+			String found = cur.elt.packed;
+			return Packed.decode(kind, found, text().toString());
+		}
+		
+		@Override
+		public int[] getIntArray() throws IOException {
+			Object r = getPacked(Packed.INT);
+			return r != null ? (int[])r : Load.super.getIntArray();
+		}
+		
+		@Override
+		public long[] getLongArray() throws IOException {
+			Object r = getPacked(Packed.LONG);
+			return r != null ? (long[])r : Load.super.getLongArray();
+		}
+		
+		@Override
+		public double[] getDoubleArray() throws IOException {
+			Object r = getPacked(Packed.DOUBLE);
+			return r != null ? (double[])r : Load.super.getDoubleArray();
+		}
+		
+		@Override
+		public int getList() throws IOException {
+			switch(cur.state) {
+			case IN_STRUCT:
+				throw new IOException("cannot get list of a structure");
+			default:
+				ArrayList<Node> elts = cur.elt.getChildren(ITEM_ELEM);
+				int r = elts.size();
+				stack.push(cur);
+				cur = new NodeState();
+				cur.state = IN_LIST;
+				cur.elts = elts;
+				cur.i = 0;
+				if(r > 0)
+					cur.elt = elts.get(0);
+				return r;
+			}
+		}
+		
+		@Override
+		public void getStruct() throws IOException {
+			switch(cur.state) {
+			case IN_STRUCT:
+				throw new IOException("cannot get struct of a structure");
+			case IN_LIST:
+			case IN_FIELD:
+				stack.push(cur);
+				cur = new NodeState();
+				cur.state = IN_STRUCT;
+				cur.elt = stack.peek().elt;
+				break;
+			}
+		}
+		
+		@Override
+		public boolean getField(String name) throws IOException {
+			switch(cur.state) {
+			case IN_STRUCT:
+				Node elt = cur.elt.getFirstChild(name);
+				if(elt == null)
+					return false;
+				else {
+					stack.push(cur);
+					cur = new NodeState();
+					cur.elt = elt;
+					cur.state = IN_FIELD;
+				}
+				return true;
+			default:
+				throw new IOException("cannot get field from field or list");
+			}
+		}
+		
+		@Override
+		public void end() throws IOException {
+			if(!stack.isEmpty())
+				cur = stack.pop();
+			switch(cur.state) {
+			case IN_FIELD:
+				pop();
+				break;
+			case IN_LIST:
+				if(cur.i + 1 < cur.elts.size())
+					cur.elt = cur.elts.get(++cur.i);
+				break;
+			}
+		}
+	
+	}
+	
+	private static final class NodeState {
+		int state;
+		Node elt;
+		ArrayList<Node> elts;
+		int i;
+	}
+	
 	@Override
 	public boolean supports(Class<?> type) {
 		return TextSerializer.get(type) != null;
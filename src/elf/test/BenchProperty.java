@@ -0,0 +1,101 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2012 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
+
+import elf.data.Property;
+
+/**
+ * Benchmark of the property accessors.
+ * Compares the time to read and write an int property by direct access, by reflection
+ * (Field.get/set and Method.invoke) and through the generated accessors of {@link Property}.
+ * @author casse
+ */
+public class BenchProperty {
+	static final int COUNT = 10000000, ROUNDS = 5;
+	
+	public static class Bean {
+		public int value;
+		private int other;
+		public int getOther() { return other; }
+		public void setOther(int other) { this.other = other; }
+	}
+	
+	public static void main(String[] args) throws Exception {
+		Bean bean = new Bean();
+		Field field = Bean.class.getField("value");
+		Method get = Bean.class.getMethod("getOther"), set = Bean.class.getMethod("setOther", int.class);
+		Property fprop = Property.field(field), mprop = Property.methods(get, set);
+		ToIntFunction<Object> fget = fprop.intGetter(), mget = mprop.intGetter();
+		ObjIntConsumer<Object> fset = fprop.intSetter(), mset = mprop.intSetter();
+		long sum = 0;
+		
+		for(int r = 0; r < ROUNDS; r++) {
+			long t = System.nanoTime();
+			for(int i = 0; i < COUNT; i++) {
+				bean.value = i;
+				sum += bean.value;
+			}
+			long direct = System.nanoTime() - t;
+			
+			t = System.nanoTime();
+			for(int i = 0; i < COUNT; i++) {
+				field.set(bean, i);
+				sum += (Integer)field.get(bean);
+			}
+			long reflect = System.nanoTime() - t;
+			
+			t = System.nanoTime();
+			for(int i = 0; i < COUNT; i++) {
+				set.invoke(bean, i);
+				sum += (Integer)get.invoke(bean);
+			}
+			long invoke = System.nanoTime() - t;
+			
+			t = System.nanoTime();
+			for(int i = 0; i < COUNT; i++) {
+				fset.accept(bean, i);
+				sum += fget.applyAsInt(bean);
+			}
+			long pfield = System.nanoTime() - t;
+			
+			t = System.nanoTime();
+			for(int i = 0; i < COUNT; i++) {
+				mset.accept(bean, i);
+				sum += mget.applyAsInt(bean);
+			}
+			long pmethod = System.nanoTime() - t;
+			
+			t = System.nanoTime();
+			for(int i = 0; i < COUNT; i++) {
+				mprop.set(bean, i);
+				sum += (Integer)mprop.get(bean);
+			}
+			long pboxed = System.nanoTime() - t;
+			
+			System.out.println(String.format("round %d (ns/op): direct %.2f, Field %.2f, Method %.2f, property field %.2f, property method %.2f, boxed %.2f",
+				r, direct / (double)COUNT, reflect / (double)COUNT, invoke / (double)COUNT,
+				pfield / (double)COUNT, pmethod / (double)COUNT, pboxed / (double)COUNT));
+		}
+		System.out.println("checksum: " + sum);
+	}
+}
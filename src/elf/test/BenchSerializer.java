@@ -0,0 +1,136 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2014 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.test;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Vector;
+
+import elf.store.AutoStructuredSerializer;
+import elf.store.StructuredStore;
+import elf.store.TextSerializer;
+
+/**
+ * Benchmark of the automatic structured serializer.
+ * Compares the throughput of saving nested structures using the per-class plans
+ * of AutoStructuredSerializer with the former reflective walk.
+ * @author casse
+ */
+public class BenchSerializer {
+	static final int COUNT = 100000, ROUNDS = 10;
+	
+	public static class Point {
+		public int x, y;
+	}
+	
+	public static class Item {
+		public int id;
+		public double weight;
+		public String name;
+		public Point pos = new Point();
+	}
+	
+	public static class Root {
+		public String title = "bench";
+		public Vector<Item> items = new Vector<Item>();
+	}
+	
+	public static void main(String[] args) throws IOException {
+		Root root = new Root();
+		for(int i = 0; i < COUNT; i++) {
+			Item item = new Item();
+			item.id = i;
+			item.weight = i * .5;
+			item.name = "item" + (i % 100);
+			item.pos.x = i;
+			item.pos.y = -i;
+			root.items.add(item);
+		}
+		NullStore store = new NullStore();
+		
+		for(int r = 0; r < ROUNDS; r++) {
+			long t = System.nanoTime();
+			reflectSave(store, root);
+			long reflect = System.nanoTime() - t;
+			t = System.nanoTime();
+			new AutoStructuredSerializer(store, root).save();
+			long plan = System.nanoTime() - t;
+			System.out.println(String.format("round %d: reflective %.0f structs/s, planned %.0f structs/s",
+				r, COUNT * 1e9 / reflect, COUNT * 1e9 / plan));
+		}
+		System.out.println("events: " + store.count);
+	}
+	
+	/**
+	 * Save using the former reflective walk (looking up the fields at each object).
+	 * @param store		Store to save to.
+	 * @param object	Saved object.
+	 */
+	static void reflectSave(StructuredStore store, Object object) throws IOException {
+		StructuredStore.Save save = store.save();
+		reflectFields(store, save, object);
+		save.end();
+	}
+	
+	static void reflectFields(StructuredStore store, StructuredStore.Save save, Object object) throws IOException {
+		for(Field field: object.getClass().getDeclaredFields())
+			if((field.getModifiers() & Modifier.PUBLIC) != 0 && (field.getModifiers() & Modifier.STATIC) == 0)
+				try {
+					Object value = field.get(object);
+					save.putField(field.getName());
+					reflectData(store, save, value);
+				} catch (IllegalAccessException e) {
+					throw new IOException(e);
+				}
+	}
+	
+	static void reflectData(StructuredStore store, StructuredStore.Save save, Object object) throws IOException {
+		if(store.supports(object.getClass()))
+			save.put(object);
+		else if(object instanceof Collection<?>) {
+			save.putList();
+			for(Object item: (Collection<?>)object)
+				reflectData(store, save, item);
+			save.end();
+		}
+		else {
+			save.putStruct();
+			reflectFields(store, save, object);
+			save.end();
+		}
+	}
+	
+	/**
+	 * Store counting the events, used to measure only the serializer.
+	 */
+	static class NullStore implements StructuredStore, StructuredStore.Save {
+		long count;
+		
+		@Override public boolean supports(Class<?> type) { return TextSerializer.get(type) != null; }
+		@Override public boolean exists() { return false; }
+		@Override public Save save() { return this; }
+		@Override public Load load() throws IOException { throw new IOException("no load"); }
+		@Override public void put(Object value) { count++; }
+		@Override public void putList() { count++; }
+		@Override public void putStruct() { count++; }
+		@Override public void putField(String name) { count++; }
+		@Override public void end() { count++; }
+	}
+}
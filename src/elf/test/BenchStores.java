@@ -0,0 +1,117 @@
+/*
+ * ElfCore library
+ * Copyright (c) 2014 - Hugues Cassé <hugues.casse@laposte.net>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package elf.test;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import elf.store.AutoStructuredSerializer;
+import elf.store.BinaryStructuredStore;
+import elf.store.ByteBufferStorage;
+import elf.store.JSONStructuredStore;
+import elf.store.MemoryStorage;
+import elf.store.Storage;
+import elf.store.StructuredStore;
+import elf.store.XMLStructuredStore;
+
+/**
+ * Benchmark of the structured stores, run on in-memory storages to measure
+ * the cost of the formats without the file system.
+ * @author casse
+ */
+public class BenchStores {
+	static final int COUNT = 100000, ROUNDS = 5;
+	
+	public static void main(String[] args) throws IOException {
+		BenchSerializer.Root root = new BenchSerializer.Root();
+		for(int i = 0; i < COUNT; i++) {
+			BenchSerializer.Item item = new BenchSerializer.Item();
+			item.id = i;
+			item.weight = i * .5;
+			item.name = "item" + (i % 100);
+			item.pos.x = i;
+			item.pos.y = -i;
+			root.items.add(item);
+		}
+		
+		for(int r = 0; r < ROUNDS; r++) {
+			MemoryStorage xml = new MemoryStorage("xml");
+			bench("xml", new XMLStructuredStore(xml, true), root);
+			bench("xml/xom", new XMLStructuredStore(new MemoryStorage("xom"), false), root);
+			MemoryStorage json = new MemoryStorage("json");
+			bench("json", new JSONStructuredStore(json, false), root);
+			MemoryStorage bin = new MemoryStorage("binary");
+			bench("binary/memory", new BinaryStructuredStore(bin), root);
+			ByteBufferStorage direct = new ByteBufferStorage(1 << 20, true);
+			bench("binary/direct", new BinaryStructuredStore(direct), root);
+			bench("binary/parallel", new BinaryStructuredStore(new MemoryStorage("parallel")), root, ForkJoinPool.commonPool());
+			report(xml, json, bin, direct);
+		}
+	}
+	
+	/**
+	 * Measure the save and the load of a root object.
+	 * @param name			Benchmark name.
+	 * @param store			Store to use.
+	 * @param root			Saved object.
+	 * @throws IOException	IO error.
+	 */
+	static void bench(String name, StructuredStore store, BenchSerializer.Root root) throws IOException {
+		bench(name, store, root, null);
+	}
+	
+	/**
+	 * Measure the save and the load of a root object.
+	 * @param name			Benchmark name.
+	 * @param store			Store to use.
+	 * @param root			Saved object.
+	 * @param pool			Pool for the parallel mode (null for sequential mode).
+	 * @throws IOException	IO error.
+	 */
+	static void bench(String name, StructuredStore store, BenchSerializer.Root root, ForkJoinPool pool) throws IOException {
+		long t = System.nanoTime();
+		AutoStructuredSerializer serial = new AutoStructuredSerializer(store, root);
+		serial.setParallel(pool);
+		serial.save();
+		long save = System.nanoTime() - t;
+		BenchSerializer.Root copy = new BenchSerializer.Root();
+		t = System.nanoTime();
+		serial = new AutoStructuredSerializer(store, copy);
+		serial.setParallel(pool);
+		serial.load();
+		long load = System.nanoTime() - t;
+		if(copy.items.size() != COUNT)
+			throw new IOException("bad load for " + name);
+		System.out.println(String.format("%s: save %.0f structs/s, load %.0f structs/s",
+			name, COUNT * 1e9 / save, COUNT * 1e9 / load));
+	}
+	
+	/**
+	 * Display the bytes written and read by the storages.
+	 * @param storages	Storages to report.
+	 */
+	static void report(Storage... storages) {
+		for(Storage storage: storages)
+			if(storage instanceof MemoryStorage)
+				System.out.println(String.format("\t%s: %d bytes written, %d bytes read", storage.getName(),
+					((MemoryStorage)storage).getWrittenBytes(), ((MemoryStorage)storage).getReadBytes()));
+			else
+				System.out.println(String.format("\t%s: %d bytes written, %d bytes read", storage.getName(),
+					((ByteBufferStorage)storage).getWrittenBytes(), ((ByteBufferStorage)storage).getReadBytes()));
+	}
+}
@@ -18,10 +18,10 @@
 package elf.ui.meta;
 
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 import elf.app.AutoConfiguration;
+import elf.data.Property;
 import elf.ui.Monitor;
 
 /**
@@ -149,6 +149,7 @@ public interface Accessor<T> {
 	class Attribute<T, U> extends Indirect<T, U> {
 		private String name;
 		private Field field;
+		private Property property;
 		private boolean tested;
 		
 		/**
@@ -212,19 +213,26 @@ public interface Accessor<T> {
 			return field;
 		}
 		
+		/**
+		 * Obtain the property accessing the field (if any).
+		 * @return	Field property.
+		 */
+		public Property getProperty() {
+			if(property == null && getField() != null)
+				property = Property.field(field);
+			return property;
+		}
+		
 		@SuppressWarnings("unchecked")
 		@Override
 		public T get() {
-			getField();
-			if(field == null)
+			getProperty();
+			if(property == null)
 				return null;
 			else
 				try {
-					return (T)field.get(getObject());
-				} catch (IllegalArgumentException e) {
-					System.err.println("ERROR: " + e.getLocalizedMessage());
-					return null;
-				} catch (IllegalAccessException e) {
+					return (T)property.get(getObject());
+				} catch (RuntimeException e) {
 					System.err.println("ERROR: " + e.getLocalizedMessage());
 					return null;
 				}
@@ -232,15 +240,17 @@ public interface Accessor<T> {
 
 		@Override
 		public void set(T value) {
-			getField();
-			if(field != null)
-				try {
-					field.set(getObject(), value);
-				} catch (IllegalArgumentException e) {
-					System.err.println("ERROR: " + e.getLocalizedMessage());
-				} catch (IllegalAccessException e) {
-					System.err.println("ERROR: " + e.getLocalizedMessage());
-				}
+			getProperty();
+			if(property != null) {
+				if(!property.isWritable())
+					System.err.println("ERROR: field " + property.getName() + " is read-only");
+				else
+					try {
+						property.set(getObject(), value);
+					} catch (RuntimeException e) {
+						System.err.println("ERROR: " + e.getLocalizedMessage());
+					}
+			}
 		}
 
 	}
@@ -255,6 +265,7 @@ public interface Accessor<T> {
 	class GetSet<T, U> extends Indirect<T, U> {
 		private String name;
 		private Method setter, getter;
+		private Property property;
 		
 		/**
 		 * Build a setter variable.
@@ -339,15 +350,12 @@ public interface Accessor<T> {
 		@SuppressWarnings("unchecked")
 		@Override
 		public T get() {
-			getGetter();
-			if(getter != null)
+			if((property == null || !property.isReadable()) && getGetter() != null)
+				property = Property.methods(getter, setter);
+			if(property != null && property.isReadable())
 				try {
-					return (T) getter.invoke(getObject());
-				} catch (IllegalAccessException e) {
-					Monitor.STD.error("cannot call " + getter.getName() + ": " + e.getLocalizedMessage());
-				} catch (IllegalArgumentException e) {
-					Monitor.STD.error("cannot call " + getter.getName() + ": " + e.getLocalizedMessage());
-				} catch (InvocationTargetException e) {
+					return (T)property.get(getObject());
+				} catch (RuntimeException e) {
 					Monitor.STD.error("cannot call " + getter.getName() + ": " + e.getLocalizedMessage());
 				}
 			return null;
@@ -355,15 +363,12 @@ public interface Accessor<T> {
 
 		@Override
 		public void set(T value) {
-			getSetter();
-			if(setter != null)
+			if((property == null || !property.isWritable()) && getSetter() != null)
+				property = Property.methods(getter, setter);
+			if(property != null && property.isWritable())
 				try {
-					setter.invoke(getObject(), value);
-				} catch (IllegalAccessException e) {
-					Monitor.STD.error("cannot call " + setter.getName() + ": " + e.getLocalizedMessage());
-				} catch (IllegalArgumentException e) {
-					Monitor.STD.error("cannot call " + setter.getName() + ": " + e.getLocalizedMessage());
-				} catch (InvocationTargetException e) {
+					property.set(getObject(), value);
+				} catch (RuntimeException e) {
 					Monitor.STD.error("cannot call " + setter.getName() + ": " + e.getLocalizedMessage());
 				}
 		}
@@ -376,19 +381,45 @@ public interface Accessor<T> {
 	 *
 	 * @param <T>	Type of attribute.
 	 */
-	class Config<T> extends Attribute<T, AutoConfiguration> {
+	class Config<T> extends Attribute<T, AutoConfiguration> implements AutoConfiguration.Listener {
 		private AutoConfiguration config;
+		private String name;
+		private Var<T> var;
 		
 		public Config(AutoConfiguration config, String name) {
 			super(config, name);
 			this.config = config;
+			this.name = name;
 		}
 
 		@Override
 		public void set(T value) {
 			super.set(value);
-			config.modify();
+			config.modify(name);
 		}
 		
+		@Override
+		public void link(Var<T> var) {
+			super.link(var);
+			if(this.var == null)
+				config.addListener(name, this);
+			this.var = var;
+		}
+		
+		@Override
+		public void unlink() {
+			super.unlink();
+			if(var != null) {
+				config.removeListener(name, this);
+				var = null;
+			}
+		}
+		
+		@Override
+		public void onReload(String field) {
+			if(var != null)
+				var.fireChange();
+		}
+	
 	}
 }